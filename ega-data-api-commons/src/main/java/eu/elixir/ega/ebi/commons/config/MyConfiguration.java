@@ -17,6 +17,7 @@ package eu.elixir.ega.ebi.commons.config;
 
 import com.google.common.cache.CacheBuilder;
 import eu.elixir.ega.ebi.commons.shared.config.ClientUserIpInterceptor;
+import eu.elixir.ega.ebi.commons.shared.config.ResInstanceChooser;
 import eu.elixir.ega.ebi.commons.shared.dto.MyExternalConfig;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
@@ -24,7 +25,9 @@ import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.guava.GuavaCache;
 import org.springframework.cache.support.SimpleCacheManager;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
+import org.springframework.cloud.netflix.ribbon.SpringClientFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
@@ -50,6 +53,13 @@ public class MyConfiguration {
     @Value("${ega.ega.cram.fasta.b}")
     private String cramFastaReferenceB;
 
+    @Value("${ega.internal.res.service-id:RES2}")
+    private String resServiceId;
+    @Value("${ega.internal.res.routing.load-factor:1.25}")
+    private double resLoadFactor;
+    @Value("${ega.internal.res.routing.window-seconds:10}")
+    private long resLoadWindow;
+
     // Ribbon Load Balanced Rest Template for communication with other Microservices
 
     @Bean
@@ -116,6 +126,12 @@ public class MyConfiguration {
         return simpleCacheManager;
     }
 
+    // File id aware choice of RES instance, keeps the requests for a file on one node
+    @Bean
+    public ResInstanceChooser resInstanceChooser(SpringClientFactory clientFactory, LoadBalancerClient loadBalancer) {
+        return new ResInstanceChooser(clientFactory, loadBalancer, resServiceId, resLoadFactor, resLoadWindow);
+    }
+
     @Bean
     public MyExternalConfig MyArchiveConfig() {
         return new MyExternalConfig(externalUrl, cramFastaReferenceA, cramFastaReferenceB);
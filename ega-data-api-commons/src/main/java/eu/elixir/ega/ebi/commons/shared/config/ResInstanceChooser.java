@@ -0,0 +1,144 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.commons.shared.config;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.netflix.loadbalancer.ILoadBalancer;
+import com.netflix.loadbalancer.Server;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import org.springframework.cloud.netflix.ribbon.SpringClientFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the RES instance for a file, so that all requests for one file go to
+ * the same node and find its pages in that node's cache.
+ * <p>
+ * Instances are ranked per file by rendezvous (highest random weight)
+ * hashing over the live instances known to Ribbon: when an instance comes or
+ * goes only the files it ranks first for move. Load is bounded: an instance
+ * that got more than {@code loadFactor} times the average share of requests
+ * in the recent window is passed over for the next one in the ranking. The
+ * full ranking is returned, so callers can fall back to the next candidate
+ * when a node fails.
+ */
+public class ResInstanceChooser {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final SpringClientFactory clientFactory;
+    private final LoadBalancerClient loadBalancer;
+    private final String serviceId;
+    private final double loadFactor;
+    private final long windowMillis;
+
+    // Requests routed to each instance in the current and the previous window
+    private volatile ConcurrentMap<String, AtomicLong> current = new ConcurrentHashMap<>();
+    private volatile ConcurrentMap<String, AtomicLong> previous = new ConcurrentHashMap<>();
+    private volatile long windowStart = System.currentTimeMillis();
+
+    public ResInstanceChooser(SpringClientFactory clientFactory, LoadBalancerClient loadBalancer, String serviceId,
+                              double loadFactor, long windowSeconds) {
+        this.clientFactory = clientFactory;
+        this.loadBalancer = loadBalancer;
+        this.serviceId = serviceId;
+        this.loadFactor = Math.max(1.0, loadFactor);
+        this.windowMillis = windowSeconds * 1000;
+    }
+
+    /**
+     * Returns the base URLs of the RES instances to use for a file, best first.
+     * The first entry is the preferred instance, unless it is overloaded; the
+     * others are fallbacks in rendezvous order.
+     *
+     * @param fileId file or index file id
+     * @return RES base URLs, never empty
+     */
+    public List<String> getResUrls(String fileId) {
+        List<String> ranked = getInstances();
+        if (ranked.isEmpty()) // Ribbon can't list the servers, let it pick one
+            return Collections.singletonList(loadBalancer.choose(serviceId).getUri().toString());
+        ranked.sort(Comparator.comparingLong((String instance) -> score(fileId, instance)).reversed());
+
+        rollWindow();
+        long total = 0;
+        for (String instance : ranked) {
+            total += load(instance);
+        }
+        // At least one instance is below the bound, since loadFactor >= 1
+        double bound = loadFactor * (total + 1) / ranked.size();
+        for (int i = 0; i < ranked.size(); i++) {
+            if (load(ranked.get(i)) < bound) {
+                String chosen = ranked.remove(i);
+                ranked.add(0, chosen);
+                break;
+            }
+        }
+        current.computeIfAbsent(ranked.get(0), k -> new AtomicLong()).incrementAndGet();
+        return ranked;
+    }
+
+    /**
+     * @param fileId file or index file id
+     * @return base URL of the RES instance to use for the file
+     */
+    public String getResUrl(String fileId) {
+        return getResUrls(fileId).get(0);
+    }
+
+    private List<String> getInstances() {
+        ILoadBalancer lb = clientFactory.getLoadBalancer(serviceId);
+        List<String> instances = new ArrayList<>();
+        if (lb == null)
+            return instances;
+        for (Server server : lb.getReachableServers()) {
+            String url = (server.getPort() == 443 ? "https://" : "http://") + server.getHostPort();
+            if (!instances.contains(url))
+                instances.add(url);
+        }
+        return instances;
+    }
+
+    private long load(String instance) {
+        AtomicLong now = current.get(instance);
+        AtomicLong before = previous.get(instance);
+        return (now == null ? 0 : now.get()) + (before == null ? 0 : before.get());
+    }
+
+    private synchronized void rollWindow() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < windowMillis)
+            return;
+        previous = now - windowStart < 2 * windowMillis ? current : new ConcurrentHashMap<>();
+        current = new ConcurrentHashMap<>();
+        windowStart = now;
+    }
+
+    private static long score(String fileId, String instance) {
+        return HASH.hashString(fileId + "@" + instance, StandardCharsets.UTF_8).asLong();
+    }
+
+}
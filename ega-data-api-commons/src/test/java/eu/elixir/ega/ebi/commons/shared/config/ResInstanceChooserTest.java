@@ -0,0 +1,118 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.commons.shared.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import org.springframework.cloud.netflix.ribbon.SpringClientFactory;
+
+import com.netflix.loadbalancer.ILoadBalancer;
+import com.netflix.loadbalancer.Server;
+
+public class ResInstanceChooserTest {
+
+	private SpringClientFactory clientFactory;
+	private ILoadBalancer ribbon;
+	private LoadBalancerClient loadBalancer;
+
+	@Before
+	public void before() {
+		clientFactory = mock(SpringClientFactory.class);
+		ribbon = mock(ILoadBalancer.class);
+		loadBalancer = mock(LoadBalancerClient.class);
+		when(clientFactory.getLoadBalancer("RES2")).thenReturn(ribbon);
+	}
+
+	private void servers(String... hostPorts) {
+		List<Server> servers = new ArrayList<>();
+		for (String hostPort : hostPorts) {
+			servers.add(new Server(hostPort));
+		}
+		when(ribbon.getReachableServers()).thenReturn(servers);
+	}
+
+	@Test
+	public void sameFileGoesToSameInstance() {
+		servers("res1:9090", "res2:9090", "res3:9090");
+		ResInstanceChooser chooser = new ResInstanceChooser(clientFactory, loadBalancer, "RES2", 100, 10);
+
+		String first = chooser.getResUrl("EGAF00000000001");
+		for (int i = 0; i < 10; i++) {
+			assertEquals(first, chooser.getResUrl("EGAF00000000001"));
+		}
+		List<String> urls = chooser.getResUrls("EGAF00000000001");
+		assertEquals(3, urls.size());
+		assertTrue(urls.containsAll(Arrays.asList("http://res1:9090", "http://res2:9090", "http://res3:9090")));
+	}
+
+	@Test
+	public void onlyFilesOfRemovedInstanceMove() {
+		servers("res1:9090", "res2:9090", "res3:9090");
+		ResInstanceChooser chooser = new ResInstanceChooser(clientFactory, loadBalancer, "RES2", 100, 10);
+		Map<String, String> before = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			before.put("EGAF" + i, chooser.getResUrl("EGAF" + i));
+		}
+
+		servers("res1:9090", "res2:9090");
+		for (Map.Entry<String, String> entry : before.entrySet()) {
+			if (!entry.getValue().equals("http://res3:9090")) {
+				assertEquals(entry.getValue(), chooser.getResUrl(entry.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void overloadedInstanceIsPassedOver() {
+		servers("res1:9090", "res2:9090");
+		ResInstanceChooser chooser = new ResInstanceChooser(clientFactory, loadBalancer, "RES2", 1.0, 60);
+
+		String first = chooser.getResUrl("EGAF00000000001");
+		// With a bound of the average load the same file can't stay on one node
+		String second = chooser.getResUrl("EGAF00000000001");
+		assertNotEquals(first, second);
+		assertEquals(first, chooser.getResUrls("EGAF00000000001").get(0));
+	}
+
+	@Test
+	public void fallsBackToLoadBalancerWithoutServers() {
+		servers();
+		ServiceInstance instance = mock(ServiceInstance.class);
+		when(instance.getUri()).thenReturn(URI.create("http://res9:9090"));
+		when(loadBalancer.choose("RES2")).thenReturn(instance);
+		ResInstanceChooser chooser = new ResInstanceChooser(clientFactory, loadBalancer, "RES2", 1.25, 10);
+
+		assertEquals(Arrays.asList("http://res9:9090"), chooser.getResUrls("EGAF00000000001"));
+	}
+
+}
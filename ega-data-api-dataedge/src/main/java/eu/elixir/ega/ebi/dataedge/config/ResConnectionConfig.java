@@ -17,13 +17,20 @@
  */
 package eu.elixir.ega.ebi.dataedge.config;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import eu.elixir.ega.ebi.dataedge.utils.ChunkBudget;
+import eu.elixir.ega.ebi.dataedge.utils.ReadAheadMetrics;
+import eu.elixir.ega.ebi.dataedge.utils.RelayBufferPool;
+import eu.elixir.ega.ebi.dataedge.utils.StripedDownload;
 import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 @Configuration
@@ -40,6 +47,24 @@ public class ResConnectionConfig {
     @Value("${res.connection.timeout.read.ms}")
     private int resConnectionReadTimeout;
 
+    @Value("${res.relay.buffer-size:2097152}")
+    private int relayBufferSize;
+
+    @Value("${res.relay.max-buffers:64}")
+    private int relayMaxBuffers;
+
+    @Value("${res.connection.read-ahead.max-bytes:268435456}")
+    private long readAheadMaxBytes;
+
+    @Value("${res.stripe.size:16777216}")
+    private int stripeSize;
+
+    @Value("${res.stripe.max-inflight:4}")
+    private int stripeMaxInFlight;
+
+    @Value("${res.stripe.threads:32}")
+    private int stripeThreads;
+
     @Bean
     public ConnectionPool connectionPool() {
         return new ConnectionPool(connectionPoolSize, connectionPoolKeepAlive, TimeUnit.MILLISECONDS);
@@ -47,8 +72,13 @@ public class ResConnectionConfig {
 
     @Bean
     public OkHttpClient resConnectionClient(@Autowired ConnectionPool connectionPool) {
+        // Asynchronous calls (read-ahead) may use as many connections to one RES as the pool keeps
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(Math.max(dispatcher.getMaxRequestsPerHost(), connectionPoolSize));
+
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
                 .retryOnConnectionFailure(true)
+                .dispatcher(dispatcher)
                 .connectionPool(connectionPool);
 
         if (resConnectionConnectTimeout > 0)
@@ -59,4 +89,28 @@ public class ResConnectionConfig {
 
         return builder.build();
     }
+
+    @Bean
+    public RelayBufferPool relayBufferPool() {
+        return new RelayBufferPool(relayBufferSize, relayMaxBuffers);
+    }
+
+    // Bytes fetched against bytes consumed by the seekable RES streams, published on /metrics
+    @Bean
+    public ReadAheadMetrics readAheadMetrics() {
+        return new ReadAheadMetrics();
+    }
+
+    // Chunks kept and read ahead by all seekable RES streams together, published on /metrics
+    @Bean
+    public ChunkBudget chunkBudget() {
+        return new ChunkBudget(readAheadMaxBytes);
+    }
+
+    @Bean
+    public StripedDownload stripedDownload(OkHttpClient resConnectionClient) {
+        return new StripedDownload(resConnectionClient, Executors.newFixedThreadPool(stripeThreads,
+                new ThreadFactoryBuilder().setNameFormat("res-stripe-%d").setDaemon(true).build()),
+                stripeSize, stripeMaxInFlight);
+    }
 }
@@ -23,8 +23,8 @@ import lombok.Setter;
 import java.util.List;
 
 /**
- * Http result descriptor including byte content, md5 checksum, and a list of
- * session identifiers.
+ * Http result descriptor including byte content, a list of session
+ * identifiers, and whether the data passed its integrity check.
  *
  * @author asenf
  */
@@ -36,6 +36,6 @@ public class HttpResult {
 
     private long bytes;
     private List<String> session;
-    private String md5;
+    private boolean verified;
 
 }
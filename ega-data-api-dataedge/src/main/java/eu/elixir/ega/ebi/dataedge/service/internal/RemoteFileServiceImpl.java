@@ -25,12 +25,18 @@ import eu.elixir.ega.ebi.commons.exception.InternalErrorException;
 import eu.elixir.ega.ebi.commons.exception.NoContentException;
 import eu.elixir.ega.ebi.commons.exception.PermissionDeniedException;
 import eu.elixir.ega.ebi.commons.exception.UnavailableForLegalReasonsException;
+import eu.elixir.ega.ebi.dataedge.utils.ChunkBudget;
+import eu.elixir.ega.ebi.dataedge.utils.PageChecksumInputStream;
+import eu.elixir.ega.ebi.dataedge.utils.ReadAheadMetrics;
+import eu.elixir.ega.ebi.dataedge.utils.RelayBufferPool;
 import eu.elixir.ega.ebi.dataedge.utils.SimpleSeekableStream;
+import eu.elixir.ega.ebi.dataedge.utils.StripedDownload;
 import eu.elixir.ega.ebi.commons.shared.dto.DownloadEntry;
 import eu.elixir.ega.ebi.commons.shared.dto.EventEntry;
 import eu.elixir.ega.ebi.commons.shared.dto.File;
 import eu.elixir.ega.ebi.commons.shared.dto.FileIndexFile;
 import eu.elixir.ega.ebi.commons.shared.dto.MyExternalConfig;
+import eu.elixir.ega.ebi.commons.shared.config.ResInstanceChooser;
 import eu.elixir.ega.ebi.commons.shared.service.DownloaderLogService;
 import eu.elixir.ega.ebi.commons.shared.service.FileInfoService;
 import eu.elixir.ega.ebi.dataedge.dto.*;
@@ -53,6 +59,8 @@ import htsjdk.variant.vcf.VCFHeader;
 import lombok.extern.slf4j.Slf4j;
 
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -61,33 +69,27 @@ import org.springframework.cache.annotation.Cacheable;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
 import org.springframework.context.annotation.Scope;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RequestCallback;
-import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.util.*;
 
 import java.util.stream.Stream;
 
 import static eu.elixir.ega.ebi.commons.config.Constants.FILEDATABASE_SERVICE;
-import static eu.elixir.ega.ebi.commons.config.Constants.RES_SERVICE;
 import static org.apache.catalina.connector.OutputBuffer.DEFAULT_BUFFER_SIZE;
 
 @Service
@@ -96,15 +98,29 @@ import static org.apache.catalina.connector.OutputBuffer.DEFAULT_BUFFER_SIZE;
 @Slf4j
 public class RemoteFileServiceImpl implements FileService {
 
+    // Tries of a transfer, resumed where the failed one stopped; at least one per RES instance
+    private static final int MIN_TRANSFER_ATTEMPTS = 3;
+
+    private static final int AES_IV_LENGTH = 16;
+
     @Autowired
     private OkHttpClient client;
 
     @Autowired
     private LoadBalancerClient loadBalancer;
 
+    @Autowired
+    private ResInstanceChooser resInstanceChooser;
+
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired(required = false)
+    private RelayBufferPool relayBufferPool = new RelayBufferPool(2 * 1024 * 1024, 16);
+
+    @Autowired(required = false)
+    private StripedDownload stripedDownload;
+
     @Value("${res.connection.chunksize.header}")
     private int resHeaderChunkSize;
 
@@ -114,6 +130,27 @@ public class RemoteFileServiceImpl implements FileService {
     @Value("${res.connection.chunksize.index}")
     private int resIndexChunkSize;
 
+    // chunks kept per RES stream, and read ahead of sequential readers
+    @Value("${res.connection.read-ahead.slots:3}")
+    private int readAheadSlots;
+
+    @Value("${res.connection.read-ahead.chunks:1}")
+    private int readAheadChunks;
+
+    @Autowired(required = false)
+    private ReadAheadMetrics readAheadMetrics = new ReadAheadMetrics();
+
+    // bytes of kept and read ahead chunks across all RES streams, not bounded if not set
+    @Autowired(required = false)
+    private ChunkBudget chunkBudget;
+
+    // plain ranges of at least this length are fetched in stripes, from all RES instances
+    @Value("${res.stripe.enabled:false}")
+    private boolean stripeEnabled;
+
+    @Value("${res.stripe.min-length:268435456}")
+    private long stripeMinLength;
+
     // Database Repositories/Services
 
     @Autowired
@@ -188,7 +225,6 @@ public class RemoteFileServiceImpl implements FileService {
         // Variables needed for responses at the end of the function
         long timeDelta = 0;
         HttpResult xferResult = null;
-        MessageDigest outDigest = null;
 
         // Build Header - Specify UUID (Allow later stats query regarding this transfer)
         UUID dlIdentifier = UUID.randomUUID();
@@ -209,37 +245,31 @@ public class RemoteFileServiceImpl implements FileService {
         }
 
         try {
-            // Get Send Stream - http Response, wrap in Digest Stream
-            outDigest = MessageDigest.getInstance("MD5");
-            try (DigestOutputStream outDigestStream = new DigestOutputStream(response.getOutputStream(), outDigest)) {
-
-                // Get RES data stream, and copy it to output stream
-                RequestCallback requestCallback = request_ -> {
-                    request_.getHeaders().set("Session-Id", sessionId.trim());
-                    request_.getHeaders().setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM, MediaType.ALL));
-                };
-                // -----------------------------------------------------------------
-                // Callback Function for Resttemplate
-                // Get Data Stream from RES ReEncryptionService
-                // -----------------------------------------------------------------
-                ResponseExtractor<HttpResult> responseExtractor = responseExtractor(destinationFormat, destinationIV, startCoordinate, outDigestStream, sessionId);
-
-                // -----------------------------------------------------------------
+            // Get Send Stream - http Response
+            try (OutputStream outStream = response.getOutputStream()) {
 
                 /*
                  * CUSTOMISATION: If you access files by absolute path (nearly everyone) then
                  * call getResUri with the file path instead of the file ID
-                 * [...]getResUri(reqFile.getFileName(),destinationFormat[...]
+                 * [...]getResUri(resURL(fileId), reqFile.getFileName(),destinationFormat[...]
                  */
 
-                // Build Request URI with Ticket Parameters and get requested file from RES (timed for statistics)
+                // Get RES data stream, and copy it to output stream (timed for statistics)
                 timeDelta = System.currentTimeMillis();
-                int cnt = 2;
-                do {
-                    xferResult = restTemplate.execute(getResUri(fileId, destinationFormat, destinationKey, 
-                            destinationIV, startCoordinate, endCoordinate), HttpMethod.GET, requestCallback, 
-                            responseExtractor);
-                } while (xferResult.getBytes() <= 0 && cnt-- > 0);
+                if (isStriped(destinationFormat, fileLength)) {
+                    // Large plain range: stripes from all RES instances, each verified before it is written
+                    long bytes = stripedDownload.transfer(resInstanceChooser.getResUrls(fileId), startCoordinate,
+                            startCoordinate + fileLength, (resUrl, stripeStart, stripeEnd) -> new Request.Builder()
+                                    .url(getResUri(resUrl, fileId, destinationFormat, destinationKey, destinationIV,
+                                            stripeStart, stripeEnd).toString())
+                                    .header("Session-Id", sessionId.trim())
+                                    .header(PageChecksumInputStream.HEADER, PageChecksumInputStream.CRC32)
+                                    .build(), outStream);
+                    xferResult = new HttpResult(bytes, Collections.emptyList(), bytes == fileLength);
+                } else {
+                    xferResult = transfer(fileId, destinationFormat, destinationKey, destinationIV, startCoordinate,
+                            endCoordinate, outStream, sessionId);
+                }
                 timeDelta = System.currentTimeMillis() - timeDelta;
 
             }
@@ -257,12 +287,8 @@ public class RemoteFileServiceImpl implements FileService {
         } finally {
             if (xferResult != null) {
 
-                // Compare received MD5 with RES
-                String inHashtext = xferResult.getMd5();
-                String outHashtext = getDigestText(outDigest.digest());
-
-                // Compare - Sent MD5 equals Received MD5? - Log Download in DB
-                boolean success = outHashtext.equals(inHashtext);
+                // Data complete and, where RES sent page checksums, verified? - Log Download in DB
+                boolean success = xferResult.isVerified();
                 double speed = (xferResult.getBytes() / 1024.0 / 1024.0) / (timeDelta / 1000.0);
                 long bytes = xferResult.getBytes();
                 log.info(sessionId + "Success? " + success + ", Speed: " + speed + " MB/s");
@@ -274,39 +300,111 @@ public class RemoteFileServiceImpl implements FileService {
         }
     }
 
-    private ResponseExtractor<HttpResult> responseExtractor(final String destinationFormat, final String destinationIV,
-            final long startCoordinate, final OutputStream outDigestStream, final String sessionId) {
-        return response_ -> {
-            List<String> get = response_.getHeaders().get("X-Session"); // RES session UUID
-            long b = 0;
-            String inHashtext = "";
-            try(InputStream inOrig = response_.getBody()) {
-                // If the stream is encrypted, and coordinates are specified,
-                // there is a possibility that 0-15 extra bytes are sent, because
-                // of the 16-byte AES Block size - read these bytes before moving on
-                
-                if (destinationFormat.toLowerCase().startsWith("aes") && destinationIV != null
-                        && destinationIV.length() > 0) {
-                    long blockStart = (startCoordinate / 16) * 16;
-                    int blockDelta = (int) (startCoordinate - blockStart);
-                    if (blockDelta > 0)
-                        inOrig.read(new byte[blockDelta]);
-                }
-                // Input stream from RES, wrap in DigestStream
-                MessageDigest inDigest = MessageDigest.getInstance("MD5");
-                try (DigestInputStream inDigestStream = new DigestInputStream(inOrig, inDigest)) {
-                    // The actual Data Transfer - copy bytes from RES to Http connection to client
-                    b = ByteStreams.copy(inDigestStream, outDigestStream); // in, outputStream
-                    inHashtext = getDigestText(inDigest.digest());
-                }
-            } catch (Throwable t) {
-                log.error(sessionId + " Throwable responseExtractor error ", t);
-                throw new GeneralStreamingException(sessionId + " " + t.getMessage(), 7);
+    private boolean isStriped(String destinationFormat, long length) {
+        return stripeEnabled && stripedDownload != null && "plain".equalsIgnoreCase(destinationFormat)
+                && length >= stripeMinLength && length > stripedDownload.getStripeSize();
+    }
+
+    /**
+     * Relays a file, or part of a file, from RES to the client. If the RES
+     * instance fails, the request is sent to the next instance for the file
+     * from the first byte the client has not received yet, so the client
+     * gets one uninterrupted stream.
+     *
+     * @throws IOException if the client stream fails, the instances keep
+     *     failing, or the output can't be resumed
+     */
+    private HttpResult transfer(String fileId, String destinationFormat, String destinationKey,
+                                String destinationIV, long startCoordinate, long endCoordinate,
+                                OutputStream outStream, String sessionId) throws IOException {
+        List<String> resUrls = resInstanceChooser.getResUrls(fileId);
+        int attempts = Math.max(resUrls.size(), MIN_TRANSFER_ATTEMPTS);
+        ClientOutputStream clientStream = new ClientOutputStream(outStream);
+        boolean aes = destinationFormat.toLowerCase().startsWith("aes");
+        boolean ivSpecified = destinationIV != null && destinationIV.length() > 0;
+        List<String> sessions = new ArrayList<>();
+        boolean verified = true;
+        for (int attempt = 0; ; attempt++) {
+            long forwarded = clientStream.getCount();
+            String iv = destinationIV;
+            long offset = forwarded;
+            if (forwarded > 0 && !"plain".equalsIgnoreCase(destinationFormat) && !aes)
+                throw new IOException("Transfer failed after " + forwarded + " bytes, "
+                        + destinationFormat + " output can't be resumed");
+            if (forwarded > 0 && aes && !ivSpecified) {
+                // RES generated the IV and sent it first; the rest is the file encrypted with it,
+                // which RES continues from any position when given that IV
+                if (forwarded < AES_IV_LENGTH || startCoordinate > 0)
+                    throw new IOException("Transfer failed after " + forwarded + " bytes, "
+                            + "output encrypted with a RES generated IV can't be resumed");
+                iv = Base64.getEncoder().encodeToString(clientStream.getIv());
+                offset = forwarded - AES_IV_LENGTH;
+            }
+
+            // Build Request URI with Ticket Parameters; the RES instance that caches the file's pages first
+            String resUrl = resUrls.get(attempt % resUrls.size());
+            long start = startCoordinate + offset;
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(getResUri(resUrl, fileId, destinationFormat, destinationKey, iv, start, endCoordinate)
+                            .toString())
+                    .header("Session-Id", sessionId.trim())
+                    .header("Accept", MediaType.APPLICATION_OCTET_STREAM_VALUE + ", " + MediaType.ALL_VALUE)
+                    .header(PageChecksumInputStream.HEADER, PageChecksumInputStream.CRC32);
+
+            try (Response resResponse = client.newCall(requestBuilder.build()).execute()) {
+                HttpResult part = relay(resResponse, destinationFormat, iv, start, clientStream, sessionId);
+                sessions.addAll(part.getSession());
+                if (clientStream.getCount() == 0 && attempt + 1 < attempts)
+                    continue; // nothing sent, ask again
+                return new HttpResult(clientStream.getCount(), sessions, verified && part.isVerified());
+            } catch (IOException ex) {
+                if (clientStream.isFailed() || attempt + 1 >= attempts)
+                    throw ex;
+                log.warn(sessionId + "RES " + resUrl + " failed after " + clientStream.getCount()
+                        + " bytes, resuming on the next instance: " + ex);
+                // Checksums follow the data, the interrupted part can't be checked
+                if (clientStream.getCount() > forwarded)
+                    verified = false;
+            }
+        }
+    }
+
+    private HttpResult relay(final Response response_, final String destinationFormat, final String destinationIV,
+            final long startCoordinate, final OutputStream outStream, final String sessionId) throws IOException {
+        List<String> get = response_.headers("X-Session"); // RES session UUID
+        long b = 0;
+        boolean verified;
+        try(InputStream inOrig = response_.body().byteStream()) {
+            if (!response_.isSuccessful())
+                throw new IOException("RES returned " + response_.code() + " " + response_.message());
+
+            // If the stream is encrypted, and coordinates are specified,
+            // there is a possibility that 0-15 extra bytes are sent, because
+            // of the 16-byte AES Block size - read these bytes before moving on
+            
+            if (destinationFormat.toLowerCase().startsWith("aes") && destinationIV != null
+                    && destinationIV.length() > 0) {
+                long blockStart = (startCoordinate / 16) * 16;
+                int blockDelta = (int) (startCoordinate - blockStart);
+                if (blockDelta > 0)
+                    ByteStreams.readFully(inOrig, new byte[blockDelta]);
             }
-            // return number of bytes copied, RES session header, and MD5 of RES input
-            // stream
-            return new HttpResult(b, get, inHashtext); // This is the result of the RestTemplate
-        };
+            if (PageChecksumInputStream.CRC32.equalsIgnoreCase(response_.header(PageChecksumInputStream.HEADER))) {
+                // RES sends a CRC32 per page after the data, checked as the data passes
+                PageChecksumInputStream checkedStream = new PageChecksumInputStream(inOrig, startCoordinate,
+                        Long.parseLong(response_.header(PageChecksumInputStream.LENGTH_HEADER)),
+                        Long.parseLong(response_.header(PageChecksumInputStream.PAGE_SIZE_HEADER)));
+                b = relayBufferPool.relay(checkedStream, outStream, null);
+                verified = checkedStream.verify();
+            } else {
+                // No checksums for this output (non-plain formats, LocalEGA, older RES): nothing to
+                // check it against, the data counts as verified once it is read to the end
+                b = relayBufferPool.relay(inOrig, outStream, null);
+                verified = true;
+            }
+        }
+        // return number of bytes copied, RES session header and the outcome of the check
+        return new HttpResult(b, get, verified);
     }
 
     /**
@@ -366,24 +464,24 @@ public class RemoteFileServiceImpl implements FileService {
         // Ascertain Access Permissions for specified File ID
         File reqFile = fileInfoService.getFileInfo(fileId);
         if (reqFile != null) {
-            URL resURL;
             try {
-                resURL = new URL(resURL() + "/file/archive/" + reqFile.getFileId()); // Just specify file ID
-                SeekableStream cIn = new SimpleSeekableStream(resURL, client, resHeaderChunkSize, reqFile.getFileSize()); // Deals with coordinates
-                SamReader reader = (x == null) ?
-                        (SamReaderFactory.make()            // BAM File
-                                .validationStringency(ValidationStringency.LENIENT)
-                                .enable(Option.CACHE_FILE_BASED_INDEXES)
-                                .samRecordFactory(DefaultSAMRecordFactory.getInstance())
-                                .open(SamInputResource.of(cIn))) :
-                        (SamReaderFactory.make()            // CRAM File
-                                .referenceSource(x)
-                                .validationStringency(ValidationStringency.LENIENT)
-                                .enable(Option.CACHE_FILE_BASED_INDEXES)
-                                .samRecordFactory(DefaultSAMRecordFactory.getInstance())
-                                .open(SamInputResource.of(cIn)));
-                header = reader.getFileHeader();
-                reader.close();
+                List<URL> resURLs = resURLs(reqFile.getFileId(), "/file/archive/" + reqFile.getFileId()); // Just specify file ID
+                try (SeekableStream cIn = new SimpleSeekableStream(resURLs, client, resHeaderChunkSize, reqFile.getFileSize(),
+                            readAheadSlots, readAheadChunks, readAheadMetrics.counters("header"), chunkBudget); // Deals with coordinates
+                     SamReader reader = (x == null) ?
+                            (SamReaderFactory.make()            // BAM File
+                                    .validationStringency(ValidationStringency.LENIENT)
+                                    .enable(Option.CACHE_FILE_BASED_INDEXES)
+                                    .samRecordFactory(DefaultSAMRecordFactory.getInstance())
+                                    .open(SamInputResource.of(cIn))) :
+                            (SamReaderFactory.make()            // CRAM File
+                                    .referenceSource(x)
+                                    .validationStringency(ValidationStringency.LENIENT)
+                                    .enable(Option.CACHE_FILE_BASED_INDEXES)
+                                    .samRecordFactory(DefaultSAMRecordFactory.getInstance())
+                                    .open(SamInputResource.of(cIn)))) {
+                    header = reader.getFileHeader();
+                }
             } catch (IOException ex) {
                 log.error(ex.getMessage(), ex);
             }
@@ -452,8 +550,8 @@ public class RemoteFileServiceImpl implements FileService {
             // SeekableStream on top of RES (using Eureka to obtain RES Base URL)
             SamInputResource inputResource;
             CRAMReferenceSource x = null;
-            //SeekableBufferedStream bIn = null,
-            //                       bIndexIn = null;
+            SeekableStream cIn = null,
+                           cIndexIn = null;
             try {
                 String extension = "";
                 if (reqFile.getFileName().contains(".bam")) {
@@ -469,12 +567,13 @@ public class RemoteFileServiceImpl implements FileService {
                 }
 
                 // BAM/CRAM File
-                URL resURL = new URL(resURL() + "/file/archive/" + reqFile.getFileId()); // Just specify file ID
+                List<URL> resURLs = resURLs(reqFile.getFileId(), "/file/archive/" + reqFile.getFileId()); // Just specify file ID
 
                 // HTSJDK works out if the stream is a BAM or a CRAM file from the extension on the URI but RES URIs do
                 // not have extensions, so override the name returned by getSource
                 final String finalExtension = extension;
-                SeekableStream cIn = new SimpleSeekableStream(resURL, client, resDataChunkSize, reqFile.getFileSize()) {
+                cIn = new SimpleSeekableStream(resURLs, client, resDataChunkSize, reqFile.getFileSize(),
+                        readAheadSlots, readAheadChunks, readAheadMetrics.counters("data"), chunkBudget) {
                     @Override
                     public String getSource() {
                         return super.getSource() + "." + finalExtension;
@@ -488,102 +587,109 @@ public class RemoteFileServiceImpl implements FileService {
                 }
 
                 File reqIndexFile = fileInfoService.getFileInfo(fileIndexFile.getIndexFileId());
-                URL indexUrl = new URL(resURL() + "/file/archive/" + fileIndexFile.getIndexFileId()); // Just specify index ID
-                SeekableStream cIndexIn = (new SimpleSeekableStream(indexUrl, client, resIndexChunkSize, reqIndexFile.getFileSize()));
+                List<URL> indexUrls = resURLs(fileIndexFile.getIndexFileId(), "/file/archive/" + fileIndexFile.getIndexFileId()); // Just specify index ID
+                cIndexIn = (new SimpleSeekableStream(indexUrls, client, resIndexChunkSize, reqIndexFile.getFileSize(),
+                        readAheadSlots, readAheadChunks, readAheadMetrics.counters("index"), chunkBudget));
 
                 inputResource = SamInputResource.of(cIn).index(cIndexIn);
             } catch (Exception ex) {
+                CloserUtil.close(Arrays.asList(cIndexIn, cIn));
                 throw new InternalErrorException(sessionId + ex.getMessage(), "9");
             }
 
             // SamReader with input stream based on RES URL (should work for BAM or CRAM)
-            SamReader reader = (x == null) ?
-                    (SamReaderFactory.make()            // BAM File
-                            .validationStringency(ValidationStringency.LENIENT)
-                            .enable(Option.CACHE_FILE_BASED_INDEXES)
-                            .samRecordFactory(DefaultSAMRecordFactory.getInstance())
-                            .open(inputResource)) :
-                    (SamReaderFactory.make()            // CRAM File
-                            .referenceSource(x)
-                            .validationStringency(ValidationStringency.LENIENT)
-                            .enable(Option.CACHE_FILE_BASED_INDEXES)
-                            .samRecordFactory(DefaultSAMRecordFactory.getInstance())
-                            .open(inputResource));
-
-            SAMFileHeader fileHeader = reader.getFileHeader();
-            int iIndex = fileHeader.getSequenceIndex(reference);
-
-            // Handle Request here - query Reader according to parameters
-            int iStart = (int) (start);
-            int iEnd = (int) (end);
-            SAMRecordIterator query;
-            if (iIndex > -1) { // ref was specified
-                query = reader.queryOverlapping(reference, iStart, iEnd);
-            } else if ((reference == null || reference.isEmpty()) && iIndex == -1) {
-                throw new GeneralStreamingException(sessionId + "Unknown reference: " + reference, 40);
-            } else { // no ref - ignore start/end
-                query = reader.iterator();
-            }
+            SamReader reader = null;
+            try {
+                reader = (x == null) ?
+                        (SamReaderFactory.make()            // BAM File
+                                .validationStringency(ValidationStringency.LENIENT)
+                                .enable(Option.CACHE_FILE_BASED_INDEXES)
+                                .samRecordFactory(DefaultSAMRecordFactory.getInstance())
+                                .open(inputResource)) :
+                        (SamReaderFactory.make()            // CRAM File
+                                .referenceSource(x)
+                                .validationStringency(ValidationStringency.LENIENT)
+                                .enable(Option.CACHE_FILE_BASED_INDEXES)
+                                .samRecordFactory(DefaultSAMRecordFactory.getInstance())
+                                .open(inputResource));
+
+                SAMFileHeader fileHeader = reader.getFileHeader();
+                int iIndex = fileHeader.getSequenceIndex(reference);
+
+                // Handle Request here - query Reader according to parameters
+                int iStart = (int) (start);
+                int iEnd = (int) (end);
+                SAMRecordIterator query;
+                if (iIndex > -1) { // ref was specified
+                    query = reader.queryOverlapping(reference, iStart, iEnd);
+                } else if ((reference == null || reference.isEmpty()) && iIndex == -1) {
+                    throw new GeneralStreamingException(sessionId + "Unknown reference: " + reference, 40);
+                } else { // no ref - ignore start/end
+                    query = reader.iterator();
+                }
 
-            // Open return output stream - instatiate a SamFileWriter
-            OutputStream out = null;
-            SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
-            if (query != null) try {
-                cOut = new CountingOutputStream(response.getOutputStream());
-                out = cOut;
-                //out = response.getOutputStream();
-                if (format.equalsIgnoreCase("BAM")) {
-                    try (SAMFileWriter writer = writerFactory.makeBAMWriter(fileHeader, true, out)) { // writes out header
-                        Stream<SAMRecord> stream = query.stream();
-                        Iterator<SAMRecord> iterator = stream.iterator();
-                        while (iterator.hasNext()) {
-                            SAMRecord next = filterMe(iterator.next(), tags, notags, fields);
-                            writer.addAlignment(next);
+                // Open return output stream - instatiate a SamFileWriter
+                OutputStream out = null;
+                SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+                if (query != null) try {
+                    cOut = new CountingOutputStream(response.getOutputStream());
+                    out = cOut;
+                    //out = response.getOutputStream();
+                    if (format.equalsIgnoreCase("BAM")) {
+                        try (SAMFileWriter writer = writerFactory.makeBAMWriter(fileHeader, true, out)) { // writes out header
+                            Stream<SAMRecord> stream = query.stream();
+                            Iterator<SAMRecord> iterator = stream.iterator();
+                            while (iterator.hasNext()) {
+                                SAMRecord next = filterMe(iterator.next(), tags, notags, fields);
+                                writer.addAlignment(next);
+                            }
                         }
-                    }
-                } else if (format.equalsIgnoreCase("CRAM")) { // Must specify Reference fasta file
-                    // Decide on Reference
-                    String refFPath = (isRDConnect(reqFile)) ?
-                            externalConfig.getCramFastaReferenceB() :
-                            externalConfig.getCramFastaReferenceA();
-
-                    try (CRAMFileWriter writer = writerFactory
-                            .makeCRAMWriter(fileHeader, out, new java.io.File(refFPath))) {
-                        Stream<SAMRecord> stream = query.stream();
-                        Iterator<SAMRecord> iterator = stream.iterator();
-                        while (iterator.hasNext()) {
-                            SAMRecord next = iterator.next();
-                            writer.addAlignment(next);
+                    } else if (format.equalsIgnoreCase("CRAM")) { // Must specify Reference fasta file
+                        // Decide on Reference
+                        String refFPath = (isRDConnect(reqFile)) ?
+                                externalConfig.getCramFastaReferenceB() :
+                                externalConfig.getCramFastaReferenceA();
+
+                        try (CRAMFileWriter writer = writerFactory
+                                .makeCRAMWriter(fileHeader, out, new java.io.File(refFPath))) {
+                            Stream<SAMRecord> stream = query.stream();
+                            Iterator<SAMRecord> iterator = stream.iterator();
+                            while (iterator.hasNext()) {
+                                SAMRecord next = iterator.next();
+                                writer.addAlignment(next);
+                            }
                         }
                     }
-                }
-
-            } catch (Throwable t) { // Log Error!
-                String errorMessage = t.toString();
-                if(errorMessage!=null && errorMessage.length() > 256) {
-                    errorMessage = errorMessage.substring(0,256);
-                }
-                EventEntry eev = downloaderLogService.createEventEntry(errorMessage, "GA4GH htsget Download BAM/CRAM");
-                downloaderLogService.logEvent(eev);
-                log.error(sessionId + "ERROR 4 " + t.toString());
-                throw new GeneralStreamingException(sessionId + t.toString(), 6);
-            } finally {
-
-                timeDelta = System.currentTimeMillis() - timeDelta;
-                double speed = (cOut.getCount() / 1024.0 / 1024.0) / (timeDelta / 1000.0);
-                long bytes = cOut.getCount();
-                boolean success = cOut.getCount() > 0;
-                log.info(sessionId + "Success? " + success + ", Speed: " + speed + " MB/s");
-                DownloadEntry dle = downloaderLogService.createDownloadEntry(success, speed, localFileId,
-                         "htsget bam/cram", destinationFormat,
-                        start, end, bytes);
-                downloaderLogService.logDownload(dle);
 
-                if (out != null) try {
-                    out.close();
-                } catch (IOException ex) {
-                    ;
+                } catch (Throwable t) { // Log Error!
+                    String errorMessage = t.toString();
+                    if(errorMessage!=null && errorMessage.length() > 256) {
+                        errorMessage = errorMessage.substring(0,256);
+                    }
+                    EventEntry eev = downloaderLogService.createEventEntry(errorMessage, "GA4GH htsget Download BAM/CRAM");
+                    downloaderLogService.logEvent(eev);
+                    log.error(sessionId + "ERROR 4 " + t.toString());
+                    throw new GeneralStreamingException(sessionId + t.toString(), 6);
+                } finally {
+
+                    timeDelta = System.currentTimeMillis() - timeDelta;
+                    double speed = (cOut.getCount() / 1024.0 / 1024.0) / (timeDelta / 1000.0);
+                    long bytes = cOut.getCount();
+                    boolean success = cOut.getCount() > 0;
+                    log.info(sessionId + "Success? " + success + ", Speed: " + speed + " MB/s");
+                    DownloadEntry dle = downloaderLogService.createDownloadEntry(success, speed, localFileId,
+                             "htsget bam/cram", destinationFormat,
+                            start, end, bytes);
+                    downloaderLogService.logDownload(dle);
+
+                    if (out != null) try {
+                        out.close();
+                    } catch (IOException ex) {
+                        ;
+                    }
                 }
+            } finally { // Returns the chunks held by the streams to the budget
+                CloserUtil.close(Arrays.asList(reader, cIndexIn, cIn));
             }
         } else { // If no 404 was found, this is a permissions denied error
             throw new PermissionDeniedException(accession);
@@ -653,13 +759,13 @@ public class RemoteFileServiceImpl implements FileService {
                 }
 
                 // VCF File
-                resURL = new URL(resURL() + "/file/archive/" + reqFile.getFileId() + vcf_ext[0]); // Just specify file ID
+                resURL = new URL(resURL(reqFile.getFileId()) + "/file/archive/" + reqFile.getFileId() + vcf_ext[0]); // Just specify file ID
                 FileIndexFile fileIndexFile = getFileIndexFile(reqFile.getFileId());
                 if(fileIndexFile == null || StringUtils.isEmpty(fileIndexFile.getIndexFileId())) {
                     throw new IndexNotFoundException("IndexFileId not found for file", fileId);
                 }
 
-                indexURL = new URL(resURL() + "/file/archive/" + fileIndexFile.getIndexFileId() + vcf_ext[1]); // Just specify index ID
+                indexURL = new URL(resURL(fileIndexFile.getIndexFileId()) + "/file/archive/" + fileIndexFile.getIndexFileId() + vcf_ext[1]); // Just specify index ID
 
                 log.info(sessionId + "Opening Reader!! ");
                 // VCFFileReader with input stream based on RES URL
@@ -736,21 +842,6 @@ public class RemoteFileServiceImpl implements FileService {
      * Helper Functions
      */
 
-     /**
-      * Returns the integer digest as a zero-padded length 32 string.
-      *
-      * @param inDigest input digest to convert.
-      * @return integer digest of the input.
-      */
-    private String getDigestText(byte[] inDigest) {
-        BigInteger bigIntIn = new BigInteger(1, inDigest);
-        String hashtext = bigIntIn.toString(16);
-        while (hashtext.length() < 32) {
-            hashtext = "0" + hashtext;
-        }
-        return hashtext;
-    }
-
     /**
      * Sets the given headerValue as an 'X-session' value in the response.
      *
@@ -787,14 +878,15 @@ public class RemoteFileServiceImpl implements FileService {
      * @param endCoord End coordinate of the requested file area, or 0.
      * @return Formatted URI for the resource.
      */
-    private URI getResUri(String fileStableIdPath,
+    private URI getResUri(String resUrl,
+                          String fileStableIdPath,
                           String destFormat,
                           String destKey,
                           String destIV,
                           Long startCoord,
                           Long endCoord) {
         destFormat = destFormat.equals("AES") ? "aes128" : destFormat; // default to 128-bit if not specified
-        String url = RES_SERVICE + "/file";
+        String url = resUrl + "/file";
         if (fileStableIdPath.startsWith("EGAF")) { // If an ID is specified - resolve this in RES
             url += "/archive/" + fileStableIdPath;
         }
@@ -847,6 +939,34 @@ public class RemoteFileServiceImpl implements FileService {
         return loadBalancer.choose("RES2").getUri().toString();
     }
 
+    /**
+     * Asks for the RES instance that should serve a file, so that requests
+     * for the same file hit the same RES page cache.
+     *
+     * @param fileId ELIXIR id of the file or index file.
+     * @return RES service URL.
+     */
+    public String resURL(String fileId) {
+        return resInstanceChooser.getResUrl(fileId);
+    }
+
+    /**
+     * Builds the URLs of a resource on all RES instances, for a file, in the
+     * order they should be tried.
+     *
+     * @param fileId ELIXIR id of the file or index file.
+     * @param path Path of the resource on RES.
+     * @return RES URLs, preferred instance first.
+     * @throws MalformedURLException
+     */
+    private List<URL> resURLs(String fileId, String path) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        for (String resUrl : resInstanceChooser.getResUrls(fileId)) {
+            urls.add(new URL(resUrl + path));
+        }
+        return urls;
+    }
+
     /**
      * Asks the load balancer for a file database URL.
      *
@@ -967,4 +1087,60 @@ public class RemoteFileServiceImpl implements FileService {
         return context;
     }
 
+    /**
+     * Counts the bytes written to the client, keeps the first
+     * {@link #AES_IV_LENGTH} of them, and records whether a write failed, to
+     * tell client failures from RES failures.
+     */
+    private static class ClientOutputStream extends FilterOutputStream {
+
+        private final byte[] iv = new byte[AES_IV_LENGTH];
+        private long count;
+        private boolean failed;
+
+        ClientOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count < AES_IV_LENGTH)
+                System.arraycopy(b, off, iv, (int) count, (int) Math.min(len, AES_IV_LENGTH - count));
+            try {
+                out.write(b, off, len);
+            } catch (IOException ex) {
+                failed = true;
+                throw ex;
+            }
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                failed = true;
+                throw ex;
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        byte[] getIv() {
+            return iv;
+        }
+
+        boolean isFailed() {
+            return failed;
+        }
+    }
+
 }
@@ -0,0 +1,73 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes all {@link SimpleSeekableStream}s together may hold in chunks other
+ * than the one each reader is on: chunks kept for seeking back and chunks
+ * read ahead. Once it is used up, streams keep only their current chunk and
+ * stop reading ahead, so read-ahead memory does not grow with the number of
+ * concurrent streams.
+ * <p>
+ * Published on the actuator {@code /metrics} endpoint as
+ * {@code readahead.budget.*}.
+ */
+public class ChunkBudget implements PublicMetrics {
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public ChunkBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if the bytes were reserved, false if that would exceed the budget
+     */
+    public boolean tryReserve(long bytes) {
+        long used;
+        do {
+            used = usedBytes.get();
+            if (used + bytes > maxBytes)
+                return false;
+        } while (!usedBytes.compareAndSet(used, used + bytes));
+        return true;
+    }
+
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(new Metric<>("readahead.budget.usedBytes", getUsedBytes()),
+                new Metric<>("readahead.budget.maxBytes", maxBytes));
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the data of a RES transfer sent with a checksum trailer, computing
+ * the CRC32 of each page segment as the data passes through.
+ * <p>
+ * RES sends the trailer when asked with {@code X-Checksum: crc32}: the data
+ * ({@code X-Checksum-Length} bytes) is followed by one CRC32 (4 bytes,
+ * big-endian) per segment, a segment being the part of the data within one
+ * page ({@code X-Checksum-Page-Size}) of the file. The stream ends after the
+ * data; {@link #verify()} then reads the trailer and compares.
+ */
+public class PageChecksumInputStream extends FilterInputStream {
+
+    public static final String HEADER = "X-Checksum";
+    public static final String LENGTH_HEADER = "X-Checksum-Length";
+    public static final String PAGE_SIZE_HEADER = "X-Checksum-Page-Size";
+    public static final String CRC32 = "crc32";
+
+    // Build logger
+    private static final Logger logger = LoggerFactory.getLogger(PageChecksumInputStream.class);
+
+    private final long pageSize;
+    private final CRC32 crc = new CRC32();
+    private final List<Integer> checksums = new ArrayList<>();
+    private long remaining;
+    private long segmentRemaining;
+
+    /**
+     * @param startCoordinate file coordinate of the first data byte
+     * @param length          data bytes before the trailer
+     * @param pageSize        page size, segments end at multiples of it
+     */
+    public PageChecksumInputStream(InputStream in, long startCoordinate, long length, long pageSize) {
+        super(in);
+        this.pageSize = pageSize;
+        this.remaining = length;
+        this.segmentRemaining = Math.min(length, pageSize - startCoordinate % pageSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0)
+            return -1;
+        int n = in.read(b, off, (int) Math.min(len, segmentRemaining));
+        if (n == -1)
+            throw new EOFException("Transfer ended " + remaining + " bytes before the checksums");
+        crc.update(b, off, n);
+        remaining -= n;
+        segmentRemaining -= n;
+        if (segmentRemaining == 0) {
+            checksums.add((int) crc.getValue());
+            crc.reset();
+            segmentRemaining = Math.min(remaining, pageSize);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        int read;
+        while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1) {
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads the trailer and compares it with the checksums of the data read.
+     *
+     * @return false if the data was not read to the end, or a checksum differs
+     */
+    public boolean verify() throws IOException {
+        if (remaining > 0)
+            return false;
+        DataInputStream trailer = new DataInputStream(in);
+        for (int i = 0; i < checksums.size(); i++) {
+            int expected = trailer.readInt();
+            if (expected != checksums.get(i)) {
+                logger.error("Checksum mismatch in segment " + i + " of " + checksums.size());
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what {@link SimpleSeekableStream}s fetch from RES against what their
+ * readers consume, per kind of stream (header, data, index), to tune
+ * {@code res.connection.chunksize.*} and the read-ahead.
+ * <p>
+ * Published on the actuator {@code /metrics} endpoint as
+ * {@code readahead.<kind>.*}. A consumed/fetched ratio well below 1 means
+ * chunks are too large or read-ahead too deep for the access pattern; many
+ * misses per request means chunks are too small.
+ */
+public class ReadAheadMetrics implements PublicMetrics {
+
+    private final Map<String, Counters> kinds = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param kind kind of stream, such as "data"
+     * @return the counters of that kind, shared by all its streams
+     */
+    public Counters counters(String kind) {
+        return kinds.computeIfAbsent(kind, k -> new Counters());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, Counters> kind : kinds.entrySet()) {
+            String prefix = "readahead." + kind.getKey() + ".";
+            Counters counters = kind.getValue();
+            long fetched = counters.getFetchedBytes();
+            metrics.add(new Metric<>(prefix + "fetchedBytes", fetched));
+            metrics.add(new Metric<>(prefix + "consumedBytes", counters.getConsumedBytes()));
+            metrics.add(new Metric<>(prefix + "consumedRatio",
+                    fetched == 0 ? 0.0 : (double) counters.getConsumedBytes() / fetched));
+            metrics.add(new Metric<>(prefix + "requests", counters.getRequests()));
+            metrics.add(new Metric<>(prefix + "prefetches", counters.getPrefetches()));
+            metrics.add(new Metric<>(prefix + "hits", counters.getHits()));
+            metrics.add(new Metric<>(prefix + "misses", counters.getMisses()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Counters of one kind of stream.
+     */
+    public static final class Counters {
+
+        private final LongAdder fetchedBytes = new LongAdder();
+        private final LongAdder consumedBytes = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder prefetches = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        /** A chunk arrived from RES */
+        void fetched(long bytes) {
+            fetchedBytes.add(bytes);
+            requests.increment();
+        }
+
+        /** Bytes returned to the reader */
+        void consumed(long bytes) {
+            consumedBytes.add(bytes);
+        }
+
+        /** A chunk was requested ahead of the reader */
+        void prefetched() {
+            prefetches.increment();
+        }
+
+        /** The reader moved to a chunk that was held or on its way */
+        void hit() {
+            hits.increment();
+        }
+
+        /** The reader moved to a chunk that had to be fetched while it waited */
+        void miss() {
+            misses.increment();
+        }
+
+        public long getFetchedBytes() {
+            return fetchedBytes.sum();
+        }
+
+        public long getConsumedBytes() {
+            return consumedBytes.sum();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getPrefetches() {
+            return prefetches.sum();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+    }
+
+}
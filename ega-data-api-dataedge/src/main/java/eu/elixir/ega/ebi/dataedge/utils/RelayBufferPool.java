@@ -0,0 +1,97 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies RES responses to the client through large, pooled buffers.
+ * <p>
+ * Each buffer is filled before it is written, so the client stream and the
+ * digest see a few large blocks instead of many 8 KB ones, and busy nodes
+ * don't allocate a fresh multi-MB buffer per request.
+ * Up to {@code maxBuffers} free buffers are kept; more concurrent relays
+ * allocate their own and the surplus is left to the garbage collector.
+ */
+public class RelayBufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> free;
+
+    /**
+     * @param bufferSize bytes per buffer
+     * @param maxBuffers free buffers kept for reuse
+     */
+    public RelayBufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxBuffers));
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize)
+            free.offer(buffer);
+    }
+
+    /**
+     * Copies {@code in} to {@code out} until the end of {@code in}.
+     *
+     * @param digest updated with the bytes copied, null if none
+     * @return bytes copied
+     */
+    public long relay(InputStream in, OutputStream out, MessageDigest digest) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            long total = 0;
+            int n;
+            while ((n = fill(in, buffer)) > 0) {
+                if (digest != null)
+                    digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                total += n;
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @return bytes read, 0 at the end of the stream
+     */
+    private static int fill(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        int n;
+        while (count < buffer.length && (n = in.read(buffer, count, buffer.length - count)) != -1) {
+            count += n;
+        }
+        return count;
+    }
+
+}
@@ -18,17 +18,43 @@
 package eu.elixir.ega.ebi.dataedge.utils;
 
 import htsjdk.samtools.seekablestream.SeekableStream;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Reads a file from RES in chunks of {@code chunkSize} bytes, aligned to
+ * multiples of it.
+ * <p>
+ * Up to {@code slots} chunks are kept, least recently used dropped first, so
+ * readers that seek back a little find the data still there. When the reader
+ * moves on to the next chunk, the {@code readAhead} chunks after it are
+ * requested asynchronously on the OkHttp client's dispatcher, so sequential
+ * reads don't stall at chunk boundaries. A failed read-ahead is fetched
+ * again when the reader gets to it.
+ * <p>
+ * With a {@link ChunkBudget}, every chunk but the current one needs a
+ * reservation from it: without one, read-ahead is skipped and a chunk is
+ * dropped as soon as the reader moves to another one, so a stream holds more
+ * than one chunk only while the process-wide budget allows.
+ */
 public class SimpleSeekableStream extends SeekableStream {
 
     // Build logger
@@ -36,14 +62,23 @@ public class SimpleSeekableStream extends SeekableStream {
 
     private static final int DEFAULT_CHUNK_SIZE = 4096;
 
-    private final URL url;
+    private final List<URL> urls; // the same file on other servers, tried in order when one fails
     private final int chunkSize;
     private final long length;
     private final OkHttpClient client;
+    private final int slots;
+    private final int readAhead;
+    private final ReadAheadMetrics.Counters counters;
+    private final ChunkBudget budget; // null if not bounded across streams
+
+    // Chunks held or on their way, by chunk index, least recently used first
+    private final LinkedHashMap<Long, Chunk> chunks;
 
+    private int current;
     private long position;
     private byte[] buffer;
     private long bufferPosition;
+    private long lastChunk = -1;
 
     public SimpleSeekableStream(URL url, OkHttpClient client) throws IOException {
         this(url, client, DEFAULT_CHUNK_SIZE);
@@ -64,10 +99,46 @@ public class SimpleSeekableStream extends SeekableStream {
     }
 
     public SimpleSeekableStream(URL url, OkHttpClient client, int chunkSize, long length) throws IOException {
-        this.url = url;
+        this(Collections.singletonList(url), client, chunkSize, length);
+    }
+
+    /**
+     * Reads from the first URL; if a request to it fails, the stream goes on
+     * with the next one for the rest of its life.
+     *
+     * @param urls candidate URLs of the same content, in order of preference
+     */
+    public SimpleSeekableStream(List<URL> urls, OkHttpClient client, int chunkSize, long length) throws IOException {
+        this(urls, client, chunkSize, length, 1, 0, null);
+    }
+
+    /**
+     * @param slots     chunks kept, including the ones read ahead
+     * @param readAhead chunks requested ahead of a sequential reader, at most {@code slots - 1}
+     * @param counters  where fetched and consumed bytes are counted, null if not counted
+     */
+    public SimpleSeekableStream(List<URL> urls, OkHttpClient client, int chunkSize, long length, int slots,
+                                int readAhead, ReadAheadMetrics.Counters counters) throws IOException {
+        this(urls, client, chunkSize, length, slots, readAhead, counters, null);
+    }
+
+    /**
+     * @param budget bytes of kept and read ahead chunks shared with other streams, null if not bounded
+     */
+    public SimpleSeekableStream(List<URL> urls, OkHttpClient client, int chunkSize, long length, int slots,
+                                int readAhead, ReadAheadMetrics.Counters counters, ChunkBudget budget)
+            throws IOException {
+        if (urls.isEmpty())
+            throw new IllegalArgumentException("No URL to read from");
+        this.urls = urls;
         this.chunkSize = chunkSize;
         this.client = client;
         this.length = length;
+        this.slots = Math.max(1, slots);
+        this.readAhead = Math.max(0, Math.min(readAhead, this.slots - 1));
+        this.counters = counters != null ? counters : new ReadAheadMetrics.Counters();
+        this.budget = budget;
+        this.chunks = new LinkedHashMap<>(16, 0.75f, true);
     }
 
     @Override
@@ -94,29 +165,127 @@ public class SimpleSeekableStream extends SeekableStream {
             return -1;
 
         fillBufferWithChunk(position);
+        counters.consumed(1);
 
-        return buffer[(int) ((position++) - bufferPosition)];
+        return buffer[(int) ((position++) - bufferPosition)] & 0xff;
     }
 
     protected void fillBufferWithChunk(long position) throws IOException {
         if (buffer == null || position < bufferPosition || position >= bufferPosition + buffer.length) {
-            Request request = new Request.Builder()
-                    .url(url)
-                    .addHeader(HttpHeaders.RANGE, String.format("bytes=%d-%d", position, Math.min(position + chunkSize, length) - 1))
-                    .build();
+            long index = position / chunkSize;
+            Chunk chunk = chunks.get(index);
+            byte[] data = chunk != null ? chunk.await() : null;
+            if (data != null) {
+                counters.hit();
+            } else {
+                counters.miss();
+                while (true) {
+                    URL url = urls.get(current);
+                    try {
+                        data = fetchChunk(url, index * chunkSize);
+                        break;
+                    } catch (IOException e) {
+                        if (current + 1 >= urls.size())
+                            throw e;
+                        current++;
+                        logger.warn("Reading {} failed ({}), continuing with {}", url, e.getMessage(), urls.get(current));
+                    }
+                }
+                put(index, new Chunk(null, CompletableFuture.completedFuture(data), reserve()));
+            }
+
+            buffer = data;
+            bufferPosition = index * chunkSize;
 
-            Response response;
-            do {
-                response = client.newCall(request).execute();
-            } while (responseShouldRetry(response, url));
+            // Reading on into the next chunk: request the ones after it
+            if (index == lastChunk + 1) {
+                for (long next = index + 1; next <= index + readAhead && next * chunkSize < length; next++) {
+                    if (!chunks.containsKey(next) && reserve())
+                        put(next, prefetchChunk(urls.get(current), next * chunkSize));
+                }
+            }
+            lastChunk = index;
+        }
+    }
 
-            buffer = response.body().bytes();
+    private Request chunkRequest(URL url, long position) {
+        return new Request.Builder()
+                .url(url)
+                .addHeader(HttpHeaders.RANGE, String.format("bytes=%d-%d", position, Math.min(position + chunkSize, length) - 1))
+                .build();
+    }
 
-            bufferPosition = position;
+    private byte[] fetchChunk(URL url, long position) throws IOException {
+        Request request = chunkRequest(url, position);
+
+        Response response;
+        do {
+            response = client.newCall(request).execute();
+        } while (responseShouldRetry(response, url));
+
+        byte[] data = response.body().bytes();
+        counters.fetched(data.length);
+        return data;
+    }
 
+    private Chunk prefetchChunk(URL url, long position) {
+        CompletableFuture<byte[]> data = new CompletableFuture<>();
+        Call call = client.newCall(chunkRequest(url, position));
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                data.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful())
+                        throw new IOException(String.format("Unexpected HTTP response from %s: code %d", url, response.code()));
+                    byte[] bytes = body.bytes();
+                    counters.fetched(bytes.length);
+                    data.complete(bytes);
+                } catch (IOException e) {
+                    data.completeExceptionally(e);
+                }
+            }
+        });
+        counters.prefetched();
+        return new Chunk(call, data, true);
+    }
+
+    // Takes a chunk from the budget, if there is one
+    private boolean reserve() {
+        return budget == null || budget.tryReserve(chunkSize);
+    }
+
+    /*
+     * Adds a chunk, dropping the least recently used ones beyond the slots. A
+     * chunk without a reservation replaces the one the reader is leaving if
+     * that has none either.
+     */
+    private void put(long index, Chunk chunk) {
+        Chunk previous = chunks.put(index, chunk); // a failed read-ahead
+        if (previous != null)
+            drop(previous);
+        Iterator<Chunk> eldest = chunks.values().iterator();
+        int excess = chunks.size() - slots;
+        while (eldest.hasNext()) {
+            Chunk next = eldest.next();
+            if (next != chunk && (excess > 0 || (!chunk.reserved && !next.reserved))) {
+                drop(next);
+                eldest.remove();
+                excess--;
+            }
         }
     }
 
+    private void drop(Chunk chunk) {
+        chunk.cancel();
+        if (chunk.reserved && budget != null)
+            budget.release(chunkSize);
+    }
+
     private static boolean responseShouldRetry(Response response, URL uri) throws IOException {
         switch (HttpStatus.valueOf(response.code())) {
             case OK:
@@ -145,14 +314,20 @@ public class SimpleSeekableStream extends SeekableStream {
             position += bytesToCopy;
             bytesRead += bytesToCopy;
         }
+        counters.consumed(bytesRead);
 
         return bytesRead;
     }
 
     @Override
     public void close() throws IOException {
+        for (Chunk chunk : chunks.values()) {
+            drop(chunk);
+        }
+        chunks.clear();
         buffer = null;
         bufferPosition = 0;
+        lastChunk = -1;
     }
 
     @Override
@@ -162,6 +337,42 @@ public class SimpleSeekableStream extends SeekableStream {
 
     @Override
     public String getSource() {
-        return url.toString();
+        return urls.get(0).toString();
+    }
+
+    /**
+     * A chunk that has arrived or is on its way.
+     */
+    private static final class Chunk {
+
+        private final Call call; // null once complete
+        private final CompletableFuture<byte[]> data;
+        private final boolean reserved; // holds chunkSize bytes of the budget
+
+        Chunk(Call call, CompletableFuture<byte[]> data, boolean reserved) {
+            this.call = call;
+            this.data = data;
+            this.reserved = reserved;
+        }
+
+        /**
+         * @return the chunk, null if fetching it failed
+         */
+        byte[] await() throws IOException {
+            try {
+                return data.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a chunk");
+            } catch (ExecutionException e) {
+                logger.debug("Reading ahead failed ({}), fetching again", e.getCause().getMessage());
+                return null;
+            }
+        }
+
+        void cancel() {
+            if (call != null && !data.isDone())
+                call.cancel();
+        }
     }
 }
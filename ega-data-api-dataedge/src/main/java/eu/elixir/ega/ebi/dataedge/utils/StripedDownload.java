@@ -0,0 +1,168 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a range of a file from RES in fixed size stripes, several at a
+ * time and spread over the RES instances, and writes them to the client in
+ * order.
+ * <p>
+ * Stripe {@code i} is requested from instance {@code i % n} of the list, and
+ * from the following ones if that fails. At most {@code maxInFlight} stripes
+ * are being fetched or waiting to be written, so a download holds at most
+ * {@code maxInFlight * stripeSize} bytes. Stripes are asked with page
+ * checksums ({@link PageChecksumInputStream}) and verified before they are
+ * written; RES instances that don't send them are only checked for length.
+ */
+public class StripedDownload {
+
+    /**
+     * Builds the request for a part of the file on one RES instance.
+     */
+    public interface StripeRequest {
+        Request build(String resUrl, long startCoordinate, long endCoordinate);
+    }
+
+    // Build logger
+    private static final Logger logger = LoggerFactory.getLogger(StripedDownload.class);
+
+    private final OkHttpClient client;
+    private final ExecutorService executor;
+    private final int stripeSize;
+    private final int maxInFlight;
+
+    /**
+     * @param executor    pool fetching the stripes, shared by all downloads
+     * @param stripeSize  bytes per request
+     * @param maxInFlight stripes fetched ahead of the one being written, per download
+     */
+    public StripedDownload(OkHttpClient client, ExecutorService executor, int stripeSize, int maxInFlight) {
+        this.client = client;
+        this.executor = executor;
+        this.stripeSize = stripeSize;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    public int getStripeSize() {
+        return stripeSize;
+    }
+
+    /**
+     * Copies bytes {@code startCoordinate} to {@code endCoordinate}
+     * (exclusive) of the file to {@code out}.
+     *
+     * @param resUrls RES instances serving the file, preferred first
+     * @return bytes written
+     * @throws IOException if a stripe could not be read from any instance
+     */
+    public long transfer(List<String> resUrls, long startCoordinate, long endCoordinate, StripeRequest requests,
+                         OutputStream out) throws IOException {
+        if (resUrls.isEmpty())
+            throw new IllegalArgumentException("No RES instance to read from");
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        long next = startCoordinate;
+        int index = 0;
+        long bytes = 0;
+        try {
+            while (next < endCoordinate || !inFlight.isEmpty()) {
+                while (next < endCoordinate && inFlight.size() < maxInFlight) {
+                    long start = next;
+                    long end = Math.min(start + stripeSize, endCoordinate);
+                    int first = index++ % resUrls.size();
+                    inFlight.add(executor.submit(() -> fetch(resUrls, first, start, end, requests)));
+                    next = end;
+                }
+                byte[] stripe = get(inFlight.poll());
+                out.write(stripe);
+                bytes += stripe.length;
+            }
+        } finally {
+            for (Future<byte[]> stripe : inFlight) {
+                stripe.cancel(true);
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] get(Future<byte[]> stripe) throws IOException {
+        try {
+            return stripe.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a stripe");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private byte[] fetch(List<String> resUrls, int first, long start, long end, StripeRequest requests)
+            throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < resUrls.size(); i++) {
+            String resUrl = resUrls.get((first + i) % resUrls.size());
+            try {
+                return fetch(requests.build(resUrl, start, end), start, (int) (end - start));
+            } catch (IOException ex) {
+                logger.warn("Stripe {}-{} from {} failed: {}", start, end, resUrl, ex.getMessage());
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    private byte[] fetch(Request request, long start, int length) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful())
+                throw new IOException("RES returned " + response.code() + " " + response.message());
+            byte[] stripe = new byte[length];
+            try (InputStream in = response.body().byteStream()) {
+                if (PageChecksumInputStream.CRC32.equalsIgnoreCase(response.header(PageChecksumInputStream.HEADER))) {
+                    PageChecksumInputStream checkedStream = new PageChecksumInputStream(in, start, length,
+                            Long.parseLong(response.header(PageChecksumInputStream.PAGE_SIZE_HEADER)));
+                    new DataInputStream(checkedStream).readFully(stripe);
+                    if (!checkedStream.verify())
+                        throw new IOException("Checksum mismatch in stripe at " + start);
+                } else {
+                    new DataInputStream(in).readFully(stripe);
+                }
+            }
+            return stripe;
+        }
+    }
+
+}
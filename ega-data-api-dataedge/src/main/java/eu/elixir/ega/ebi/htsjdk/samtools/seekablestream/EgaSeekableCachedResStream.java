@@ -18,21 +18,21 @@ package eu.elixir.ega.ebi.htsjdk.samtools.seekablestream;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.HttpUtils;
 
-import java.io.ByteArrayOutputStream;
-
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Proxy;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import lombok.Value;
 import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -49,18 +49,42 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Assume: File Archive ID specified as part of URL upin instantiation.
  * Destination Format, Key specified upon use; not known upon instantiation.
+ * <p>
+ * Pages are kept in a cache shared by all streams of the process, keyed by
+ * RES URL and page, so streams of the same file share pages, and a page is
+ * fetched once however many streams ask for it at the same time. Pages after
+ * the one being read are prefetched on a shared, bounded pool.
  */
 
 public class EgaSeekableCachedResStream extends SeekableStream {
     // Build logger
     private Logger logger = LoggerFactory.getLogger(EgaSeekableCachedResStream.class);
 
-    // HTTP Client to access CleverSafe
-    private OkHttpClient client;
-
-    private LoadingCache<Integer, byte[]> cache;
     private static final int PAGE_SIZE = 1024 * 1024;
     private static final int NUM_PAGES = 15;
+    private static final long CACHE_SIZE = 256L * 1024 * 1024; // bytes of pages, all streams
+    private static final int PREFETCH_THREADS = 16;
+    private static final int PREFETCH_QUEUE = 1024; // prefetches beyond this are dropped
+
+    // HTTP Client to access RES, shared by all streams
+    private static final OkHttpClient client = new OkHttpClient.Builder()
+            .retryOnConnectionFailure(true)
+            .connectionPool(new ConnectionPool(PREFETCH_THREADS + NUM_PAGES, 5000, TimeUnit.MILLISECONDS))
+            .connectTimeout(2500, TimeUnit.MILLISECONDS).build();
+
+    private static final ThreadPoolExecutor prefetchPool = newPrefetchPool();
+
+    // Loads of a page are shared by the streams asking for it while it loads
+    private static final LoadingCache<PageKey, byte[]> cache = CacheBuilder.newBuilder()
+            .maximumWeight(CACHE_SIZE)
+            .weigher((PageKey key, byte[] page) -> page.length)
+            .concurrencyLevel(NUM_PAGES)
+            .build(
+                    new CacheLoader<PageKey, byte[]>() {
+                        public byte[] load(PageKey key) throws Exception {
+                            return populateCache(key);
+                        }
+                    });
 
     private long position = 0;
     private long contentLength = -1;
@@ -94,24 +118,6 @@ public class EgaSeekableCachedResStream extends SeekableStream {
         this.auth = auth;
         this.contentLength = fileSize - 16; // This is true for AES Encrypted Streams (first 16 bytes = IV)
 
-        // Instatiate HTTP client
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
-        ConnectionPool cp = new ConnectionPool(NUM_PAGES, 5000, TimeUnit.MILLISECONDS);
-        client = builder.retryOnConnectionFailure(true)
-                .connectionPool(cp)
-                .connectTimeout(2500, TimeUnit.MILLISECONDS).build();
-
-        // Init cache 
-        this.cache = CacheBuilder.newBuilder()
-                .maximumSize(NUM_PAGES)
-                .concurrencyLevel(NUM_PAGES)
-                .build(
-                        new CacheLoader<Integer, byte[]>() {
-                            public byte[] load(Integer page) throws Exception {
-                                return populateCache(page);
-                            }
-                        });
-
         // Try to get the file length
         // Note: This also sets setDefaultUseCaches(false), which is important
         final String contentLengthString = HttpUtils.getHeaderField(url, "Content-Length");
@@ -198,9 +204,9 @@ public class EgaSeekableCachedResStream extends SeekableStream {
                 offset_ += bytesToCopy;
                 this.position += bytesToCopy;
             }
-        } catch (ExecutionException e) {
+        } catch (ExecutionException | UncheckedExecutionException e) {
             logger.error("Error message: {}", e);
-            return 0;
+            throw new IOException("Reading page " + cachePage + " of " + url + " failed", e.getCause());
         }
 
         return bytesToRead;
@@ -244,67 +250,79 @@ public class EgaSeekableCachedResStream extends SeekableStream {
 
         int firstPage = page_number > 0 ? page_number - 1 : 0; // Get prior cache page, just in case
         int lastPage = (page_number + NUM_PAGES - 1) > maxPage ? maxPage : (page_number + NUM_PAGES - 1);
-        ExecutorService pool = Executors.newCachedThreadPool();
 
         for (int i = firstPage; i < lastPage; i++) {
-            final int pageIndex = i;
+            final PageKey key = pageKey(i);
+            if (i == page_number || cache.getIfPresent(key) != null)
+                continue;
 
-            pool.submit(() -> {
+            prefetchPool.execute(() -> {
                 try {
-                    this.cache.get(pageIndex);
-                } catch (ExecutionException e) {
+                    cache.get(key);
+                } catch (ExecutionException | UncheckedExecutionException e) {
+                    logger.debug("Prefetch of page {} failed: {}", key.getPage(), e.getCause().toString());
                 }
             });
         }
 
-        return this.cache.get(page_number);
+        return cache.get(pageKey(page_number));
     }
 
-    private byte[] populateCache(int page_number) {
+    private PageKey pageKey(int page_number) {
         // Last Page Handling
         int maxPage = (int) (this.contentLength / PAGE_SIZE + 1) - 1; // Don'd read past end of stream
-        if (page_number > maxPage)
-            return new byte[]{};
-
         long offset = (long) page_number * (long) PAGE_SIZE;
-        final int bytesToRead = (int) ((page_number == maxPage) ? (this.contentLength - offset) : PAGE_SIZE);
-
-        // Prepare buffer to read from file
-        byte[] bytesRead = new byte[bytesToRead];
-        int totalBytesRead = 0;
+        int length = page_number > maxPage ? 0
+                : (int) ((page_number == maxPage) ? (this.contentLength - offset) : PAGE_SIZE);
+        return new PageKey(this.url.toString(), page_number, length);
+    }
 
-        synchronized (this) {
-            try {
-                String byteRange = "bytes=" + offset + "-" + (offset + bytesToRead);
-                String url = this.url.toString() + "?startCoordinate=" + offset +
-                        "&endCoordinate=" + (offset + bytesToRead) +
-                        "&destinationFormat=" + "Plain";
-
-                Request datasetRequest = new Request.Builder()
-                        .url(url)
-                        .build();
-
-                // Execute the request and retrieve the response.
-                okhttp3.Response response = client.newCall(datasetRequest).execute();
-                try (ResponseBody body = response.body()){
-                    InputStream byteStream = body.byteStream();
-                    byte[] buff = new byte[8000];
-                    ByteArrayOutputStream bao = new ByteArrayOutputStream();
-
-                    int bytesRead_ = 0;
-                    while ((bytesRead_ = byteStream.read(buff)) != -1) {
-                        totalBytesRead += bytesRead_;
-                        bao.write(buff, 0, bytesRead_);
-                    }
-
-                    byte[] result = bao.toByteArray();
-                    bytesRead = Arrays.copyOf(result, bytesToRead);
-                }
+    private static byte[] populateCache(PageKey key) throws IOException {
+        if (key.getLength() == 0)
+            return new byte[]{};
 
-            } catch (Throwable t) {
-                logger.error("ERROR " + t.toString() + " Page: " + page_number);
-            }
+        long offset = (long) key.getPage() * (long) PAGE_SIZE;
+        final int bytesToRead = key.getLength();
+
+        String url = key.getUrl() + "?startCoordinate=" + offset +
+                "&endCoordinate=" + (offset + bytesToRead) +
+                "&destinationFormat=" + "Plain";
+
+        Request datasetRequest = new Request.Builder()
+                .url(url)
+                .build();
+
+        // Execute the request and retrieve the response.
+        try (okhttp3.Response response = client.newCall(datasetRequest).execute();
+             ResponseBody body = response.body()) {
+            if (!response.isSuccessful())
+                throw new IOException("RES returned " + response.code() + " for page " + key.getPage() + " of "
+                        + key.getUrl());
+            byte[] bytesRead = body.bytes();
+            if (bytesRead.length < bytesToRead) // a short page must not be shared
+                throw new IOException("RES sent " + bytesRead.length + " of " + bytesToRead + " bytes for page "
+                        + key.getPage() + " of " + key.getUrl());
+            return bytesRead.length == bytesToRead ? bytesRead : Arrays.copyOf(bytesRead, bytesToRead);
         }
-        return bytesRead;
+    }
+
+    private static ThreadPoolExecutor newPrefetchPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(PREFETCH_QUEUE),
+                new ThreadFactoryBuilder().setNameFormat("res-prefetch-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * A page of a file on RES: the RES URL of the file, the page number, and
+     * its length (shorter for the last page).
+     */
+    @Value
+    private static class PageKey {
+        String url;
+        int page;
+        int length;
     }
 }
@@ -18,11 +18,14 @@ package eu.elixir.ega.ebi.dataedge.service.internal;
 import eu.elixir.ega.ebi.commons.exception.InternalErrorException;
 import eu.elixir.ega.ebi.commons.exception.NoContentException;
 import eu.elixir.ega.ebi.commons.exception.UnavailableForLegalReasonsException;
+import eu.elixir.ega.ebi.dataedge.utils.ChunkBudget;
+import eu.elixir.ega.ebi.dataedge.utils.RelayBufferPool;
 import eu.elixir.ega.ebi.dataedge.utils.SimpleSeekableStream;
 import eu.elixir.ega.ebi.commons.shared.dto.File;
 import eu.elixir.ega.ebi.commons.shared.dto.FileDataset;
 import eu.elixir.ega.ebi.commons.shared.dto.FileIndexFile;
 import eu.elixir.ega.ebi.commons.shared.dto.MyExternalConfig;
+import eu.elixir.ega.ebi.commons.shared.config.ResInstanceChooser;
 import eu.elixir.ega.ebi.commons.shared.service.DownloaderLogService;
 import eu.elixir.ega.ebi.commons.shared.service.FileInfoService;
 import eu.elixir.ega.ebi.dataedge.dto.*;
@@ -34,9 +37,21 @@ import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFHeader;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -59,9 +74,13 @@ import org.springframework.web.client.RestTemplate;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import static eu.elixir.ega.ebi.commons.config.Constants.RES_SERVICE;
@@ -69,7 +88,10 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.*;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
 
 import static eu.elixir.ega.ebi.commons.config.Constants.FILEDATABASE_SERVICE;
 
@@ -98,6 +120,12 @@ public class RemoteFileServiceImplTest {
     @Mock
     private RestTemplate restTemplate;
 
+    @Mock
+    private OkHttpClient client;
+
+    @Mock
+    private ResInstanceChooser resInstanceChooser;
+
     @Mock
     MyExternalConfig externalConfig;
 
@@ -129,6 +157,66 @@ public class RemoteFileServiceImplTest {
 
     }
 
+    @Test
+    public void getFile_WhenResSendsData_ThenRelaysItToTheClient() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        remoteFileServiceImpl.getFile(FILEID, "plain", "destinationKey", "destinationIV", 0, 0,
+                new MockHttpServletRequest(), response);
+
+        assertThat(response.getContentAsString(), equalTo("data"));
+    }
+
+    @Test
+    public void getFile_WhenResFailsMidStream_ThenResumesOnTheNextInstance() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final List<Request> requests = new ArrayList<>();
+        // small relay buffers, so the bytes before the failure reach the client
+        setField(remoteFileServiceImpl, "relayBufferPool", new RelayBufferPool(2, 1));
+        when(resInstanceChooser.getResUrls(any())).thenReturn(Arrays.asList("http://res1", "http://res2"));
+        when(client.newCall(any())).thenAnswer(invocation -> {
+            Request request = (Request) invocation.getArguments()[0];
+            requests.add(request);
+            return resCall(request, requests.size() == 1 ? failingAfter("da".getBytes()) : "ta".getBytes());
+        });
+
+        remoteFileServiceImpl.getFile(FILEID, "plain", "destinationKey", "destinationIV", 0, 0,
+                new MockHttpServletRequest(), response);
+
+        assertThat(response.getContentAsString(), equalTo("data"));
+        assertThat(requests.get(1).url().host(), equalTo("res2"));
+        assertThat(requests.get(1).url().queryParameter("startCoordinate"), equalTo("2"));
+    }
+
+    @Test
+    public void getFile_WhenAesStreamWithResIvFails_ThenResumesWithThatIv() throws Exception {
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final List<Request> requests = new ArrayList<>();
+        final byte[] iv = new byte[16];
+        Arrays.fill(iv, (byte) 7);
+        final byte[] head = Arrays.copyOf(iv, 18);
+        head[16] = 'd';
+        head[17] = 'a';
+        // small relay buffers, so the bytes before the failure reach the client
+        setField(remoteFileServiceImpl, "relayBufferPool", new RelayBufferPool(2, 1));
+        when(resInstanceChooser.getResUrls(any())).thenReturn(Arrays.asList("http://res1", "http://res2"));
+        when(client.newCall(any())).thenAnswer(invocation -> {
+            Request request = (Request) invocation.getArguments()[0];
+            requests.add(request);
+            // resumed at 2 with an IV, RES sends from the start of the AES block
+            return resCall(request, requests.size() == 1 ? failingAfter(head) : "__ta".getBytes());
+        });
+
+        remoteFileServiceImpl.getFile(FILEID, "aes128", "destinationKey", "", 0, 0,
+                new MockHttpServletRequest(), response);
+
+        assertThat(response.getContentAsByteArray().length, equalTo(20));
+        assertThat(new String(response.getContentAsByteArray(), 16, 4), equalTo("data"));
+        assertThat(requests.get(1).url().queryParameter("destinationIV"),
+                equalTo(Base64.getEncoder().encodeToString(iv)));
+        assertThat(requests.get(1).url().queryParameter("startCoordinate"), equalTo("2"));
+    }
+
     @Test(expected = NoContentException.class)
     public void getFile_WhenGivenFileEncryptionAlgorithmGpg_ThenThrowsNoContentException() {
         when(keyService.getEncryptionAlgorithm(FILEID)).thenReturn("gpg");
@@ -215,6 +303,44 @@ public class RemoteFileServiceImplTest {
                     new MockHttpServletResponse());
     }
     
+    /**
+     * Test class for
+     * {@link RemoteFileServiceImpl#getById(Authentication, String, String, String, String, long, long, List, List, List, boolean, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify the chunks the reader pulled from RES are returned to the budget
+     * once the request is done.
+     */
+    @Test
+    public void testGetByIdReleasesChunkBudget() throws Exception {
+        final ChunkBudget budget = new ChunkBudget(1024);
+        setField(remoteFileServiceImpl, "chunkBudget", budget);
+        setField(remoteFileServiceImpl, "readAheadSlots", 2);
+        setField(remoteFileServiceImpl, "readAheadChunks", 1);
+        setField(remoteFileServiceImpl, "resDataChunkSize", 4);
+        final SimpleSeekableStream indexStream = mock(SimpleSeekableStream.class);
+        whenNew(SimpleSeekableStream.class).withAnyArguments().thenReturn(indexStream);
+        when(client.newCall(any())).thenAnswer(invocation -> resCall((Request) invocation.getArguments()[0], new byte[4]));
+
+        // The reader starts on the data, which takes a chunk and its read-ahead from the budget
+        final long[] usedWhileOpen = new long[1];
+        final SamReader samReader = mock(SamReader.class);
+        when(samReader.getFileHeader()).thenReturn(samFileHeader);
+        when(SamReaderFactory.make().open(any(SamInputResource.class))).thenAnswer(invocation -> {
+            final SamInputResource resource = (SamInputResource) invocation.getArguments()[0];
+            resStream(resource).read();
+            usedWhileOpen[0] = budget.getUsedBytes();
+            return samReader;
+        });
+
+        remoteFileServiceImpl.getById("file", FILEID, "plain", "reference", 0, 0, null, null, null,
+                true, "destinationFormat", "destinationKey", new MockHttpServletRequest(),
+                new MockHttpServletResponse());
+
+        assertThat(usedWhileOpen[0], equalTo(8L));
+        assertThat(budget.getUsedBytes(), equalTo(0L));
+        verify(samReader).close();
+        verify(indexStream).close();
+    }
+
     /**
      * Test class for
      * {@link RemoteFileServiceImpl#getVCFById(Authentication, String, String, String, String, long, long, List, List, List, boolean, String, String, HttpServletRequest, HttpServletResponse)}.
@@ -264,6 +390,51 @@ public class RemoteFileServiceImplTest {
         assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
     }
 
+    // The RES data stream behind a SamInputResource, which htsjdk doesn't hand out
+    private static SeekableStream resStream(SamInputResource resource) {
+        return (SeekableStream) getField(getField(resource, "source"), "seekableStreamResource");
+    }
+
+    private static Call resCall(Request request, Object body) throws Exception {
+        final Call call = mock(Call.class);
+        final ResponseBody responseBody = body instanceof Source
+                ? ResponseBody.create(MediaType.parse("application/octet-stream"), -1, Okio.buffer((Source) body))
+                : ResponseBody.create(MediaType.parse("application/octet-stream"), (byte[]) body);
+        when(call.execute()).thenReturn(new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(responseBody)
+                .build());
+        return call;
+    }
+
+    // A RES response that breaks off after the given bytes
+    private static Source failingAfter(byte[] data) {
+        return new Source() {
+            private boolean sent;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                if (sent)
+                    throw new IOException("Connection reset");
+                sent = true;
+                sink.write(data);
+                return data.length;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     @Before
     public void initMocks() throws Exception {
@@ -277,7 +448,7 @@ public class RemoteFileServiceImplTest {
         final ResponseEntity<File[]> forEntity = mock(ResponseEntity.class);
         final ResponseEntity<Long> forSize = mock(ResponseEntity.class);
         final ResponseEntity<FileIndexFile[]> forResponseEntity = mock(ResponseEntity.class);
-        final HttpResult xferResult = mock(HttpResult.class);
+        final Call call = mock(Call.class);
         final SimpleSeekableStream simpleSeekableStream = mock(SimpleSeekableStream.class);
         final SamReaderFactory samReaderFactory = mock(SamReaderFactory.class);
         final SamReader samReader = mock(SamReader.class);
@@ -329,6 +500,8 @@ public class RemoteFileServiceImplTest {
         when(loadBalancer.choose("FILEDATABASE")).thenReturn(fileDatabaseServiceInstance);
         SimpleDiscoveryProperties.SimpleServiceInstance resServiceInstance = new SimpleDiscoveryProperties.SimpleServiceInstance(new URL(RES_SERVICE).toURI());
         when(loadBalancer.choose("RES2")).thenReturn(resServiceInstance);
+        when(resInstanceChooser.getResUrl(any())).thenReturn(RES_SERVICE);
+        when(resInstanceChooser.getResUrls(any())).thenReturn(Collections.singletonList(RES_SERVICE));
 
         when(restTemplate.getForEntity(FILEDATABASE_SERVICE + "/file/{fileId}/datasets", FileDataset[].class, FILEID))
                 .thenReturn(forEntityDataset);
@@ -341,7 +514,14 @@ public class RemoteFileServiceImplTest {
                 .thenReturn(forResponseEntity);
         when(restTemplate.getForEntity(RES_SERVICE + "/file/archive/{fileId}/size", Long.class, FILEID))
                 .thenReturn(forSize);
-        when(restTemplate.execute(any(), any(), any(), any())).thenReturn(xferResult);
+        when(client.newCall(any())).thenReturn(call);
+        when(call.execute()).thenReturn(new Response.Builder()
+                .request(new Request.Builder().url(RES_SERVICE).build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(MediaType.parse("application/octet-stream"), "data"))
+                .build());
     }
 
 }
@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PageChecksumInputStreamTest {
+
+    private static final int PAGE_SIZE = 100;
+
+    private final byte[] data = new byte[250];
+
+    public PageChecksumInputStreamTest() {
+        new Random(7).nextBytes(data);
+    }
+
+    @Test
+    public void verifiesSegmentsBetweenPageBoundaries() throws IOException {
+        // file coordinates 130-380: segments 130-200, 200-300, 300-380
+        byte[] sent = transfer(0, 250, 70, 170);
+
+        PageChecksumInputStream in = new PageChecksumInputStream(new ByteArrayInputStream(sent), 130, 250, PAGE_SIZE);
+
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        assertTrue(in.verify());
+    }
+
+    @Test
+    public void detectsCorruptedData() throws IOException {
+        byte[] sent = transfer(0, 250, 70, 170);
+        sent[150] ^= 1;
+
+        PageChecksumInputStream in = new PageChecksumInputStream(new ByteArrayInputStream(sent), 130, 250, PAGE_SIZE);
+
+        IOUtils.toByteArray(in);
+        assertFalse(in.verify());
+    }
+
+    @Test
+    public void aligned() throws IOException {
+        byte[] sent = transfer(0, 200, 100);
+
+        PageChecksumInputStream in = new PageChecksumInputStream(new ByteArrayInputStream(sent), 0, 200, PAGE_SIZE);
+
+        assertEquals(200, IOUtils.toByteArray(in).length);
+        assertTrue(in.verify());
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsOnShortTransfer() throws IOException {
+        PageChecksumInputStream in = new PageChecksumInputStream(
+                new ByteArrayInputStream(Arrays.copyOf(data, 120)), 0, 250, PAGE_SIZE);
+
+        IOUtils.toByteArray(in);
+    }
+
+    // Data bytes [from, to) followed by the CRC32 of the segments ending at the given offsets (and at 'to')
+    private byte[] transfer(int from, int to, int... boundaries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(data, from, to - from);
+        int start = from;
+        for (int end : append(boundaries, to)) {
+            CRC32 crc = new CRC32();
+            crc.update(data, start, end - start);
+            out.writeInt((int) crc.getValue());
+            start = end;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+
+}
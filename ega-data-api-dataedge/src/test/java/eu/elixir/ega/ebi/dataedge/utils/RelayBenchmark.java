@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the download relay, single threaded (one core): the
+ * former copy with an 8 KB buffer through an MD5 digest on each side, against
+ * {@link RelayBufferPool} hashing once per buffer, and both without hashing
+ * (crc32 mode, checked by {@link PageChecksumInputStream}). Per-core
+ * throughput is 64 MB divided by the time per operation. Not run by the unit
+ * tests; start with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=eu.elixir.ega.ebi.dataedge.utils.RelayBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RelayBenchmark {
+
+    private static final int SIZE = 64 * 1024 * 1024;
+
+    @Param({"1048576", "4194304"})
+    public int bufferSize;
+
+    private final byte[] data = new byte[SIZE];
+    private RelayBufferPool pool;
+
+    @Setup
+    public void setup() {
+        new Random(1).nextBytes(data);
+        pool = new RelayBufferPool(bufferSize, 1);
+    }
+
+    @Benchmark
+    public long copyWithDigests() throws IOException, NoSuchAlgorithmException {
+        MessageDigest inDigest = MessageDigest.getInstance("MD5");
+        MessageDigest outDigest = MessageDigest.getInstance("MD5");
+        long b = ByteStreams.copy(new DigestInputStream(new ByteArrayInputStream(data), inDigest),
+                new DigestOutputStream(ByteStreams.nullOutputStream(), outDigest));
+        return b + inDigest.digest()[0] + outDigest.digest()[0];
+    }
+
+    @Benchmark
+    public long relayWithDigest() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        long b = pool.relay(new ByteArrayInputStream(data), ByteStreams.nullOutputStream(), digest);
+        return b + digest.digest()[0];
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        return ByteStreams.copy(new ByteArrayInputStream(data), ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public long relay() throws IOException {
+        return pool.relay(new ByteArrayInputStream(data), ByteStreams.nullOutputStream(), null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RelayBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RelayBufferPoolTest {
+
+    private final byte[] data = new byte[2500];
+
+    public RelayBufferPoolTest() {
+        new Random(3).nextBytes(data);
+    }
+
+    @Test
+    public void relaysInFullBuffers() throws Exception {
+        RelayBufferPool pool = new RelayBufferPool(1000, 2);
+        List<Integer> writes = new ArrayList<>();
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.add(len);
+                target.write(b, off, len);
+            }
+        };
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+
+        long copied = pool.relay(new SmallReads(new ByteArrayInputStream(data)), out, digest);
+
+        assertEquals(2500, copied);
+        assertArrayEquals(data, target.toByteArray());
+        assertEquals("[1000, 1000, 500]", writes.toString());
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(data), digest.digest());
+    }
+
+    @Test
+    public void reusesBuffers() {
+        RelayBufferPool pool = new RelayBufferPool(1000, 1);
+        byte[] buffer = pool.acquire();
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire());
+        pool.release(new byte[10]); // not of the pool's size
+        assertEquals(1000, pool.acquire().length);
+    }
+
+    // Returns at most 300 bytes per read, like a network stream
+    private static class SmallReads extends FilterInputStream {
+
+        SmallReads(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 300));
+        }
+    }
+
+}
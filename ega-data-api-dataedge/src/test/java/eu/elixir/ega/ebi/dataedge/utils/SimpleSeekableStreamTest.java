@@ -34,6 +34,7 @@ import org.springframework.http.HttpRange;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -133,6 +134,77 @@ public class SimpleSeekableStreamTest {
         }
     }
 
+    @Test
+    public void readsAheadOfSequentialReads() throws IOException {
+        // Arrange
+        URL uri = new URL("http://localhost:" + mockServerRule.getPort() + "/test-data");
+        ReadAheadMetrics.Counters counters = new ReadAheadMetrics.Counters();
+
+        // Act
+        SimpleSeekableStream stream = new SimpleSeekableStream(Collections.singletonList(uri), client, 100,
+                RESOURCE_SIZE, 3, 1, counters);
+        byte[] buffer = new byte[250];
+        stream.read(buffer, 0, 250);
+
+        // Assert
+        for (int i = 0; i < 250; ++i) {
+            assertEquals(i % 0xff, buffer[i] & 0xff);
+        }
+        // chunk 0 on demand, 1 to 3 ahead as the reader moved on
+        assertEquals(3, counters.getPrefetches());
+        assertEquals(1, counters.getMisses());
+        assertEquals(2, counters.getHits());
+        assertEquals(250, counters.getConsumedBytes());
+    }
+
+    @Test
+    public void readAheadStaysWithinBudget() throws IOException {
+        // Arrange
+        URL uri = new URL("http://localhost:" + mockServerRule.getPort() + "/test-data");
+        ReadAheadMetrics.Counters counters = new ReadAheadMetrics.Counters();
+        ChunkBudget budget = new ChunkBudget(200);
+
+        // Act
+        SimpleSeekableStream stream = new SimpleSeekableStream(Collections.singletonList(uri), client, 100,
+                RESOURCE_SIZE, 3, 1, counters, budget);
+        byte[] buffer = new byte[250];
+        stream.read(buffer, 0, 250);
+
+        // Assert
+        for (int i = 0; i < 250; ++i) {
+            assertEquals(i % 0xff, buffer[i] & 0xff);
+        }
+        // chunks 0 and 1 take the budget, chunk 2 is fetched on demand and nothing is read ahead of it
+        assertEquals(1, counters.getPrefetches());
+        assertEquals(2, counters.getMisses());
+        assertEquals(200, budget.getUsedBytes());
+        stream.close();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void seekingBackReadsHeldChunks() throws IOException {
+        // Arrange
+        URL uri = new URL("http://localhost:" + mockServerRule.getPort() + "/test-data");
+        ReadAheadMetrics.Counters counters = new ReadAheadMetrics.Counters();
+
+        // Act
+        SimpleSeekableStream stream = new SimpleSeekableStream(Collections.singletonList(uri), client, 100,
+                RESOURCE_SIZE, 2, 0, counters);
+        stream.seek(150);
+        stream.read();
+        stream.seek(50);
+        int value = stream.read();
+        stream.seek(160);
+
+        // Assert
+        assertEquals(50, value);
+        assertEquals(160, stream.read());
+        assertEquals(2, counters.getRequests());
+        assertEquals(200, counters.getFetchedBytes());
+        mockServerClient.verify(request().withPath("/test-data").withMethod("GET"), VerificationTimes.exactly(2));
+    }
+
     @Test(expected = IOException.class)
     public void seekToInvalidPositionThrowsException() throws IOException {
         // Arrange
@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.dataedge.utils;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.junit.MockServerRule;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+
+public class StripedDownloadTest {
+    @Rule
+    public MockServerRule mockServerRule = new MockServerRule(this, 1338);
+
+    private MockServerClient mockServerClient;
+
+    private final byte[] data = new byte[1000];
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private final StripedDownload stripedDownload = new StripedDownload(new OkHttpClient(), executor, 300, 2);
+
+    private final StripedDownload.StripeRequest requests = (resUrl, start, end) -> new Request.Builder()
+            .url(resUrl + "/file?startCoordinate=" + start + "&endCoordinate=" + end)
+            .build();
+
+    @Before
+    public void setupMockResource() {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        mockServerClient.reset();
+        for (String instance : Arrays.asList("/res1", "/res2")) {
+            mockServerClient.when(request(instance + "/file")).respond(httpRequest -> {
+                int start = Integer.parseInt(httpRequest.getFirstQueryStringParameter("startCoordinate"));
+                int end = Integer.parseInt(httpRequest.getFirstQueryStringParameter("endCoordinate"));
+                return HttpResponse.response().withBody(Arrays.copyOfRange(data, start, end));
+            });
+        }
+        mockServerClient.when(request("/down/file")).respond(HttpResponse.response().withStatusCode(503));
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writesStripesInOrder() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long bytes = stripedDownload.transfer(Arrays.asList(url("/res1"), url("/res2")), 100, 1000, requests, out);
+
+        assertEquals(900, bytes);
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 1000), out.toByteArray());
+        // stripes 100-400 and 700-1000 from the first instance, 400-700 from the second
+        mockServerClient.verify(request("/res1/file"), VerificationTimes.exactly(2));
+        mockServerClient.verify(request("/res2/file"), VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void failsOverToTheNextInstance() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        stripedDownload.transfer(Arrays.asList(url("/down"), url("/res1")), 0, 1000, requests, out);
+
+        assertArrayEquals(data, out.toByteArray());
+        mockServerClient.verify(request("/res1/file"), VerificationTimes.exactly(4));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenNoInstanceHasTheStripe() throws IOException {
+        stripedDownload.transfer(Arrays.asList(url("/down")), 0, 1000, requests, new ByteArrayOutputStream());
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + mockServerRule.getPort() + path;
+    }
+
+}
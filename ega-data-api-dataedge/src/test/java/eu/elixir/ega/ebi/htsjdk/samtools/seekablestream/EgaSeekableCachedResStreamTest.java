@@ -0,0 +1,101 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.htsjdk.samtools.seekablestream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.junit.MockServerRule;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+import java.io.IOException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+
+public class EgaSeekableCachedResStreamTest {
+    @Rule
+    public MockServerRule mockServerRule = new MockServerRule(this, 1339);
+
+    private MockServerClient mockServerClient;
+
+    private static final int PAGE_SIZE = 1024 * 1024;
+    private static final long FILE_SIZE = 16 + 2 * PAGE_SIZE + 1000; // as archived, with the IV
+
+    @Before
+    public void setupMockResource() {
+        mockServerClient.reset();
+        mockServerClient.when(request("/file/.*")).respond(httpRequest -> {
+            String start = httpRequest.getFirstQueryStringParameter("startCoordinate");
+            if (start.isEmpty())
+                return HttpResponse.response().withHeader("Content-Length", String.valueOf(FILE_SIZE));
+            int from = Integer.parseInt(start);
+            int to = Integer.parseInt(httpRequest.getFirstQueryStringParameter("endCoordinate"));
+            byte[] body = new byte[to - from];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) ((from + i) % 251);
+            }
+            return HttpResponse.response().withBody(body);
+        });
+    }
+
+    @Test
+    public void streamsOfTheSameFileSharePages() throws IOException {
+        // Arrange
+        URL url = new URL("http://localhost:" + mockServerRule.getPort() + "/file/shared");
+        EgaSeekableCachedResStream first = new EgaSeekableCachedResStream(url, null, null, FILE_SIZE);
+        EgaSeekableCachedResStream second = new EgaSeekableCachedResStream(url, null, null, FILE_SIZE);
+
+        // Act
+        byte[] a = new byte[100];
+        byte[] b = new byte[100];
+        first.seek(PAGE_SIZE + 10);
+        first.read(a, 0, 100);
+        second.seek(PAGE_SIZE + 10);
+        second.read(b, 0, 100);
+
+        // Assert
+        for (int i = 0; i < 100; i++) {
+            assertEquals((PAGE_SIZE + 10 + i) % 251, a[i] & 0xff);
+            assertEquals((PAGE_SIZE + 10 + i) % 251, b[i] & 0xff);
+        }
+        mockServerClient.verify(request().withPath("/file/shared")
+                .withQueryStringParameter("startCoordinate", String.valueOf(PAGE_SIZE)), VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void readsTheLastPartialPage() throws IOException {
+        // Arrange
+        URL url = new URL("http://localhost:" + mockServerRule.getPort() + "/file/last-page");
+        EgaSeekableCachedResStream stream = new EgaSeekableCachedResStream(url, null, null, FILE_SIZE);
+
+        // Act
+        stream.seek(2 * PAGE_SIZE + 990);
+        byte[] buffer = new byte[100];
+        int read = stream.read(buffer, 0, 100);
+
+        // Assert
+        assertEquals(10, read);
+        assertEquals((2 * PAGE_SIZE + 999) % 251, buffer[9] & 0xff);
+        assertEquals(-1, stream.read(buffer, 0, 100));
+    }
+
+}
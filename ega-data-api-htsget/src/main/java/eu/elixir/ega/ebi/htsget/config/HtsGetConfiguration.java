@@ -21,6 +21,7 @@ import eu.elixir.ega.ebi.commons.config.CachingMultipleRemoteTokenService;
 import eu.elixir.ega.ebi.commons.config.CachingRemoteTokenService;
 import eu.elixir.ega.ebi.commons.config.MyAccessTokenConverter;
 import eu.elixir.ega.ebi.commons.config.MyUserAuthenticationConverter;
+import eu.elixir.ega.ebi.commons.shared.config.ResInstanceChooser;
 import eu.elixir.ega.ebi.commons.shared.dto.MyExternalConfig;
 import eu.elixir.ega.ebi.commons.shared.service.FileDatasetService;
 import eu.elixir.ega.ebi.commons.shared.service.FileInfoService;
@@ -36,7 +37,6 @@ import eu.elixir.ega.ebi.htsget.service.TicketServiceV2;
 import eu.elixir.ega.ebi.htsget.service.internal.ResClient;
 import eu.elixir.ega.ebi.htsget.service.internal.TicketServiceV2Impl;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
@@ -68,8 +68,8 @@ public class HtsGetConfiguration {
     }
 
     @Bean
-    public ResClient resClient(LoadBalancerClient loadBalancerClient) {
-        return new ResClient(loadBalancerClient);
+    public ResClient resClient(ResInstanceChooser resInstanceChooser) {
+        return new ResClient(resInstanceChooser);
     }
 
     @Bean
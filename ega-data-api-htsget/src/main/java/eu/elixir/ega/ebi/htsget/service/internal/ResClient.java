@@ -1,25 +1,39 @@
 package eu.elixir.ega.ebi.htsget.service.internal;
 
+import eu.elixir.ega.ebi.commons.shared.config.ResInstanceChooser;
 import htsjdk.samtools.seekablestream.SeekableHTTPStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
-import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import lombok.extern.slf4j.Slf4j;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 
+@Slf4j
 public class ResClient {
-    private LoadBalancerClient loadBalancer;
+    private ResInstanceChooser resInstanceChooser;
 
-    public ResClient(LoadBalancerClient loadBalancer) {
-        this.loadBalancer = loadBalancer;
+    public ResClient(ResInstanceChooser resInstanceChooser) {
+        this.resInstanceChooser = resInstanceChooser;
     }
 
+    /**
+     * Opens the file on the RES instance chosen for it. SeekableHTTPStream
+     * asks for the length when it is created and gets none if the instance
+     * doesn't answer; in that case the next instance is tried.
+     */
     public SeekableStream getStreamForFile(String id) throws MalformedURLException {
-        URL resDataURL = new URL(resURL() + "/file/archive/" + id);
-        return new SeekableHTTPStream(resDataURL);
-    }
-
-    private String resURL() {
-        return loadBalancer.choose("RES2").getUri().toString();
+        List<String> resURLs = resInstanceChooser.getResUrls(id);
+        SeekableStream first = null;
+        for (String resURL : resURLs) {
+            URL resDataURL = new URL(resURL + "/file/archive/" + id);
+            SeekableStream stream = new SeekableHTTPStream(resDataURL);
+            if (stream.length() >= 0)
+                return stream;
+            log.warn("No length for '" + id + "' from " + resURL + ", trying the next RES instance");
+            if (first == null)
+                first = stream;
+        }
+        return first;
     }
 }
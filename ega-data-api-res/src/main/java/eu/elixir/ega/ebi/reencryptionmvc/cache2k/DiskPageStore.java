@@ -0,0 +1,306 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import com.google.common.io.BaseEncoding;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Local disk tier below the in-memory page cache. It keeps archive pages
+ * still encrypted, exactly as read from FIRE/S3, one file per page, so no
+ * plain data is ever written to disk.
+ * <p>
+ * Pages are written to a temporary file, synced and renamed into place once
+ * complete, so a crash leaves at most a stray temporary file. Each page file
+ * ends with the CRC32 of the page; a page that does not match it is deleted
+ * and read from the archive again. On startup the
+ * index is rebuilt from the directory (temporary files are deleted, last
+ * modification time gives the LRU order). Least recently used pages are
+ * deleted when the store grows beyond its size cap.
+ */
+@Slf4j
+public class DiskPageStore {
+
+    private static final String PAGE_SUFFIX = ".page";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int CHECKSUM_BYTES = 4;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // page file name -> size, in access order; guarded by 'this'
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DiskPageStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        rebuildIndex();
+    }
+
+    /**
+     * Reads an encrypted page into {@code buffer}.
+     *
+     * @return true if the page was on disk with the expected length and checksum
+     */
+    public boolean read(String id, int page, byte[] buffer, int length) {
+        String name = fileName(id, page);
+        synchronized (this) {
+            if (index.get(name) == null) { // get, not containsKey: moves the page to the end of the LRU order
+                misses.incrementAndGet();
+                return false;
+            }
+        }
+        Path file = directory.resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != length + CHECKSUM_BYTES) {
+                log.warn("Removing page file '" + name + "' size " + channel.size() + ", expected "
+                        + (length + CHECKSUM_BYTES));
+                remove(name);
+                misses.incrementAndGet();
+                return false;
+            }
+            readFully(channel, ByteBuffer.wrap(buffer, 0, length), 0);
+            ByteBuffer checksum = ByteBuffer.allocate(CHECKSUM_BYTES);
+            readFully(channel, checksum, length);
+            CRC32 crc = new CRC32();
+            crc.update(buffer, 0, length);
+            if ((int) crc.getValue() != checksum.getInt(0)) {
+                log.warn("Removing page file '" + name + "', checksum mismatch");
+                remove(name);
+                misses.incrementAndGet();
+                return false;
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return true;
+        } catch (IOException ex) {
+            log.warn("Error reading page file '" + name + "' " + ex.getMessage());
+            remove(name);
+            misses.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Starts writing an encrypted page. Slices may be written concurrently
+     * and in any order; the page becomes visible on {@link PageWriter#commit()}.
+     *
+     * @return a writer, or null if the page can't be stored right now
+     */
+    public PageWriter write(String id, int page, int length) {
+        try {
+            return new PageWriter(fileName(id, page), length);
+        } catch (IOException ex) {
+            log.warn("Error creating page file for id '" + id + "' page '" + page + "' " + ex.getMessage());
+            return null;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void add(String name, long size) {
+        Long previous = index.put(name, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    private synchronized void remove(String name) {
+        Long size = index.remove(name);
+        if (size != null)
+            totalBytes -= size;
+        delete(directory.resolve(name));
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            delete(directory.resolve(entry.getKey()));
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        List<Path> pages = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX))
+                    delete(file); // interrupted write
+                else if (name.endsWith(PAGE_SUFFIX))
+                    pages.add(file);
+            }
+        }
+        Map<Path, Long> modified = new LinkedHashMap<>();
+        for (Path file : pages) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        pages.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+        synchronized (this) {
+            for (Path file : pages) {
+                long size = Files.size(file);
+                index.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evict();
+        }
+        log.info("Disk page store '" + directory + "': " + index.size() + " pages, " + totalBytes + " bytes");
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warn("Error deleting page file '" + file + "' " + ex.getMessage());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0)
+                throw new EOFException("page file ends at " + position);
+            position += read;
+        }
+    }
+
+    private static String fileName(String id, int page) {
+        return BaseEncoding.base32Hex().omitPadding().encode(id.getBytes(StandardCharsets.UTF_8))
+                + "-" + page + PAGE_SUFFIX;
+    }
+
+    /**
+     * An encrypted page being written to a temporary file. Slices arrive out
+     * of order, so the checksum is computed from the file on commit, while the
+     * page is still in the OS page cache.
+     */
+    public class PageWriter {
+
+        private final String name;
+        private final long length;
+        private final Path tempFile;
+        private final FileChannel channel;
+        private volatile boolean failed;
+
+        private PageWriter(String name, long length) throws IOException {
+            this.name = name;
+            this.length = length;
+            this.tempFile = Files.createTempFile(directory, name, TEMP_SUFFIX);
+            this.channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        // Errors only mark the page as not storable, the caller goes on with the data it has
+        public void write(byte[] buffer, int offset, int count, long position) {
+            ByteBuffer src = ByteBuffer.wrap(buffer, offset, count);
+            try {
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+            } catch (IOException ex) {
+                log.warn("Error writing page file '" + name + "' " + ex.getMessage());
+                failed = true;
+            }
+        }
+
+        public void commit() {
+            if (failed) {
+                abort();
+                return;
+            }
+            try {
+                try {
+                    if (channel.size() != length)
+                        throw new IOException("incomplete page, " + channel.size() + " of " + length + " bytes");
+                    ByteBuffer checksum = ByteBuffer.allocate(CHECKSUM_BYTES);
+                    checksum.putInt(0, (int) checksum());
+                    while (checksum.hasRemaining()) {
+                        channel.write(checksum, length + checksum.position());
+                    }
+                    channel.force(true); // data on disk before the page becomes visible under its name
+                } finally {
+                    channel.close();
+                }
+                Files.move(tempFile, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                add(name, length + CHECKSUM_BYTES);
+            } catch (IOException ex) {
+                log.warn("Error storing page file '" + name + "' " + ex.getMessage());
+                delete(tempFile);
+            }
+        }
+
+        private long checksum() throws IOException {
+            CRC32 crc = new CRC32();
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            for (long position = 0; position < length; ) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), length - position));
+                readFully(channel, chunk, position);
+                crc.update(chunk.array(), 0, chunk.limit());
+                position += chunk.limit();
+            }
+            return crc.getValue();
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.warn("Error closing page file '" + name + "' " + ex.getMessage());
+            }
+            delete(tempFile);
+        }
+
+    }
+
+}
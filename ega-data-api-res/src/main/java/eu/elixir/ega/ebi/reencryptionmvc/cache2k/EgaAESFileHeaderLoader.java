@@ -0,0 +1,146 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import com.google.gson.Gson;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.ArchiveSource;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaFile;
+import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
+import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.cache2k.integration.CacheLoader;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Loads the header of an archive file by id: file location and size from
+ * FILEDATABASE, the key from KEYSERVER and the IV from the start of the file.
+ * The header cache calls it once per id for concurrent requests, and again in
+ * the background shortly before an entry expires.
+ */
+@Slf4j
+public class EgaAESFileHeaderLoader extends CacheLoader<String, EgaAESFileHeader> {
+
+    private final CloseableHttpClient httpClient;
+    private final LoadBalancerClient loadBalancer;
+    private final FireCommons fireCommons;
+    private final S3Commons s3Commons;
+
+    public EgaAESFileHeaderLoader(CloseableHttpClient httpClient, LoadBalancerClient loadBalancer,
+                                  FireCommons fireCommons, S3Commons s3Commons) {
+        this.httpClient = httpClient;
+        this.loadBalancer = loadBalancer;
+        this.fireCommons = fireCommons;
+        this.s3Commons = s3Commons;
+    }
+
+    @Override
+    public EgaAESFileHeader load(String id) throws IOException {
+        long start = System.currentTimeMillis();
+        EgaFile[] files = getEgaFile(id);
+        String encryptionKey = getEncryptionKey(id);
+
+        ArchiveSource source = new ArchiveSource(files[0].getFileName(), files[0].getFileSize(), "", "aes256", encryptionKey, null);
+
+        // Obtain Signed S3 URL, place in Header Cache
+        EgaAESFileHeader header = getFileEncryptionHeader(source.getFileUrl(), source.getAuth(), source.getSize(),
+                source.getEncryptionKey());
+        log.info(" --- " + id + " size: " + source.getSize() + " time to load: " + (System.currentTimeMillis() - start));
+        return header;
+    }
+
+    private String getServiceURL(String service) {
+        return loadBalancer.choose(service).getUri().toString();
+    }
+
+    private String getEncryptionKey(String id) throws IOException {
+        String keyServerRequestUri = getServiceURL("KEYSERVER") + "/keys/filekeys/" + id;
+        HttpGet keyRequest = new HttpGet(keyServerRequestUri);
+
+        // encryptionKey
+        try (CloseableHttpResponse response = httpClient.execute(keyRequest)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new ServerErrorException("Retrieve header at: '" + keyServerRequestUri + "' returned error code: '" +
+                        response.getStatusLine().getStatusCode() + "' File id", id);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
+            String encryptionKey = reader.readLine().trim();
+            reader.close();
+            if (encryptionKey == null || encryptionKey.length() == 0) {
+                throw new ServerErrorException("Retrieved header at: '" + keyServerRequestUri + "' is empty. File id", id);
+            }
+            return encryptionKey;
+        } catch (IOException ex) {
+            throw new ServerErrorException("Error Retrieve header File data", id);
+        }
+    }
+
+    private EgaFile[] getEgaFile(String id) throws IOException {
+        String fileDatabaseURL = getServiceURL("FILEDATABASE");
+        HttpGet sourceRequest = new HttpGet(fileDatabaseURL + "/file/" + id);
+
+        // EgaFile
+        try (CloseableHttpResponse sourceResponse = httpClient.execute(sourceRequest)) {
+            if (sourceResponse.getEntity() == null)
+                throw new ServerErrorException("Error Attempting to Load Cache Header File data ", id);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(sourceResponse.getEntity().getContent()));
+            Gson gson = new Gson();
+            EgaFile[] files = gson.fromJson(reader, EgaFile[].class);
+            reader.close();
+            if (files == null || files.length == 0) {
+                throw new ServerErrorException("Error Loading Cache Header File data", id);
+            }
+            return files;
+        } catch (IOException ex) {
+            throw new ServerErrorException("Error Loading Cache Header File data", id);
+        }
+    }
+
+    private EgaAESFileHeader getFileEncryptionHeader(String path, String httpAuth, long fileSize, String sourceKey)
+            throws IOException {
+        String url;
+        HttpGet request;
+        if (path.startsWith("s3")) {
+            url = s3Commons.getS3ObjectUrl(path);
+            request = new HttpGet(url);
+        } else {
+            url = fireCommons.getFireObjectUrl(path);
+            request = new HttpGet(url);
+            fireCommons.addAuthenticationForFireRequest(httpAuth, url, request);
+            request.addHeader("Range", "bytes=0-16");
+        }
+
+        byte[] IV = new byte[16];
+        try (CloseableHttpResponse response = httpClient.execute(request);
+             DataInputStream content = new DataInputStream(response.getEntity().getContent());) {
+            content.readFully(IV);
+            return new EgaAESFileHeader(IV, "aes256", fileSize, url, sourceKey);
+        }
+    }
+
+}
@@ -18,26 +18,47 @@ package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
+import org.cache2k.integration.CacheLoader;
 import org.springframework.beans.factory.FactoryBean;
 
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Header cache of archive files. Entries are loaded through the cache, so
+ * concurrent requests for a file wait on one load instead of each going to
+ * FILEDATABASE, KEYSERVER and the archive. When an entry expires it is
+ * reloaded in the background while the old header is still served, and if
+ * that reload fails the old header stays in use for the resilience period.
+ *
  * @author asenf
  */
 public class My2KCacheFactory implements FactoryBean<Cache<String, EgaAESFileHeader>> { //extends SimpleJdbcDaoSupport
 
+    private final CacheLoader<String, EgaAESFileHeader> loader;
+    private final long capacity;
+    private final long ttlMinutes;
+    private final long resilienceSeconds;
+
+    public My2KCacheFactory(CacheLoader<String, EgaAESFileHeader> loader, long capacity, long ttlMinutes,
+                            long resilienceSeconds) {
+        this.loader = loader;
+        this.capacity = capacity;
+        this.ttlMinutes = ttlMinutes;
+        this.resilienceSeconds = resilienceSeconds;
+    }
+
     @Override
     public Cache<String, EgaAESFileHeader> getObject() {
         return new Cache2kBuilder<String, EgaAESFileHeader>() {
         }
-                .expireAfterWrite(50, TimeUnit.MINUTES)    // expire/refresh after 50 minutes
-                .resilienceDuration(30, TimeUnit.SECONDS) // cope with at most 30 seconds
-                // outage before propagating
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)      // expire/refresh after ttl
+                .resilienceDuration(resilienceSeconds, TimeUnit.SECONDS) // cope with outages this long
+                // before propagating
                 // exceptions
-                .refreshAhead(false)                       // keep fresh when expiring
-                .entryCapacity(1000)
-                //.loader(this::expensiveOperation)         // auto populating function
+                .keepDataAfterExpired(true)                // stale header while refreshing
+                .refreshAhead(true)                        // keep fresh when expiring
+                .entryCapacity(capacity)
+                .loader(loader)                            // auto populating function
                 .build();
     }
 
@@ -15,221 +15,567 @@
  */
 package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.io.CountingInputStream;
-import com.google.gson.Gson;
-import eu.elixir.ega.ebi.reencryptionmvc.dto.ArchiveSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
-import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaFile;
+import eu.elixir.ega.ebi.reencryptionmvc.exception.NotFoundException;
 import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
-import eu.elixir.ega.ebi.reencryptionmvc.util.DecryptionUtils;
+import eu.elixir.ega.ebi.reencryptionmvc.util.AesCtr;
+import eu.elixir.ega.ebi.reencryptionmvc.util.DerivedKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
-import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
-import htsjdk.samtools.seekablestream.cipher.ebi.Glue;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.cache2k.Cache;
-import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
+import org.cache2k.integration.CacheLoaderException;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Optional;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author asenf
  */
 @Slf4j
 public class My2KCachePageFactory {
+
+    // Cipher.getInstance is comparatively expensive; one AES/CTR instance per loader thread
+    private static final ThreadLocal<Cipher> ctrCipher = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AesCtr.TRANSFORMATION);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
     private final CloseableHttpClient httpClient;
     private Cache<String, EgaAESFileHeader> myHeaderCache;
     private final int pageSize;
-    private final LoadBalancerClient loadBalancer;
     private final FireCommons fireCommons;
-    private final S3Commons s3Commons;
+    private final DerivedKeyCache keyCache;
+
+    /**
+     * Decrypted pages, bounded by total size in bytes. Concurrent misses on
+     * the same page block on a single load instead of each going to the archive.
+     */
+    private final LoadingCache<PageKey, CachePage> myPageCache;
+
+    /*
+     * Page buffers, bounded in total (page cache included); a load waits this
+     * long for a buffer before it fails.
+     */
+    private static final long BUFFER_WAIT_MILLIS = 30000;
+    private final PageBufferPool bufferPool;
+
+    // Optional local disk tier of encrypted pages, null if not configured
+    private final DiskPageStore diskPageStore;
+
+    // Cluster mode: owners of pages among the RES nodes, null if not enabled
+    private final PeerPageRing peerRing;
+
+    /*
+     * Read-ahead: pages are loaded into the page cache on a dedicated pool.
+     * The semaphore caps the number of pages being fetched ahead across all
+     * transfers (the memory held in flight); when it is exhausted read-ahead
+     * is skipped and the transfer falls back to loading pages on demand.
+     */
+    private final ExecutorService readAheadExecutor;
+    private final Semaphore readAheadPermits;
+    private final Set<PageKey> readAheadInFlight = ConcurrentHashMap.newKeySet();
+    private final int readAheadMaxPages;
+
+    /*
+     * Parallel fetch: a page is split into sub-range requests on the pooled
+     * http client. The number of connections per page is set per backend.
+     */
+    private static final int MIN_PART_SIZE = 1024 * 1024;
+    private final ExecutorService fetchExecutor;
+    private final int fireConnections;
+    private final int s3Connections;
+
+    // Duplicates slow sub-range reads, null if not enabled
+    private final RequestHedger hedger;
+
+    private final StageMetrics stageMetrics;
 
-    public My2KCachePageFactory(final CloseableHttpClient httpClient, Cache<String, EgaAESFileHeader> myHeaderCache, LoadBalancerClient loadBalancer,
-                                int pageSize, FireCommons fireCommons, S3Commons s3Commons) {
+    public My2KCachePageFactory(final CloseableHttpClient httpClient, Cache<String, EgaAESFileHeader> myHeaderCache,
+                                int pageSize, long pageCacheSize, FireCommons fireCommons,
+                                DerivedKeyCache keyCache, int readAheadThreads, int readAheadMaxPages, int readAheadMaxInFlight,
+                                                int fetchThreads, int fireConnections, int s3Connections, long bufferPoolSize,
+                                long bufferMaxBytes, DiskPageStore diskPageStore, PeerPageRing peerRing,
+                                RequestHedger hedger, StageMetrics stageMetrics) {
         this.httpClient = httpClient;
         this.myHeaderCache = myHeaderCache;
-        this.loadBalancer = loadBalancer;
         this.pageSize = pageSize;
         this.fireCommons = fireCommons;
-        this.s3Commons = s3Commons;
+        this.keyCache = keyCache;
+        if (bufferMaxBytes < pageCacheSize + pageSize)
+            throw new IllegalArgumentException("Page buffer budget " + bufferMaxBytes
+                    + " leaves no room beyond the page cache of " + pageCacheSize + " bytes");
+        this.bufferPool = new PageBufferPool(pageSize, bufferPoolSize, bufferMaxBytes, BUFFER_WAIT_MILLIS);
+        this.diskPageStore = diskPageStore;
+        this.peerRing = peerRing;
+        this.hedger = hedger;
+        this.stageMetrics = stageMetrics == null ? new StageMetrics() : stageMetrics;
+        this.myPageCache = CacheBuilder.newBuilder()
+                .maximumWeight(pageCacheSize)
+                .weigher((PageKey key, CachePage page) -> page.getPage().length)
+                .removalListener((RemovalNotification<PageKey, CachePage> notification) -> notification.getValue().release())
+                .recordStats()
+                .build(new CacheLoader<PageKey, CachePage>() {
+                    @Override
+                    public CachePage load(PageKey key) throws Exception {
+                        return loadPage(key.getId(), key.getPage(), true);
+                    }
+                });
+        this.readAheadMaxPages = readAheadMaxPages;
+        this.readAheadPermits = new Semaphore(readAheadMaxInFlight);
+        this.readAheadExecutor = new ThreadPoolExecutor(readAheadThreads, readAheadThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("res-read-ahead-%d").setDaemon(true).build());
+        this.fireConnections = fireConnections;
+        this.s3Connections = s3Connections;
+        this.fetchExecutor = new ThreadPoolExecutor(fetchThreads, fetchThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("res-page-fetch-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Returns the decrypted page of an archive file, from the page cache if
+     * possible. The page is shared with other readers and must not be
+     * modified; the caller has to {@link CachePage#release()} it when done.
+     *
+     * @param id archive file id
+     * @param cachePage zero-based page index
+     * @return plain page content
+     * @throws IOException if the page could not be loaded
+     */
+    public CachePage downloadPage(String id, int cachePage) throws IOException {
+        long start = System.nanoTime();
+        CachePage page = getPage(id, cachePage, true);
+        stageMetrics.record(StageMetrics.PAGE_WAIT, System.nanoTime() - start, page.getLength());
+        return page;
+    }
+
+    /**
+     * Returns a page this node owns on the peer ring, for a peer that asked
+     * for it. The page is loaded from the archive if necessary, never from
+     * another peer, so nodes with different views of the ring can't send a
+     * request around in circles.
+     *
+     * @throws NotFoundException if the page is outside of the file
+     * @see #downloadPage(String, int)
+     */
+    public CachePage downloadOwnedPage(String id, int cachePage) throws IOException {
+        // Peers only ask for pages of the file; anything else would fill the cache with empty pages
+        if (cachePage < 0 || (long) cachePage * pageSize + 16 >= getEgaAESFileHeader(id).getSize())
+            throw new NotFoundException("Page out of range, id", id + " page " + cachePage);
+        return getPage(id, cachePage, false);
+    }
+
+    private CachePage getPage(String id, int cachePage, boolean askPeer) throws IOException {
+        PageKey key = new PageKey(id, cachePage);
+        try {
+            CachePage page = myPageCache.get(key, () -> loadPage(id, cachePage, askPeer));
+            if (page.retain())
+                return page;
+            // Evicted and released in between (or too large for the cache): load it for this reader only
+            return loadPage(id, cachePage, askPeer);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new ServerErrorException("Error loading page '" + cachePage + "' id '" + id + "'", ex);
+        }
     }
 
-    private String getServiceURL(String service) {
-        return loadBalancer.choose(service).getUri().toString();
+    /**
+     * Starts loading the pages following the one currently being sent, so they
+     * are in the page cache by the time the transfer asks for them. The number
+     * of pages fetched ahead follows the ratio of the average archive load time
+     * to the time the client takes to drain one page: a fast client gets a
+     * deeper window, a slow client needs none beyond the next page.
+     *
+     * @param id archive file id
+     * @param nextPage first page to read ahead
+     * @param lastPage last page of the requested range
+     * @param drainNanos average time to write one page to the client, 0 if unknown
+     */
+    public void readAhead(String id, int nextPage, int lastPage, long drainNanos) {
+        if (readAheadMaxPages <= 0)
+            return;
+        int window = 1;
+        double loadNanos = myPageCache.stats().averageLoadPenalty();
+        if (drainNanos > 0 && loadNanos > drainNanos)
+            window = (int) Math.min(readAheadMaxPages, (long) Math.ceil(loadNanos / drainNanos));
+
+        for (int page = nextPage; page <= lastPage && page < nextPage + window; page++) {
+            PageKey key = new PageKey(id, page);
+            if (myPageCache.asMap().containsKey(key) || !readAheadInFlight.add(key))
+                continue;
+            if (!readAheadPermits.tryAcquire()) {
+                readAheadInFlight.remove(key);
+                return;
+            }
+            try {
+                readAheadExecutor.execute(() -> {
+                    try {
+                        myPageCache.get(key);
+                    } catch (Exception ex) {
+                        // the transfer retries the page itself and reports the error
+                        log.warn("Read-ahead failed for id '" + id + "' page '" + key.getPage() + "' " + ex.getMessage());
+                    } finally {
+                        readAheadInFlight.remove(key);
+                        readAheadPermits.release();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                readAheadInFlight.remove(key);
+                readAheadPermits.release();
+                return;
+            }
+        }
+    }
+
+    public void shutdown() {
+        readAheadExecutor.shutdownNow();
+        fetchExecutor.shutdownNow();
+        if (peerRing != null)
+            peerRing.shutdown();
+        if (hedger != null)
+            hedger.shutdown();
+    }
+
+    /**
+     * Hit, miss, load and eviction counters of the page cache.
+     *
+     * @return page cache statistics
+     */
+    public CacheStats getPageCacheStats() {
+        return myPageCache.stats();
+    }
+
+    /**
+     * @return the local disk tier, null if not configured
+     */
+    public DiskPageStore getDiskPageStore() {
+        return diskPageStore;
+    }
+
+    /**
+     * @return the peer ring, null if not running in cluster mode
+     */
+    public PeerPageRing getPeerRing() {
+        return peerRing;
+    }
+
+    /**
+     * @return the read hedger, null if hedging is not enabled
+     */
+    public RequestHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * @return latency histograms of the transfer stages
+     */
+    public StageMetrics getStageMetrics() {
+        return stageMetrics;
+    }
+
+    /**
+     * @return number of pages currently held in the page cache
+     */
+    public long getPageCacheEntries() {
+        return myPageCache.size();
     }
 
-    public byte[] downloadPage(String id, int cachePage) throws IOException {
-        String sourceKey;
+    private CachePage loadPage(String id, int cachePage, boolean askPeer) throws IOException {
+        long start = System.nanoTime();
+        CachePage page = readPage(id, cachePage, askPeer);
+        page.getChecksum(); // on the loading thread, once for all transfers of the page
+        stageMetrics.record(StageMetrics.PAGE_LOAD, System.nanoTime() - start, page.getLength());
+        return page;
+    }
+
+    private CachePage readPage(String id, int cachePage, boolean askPeer) throws IOException {
         EgaAESFileHeader header = getEgaAESFileHeader(id);
-        sourceKey = header.getSourceKey();
 
         long startCoordinate = (long) cachePage * pageSize; // Account for IV at start of File
         long endCoordinate = startCoordinate + pageSize;
         long fileSize = header.getSize();
         endCoordinate = endCoordinate > fileSize ? fileSize : endCoordinate; // End of file
 
-        HttpGet request = new HttpGet(header.getUrl());
-        request.addHeader("Authorization", "Basic ".concat(fireCommons.getBase64EncodedCredentials()));
-
         // Add range header - logical (unencrypted) coordinates to file coordinates (add IV handling '+16')
         if ((startCoordinate + 16) >= header.getSize())
-            return new byte[]{};
+            return new CachePage(new byte[]{});
 
-        String byteRange = "bytes=" + (startCoordinate + 16) + "-" + (endCoordinate + 16);
-        request.addHeader("Range", byteRange);
         long pageSize_ = ((endCoordinate + 16) > header.getSize() ? header.getSize() : (endCoordinate + 16)) - (startCoordinate + 16);
         pageSize_ = pageSize > pageSize_ ? pageSize_ : pageSize;
 
-        byte[] buffer = new byte[(int) pageSize_];
-            int pageCnt = 0;
-            boolean pageSuccess = false;
-            do {
-                try (CloseableHttpResponse response = httpClient.execute(request)) {
-                    if (response.getStatusLine().getStatusCode() != 200
-                            && response.getStatusLine().getStatusCode() != 206) {
-                        log.error("FIRE error loading Cache Page Code "
-                                + response.getStatusLine().getStatusCode()
-                                + " for id '" + id + "' page '" + cachePage + "'");
-                        continue;
-                    }
-
-                    // Read response from HTTP call, count bytes read (encrypted Data)
-                    try (CountingInputStream cIn = new CountingInputStream(response.getEntity().getContent());
-                         DataInputStream dis = new DataInputStream(cIn);) {
-                        dis.readFully(buffer);
-                        pageSuccess = true;
-                    }
-                } catch (Throwable th) {
-                    log.error("FIRE error loading Cache Page Code  for id '" + id + "' page '" + cachePage
-                            + "' attempt '" + pageCnt + "' ", th);
-                }
-            } while (!pageSuccess && pageCnt++ < 3);
-
-            if(!pageSuccess)
-                throw new ServerErrorException("FIRE error can't read data, file id " + id + " ,page " +cachePage);
-            
-            // Decrypt, store plain in cache
-            try {
-                byte[] newIV = new byte[16]; // IV always 16 bytes long
-                System.arraycopy(header.getIV(), 0, newIV, 0, 16); // preserved start value
-                if (startCoordinate > 0) DecryptionUtils.byteIncrementFast(newIV, startCoordinate);
-                return decrypt(buffer, sourceKey, newIV);
-            } catch (Exception ex) {
-                log.error("Error decrypting '" + byteRange + "' id '" + id + "' " + ex.getMessage(), ex);
-                throw new ServerErrorException("Error decrypting '" + byteRange + "' id '" + id + "' " + ex.getMessage(), ex);
-            } finally {
-                request.releaseConnection();
-            }
+        int length = (int) pageSize_;
+        byte[] buffer = bufferPool.acquire(length);
+        try {
+            return fillPage(id, cachePage, header, startCoordinate, buffer, length, askPeer);
+        } catch (IOException | RuntimeException ex) {
+            bufferPool.discard(buffer); // not reused, a cancelled part may still write to it
+            throw ex;
+        }
     }
 
-    private EgaAESFileHeader getEgaAESFileHeader(String id) throws IOException {
-        if (!myHeaderCache.containsKey(id)) { // Get Header (once in 24h)
-            EgaFile[] files;
-            String encryptionKey;
-            files = getEgaFile(id);
-            encryptionKey = getEncryptionKey(id);
+    private CachePage fillPage(String id, int cachePage, EgaAESFileHeader header, long startCoordinate,
+                               byte[] buffer, int length, boolean askPeer) throws IOException {
+        // Local disk tier holds the encrypted page
+        if (diskPageStore != null && diskPageStore.read(id, cachePage, buffer, length)) {
+            decryptPart(id, header, startCoordinate, buffer, 0, length);
+            return new CachePage(buffer, length, bufferPool);
+        }
 
-            ArchiveSource source = new ArchiveSource(files[0].getFileName(), files[0].getFileSize(), "", "aes256", encryptionKey, null);
-            String sourceKey = source.getEncryptionKey();
+        // Cluster mode: the owner of the page loads it from the archive once for all nodes
+        URI owner = askPeer && peerRing != null ? peerRing.getOwner(id, cachePage) : null;
+        if (owner != null && loadFromPeer(owner, id, cachePage, buffer, length))
+            return new CachePage(buffer, length, bufferPool);
 
-            String fileLocation = source.getFileUrl();
-            String httpAuth = source.getAuth();
-            long fileSize = source.getSize();
+        DiskPageStore.PageWriter diskWriter = diskPageStore == null ? null : diskPageStore.write(id, cachePage, length);
+        int partSize = getPartSize(length, isS3Url(header.getUrl()) ? s3Connections : fireConnections);
 
-            // Obtain Signed S3 URL, place in Header Cache
-            myHeaderCache.put(id, getFileEncryptionHeader(fileLocation, httpAuth, fileSize, sourceKey)
-                    .orElseThrow(() -> new ServerErrorException("Header could not be loaded, File id", id)));
-            log.info(" --- " + id + " size: " + fileSize + " time to load: " + 0); // dt);
+        // Sub-ranges after the first are fetched (and decrypted) on the fetch pool, the first one on this thread
+        List<Future<?>> parts = new ArrayList<>();
+        boolean complete = false;
+        try {
+            for (int offset = partSize; offset < length; offset += partSize) {
+                final int partOffset = offset;
+                final int partLength = Math.min(partSize, length - offset);
+                parts.add(fetchExecutor.submit(() -> {
+                    loadPart(id, cachePage, header, startCoordinate, buffer, partOffset, partLength, diskWriter);
+                    return null;
+                }));
+            }
+            loadPart(id, cachePage, header, startCoordinate, buffer, 0, Math.min(partSize, length), diskWriter);
+            for (Future<?> part : parts) {
+                part.get();
+            }
+            complete = true;
+            return new CachePage(buffer, length, bufferPool);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerErrorException("Interrupted loading page '" + cachePage + "' id '" + id + "'", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new ServerErrorException("Error loading page '" + cachePage + "' id '" + id + "'", ex.getCause());
+        } finally {
+            for (Future<?> part : parts) {
+                part.cancel(true); // no-op for completed parts
+            }
+            if (diskWriter != null) {
+                if (complete)
+                    diskWriter.commit();
+                else
+                    diskWriter.abort();
+            }
         }
-        return myHeaderCache.get(id);
     }
 
-    private String getEncryptionKey(String id) throws IOException {
-        String keyServerRequestUri = getServiceURL("KEYSERVER") + "/keys/filekeys/" + id;
-        HttpGet keyRequest = new HttpGet(keyServerRequestUri);
-
-        // encryptionKey
-        try (CloseableHttpResponse response = httpClient.execute(keyRequest)) {
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new ServerErrorException("Retrieve header at: '" + keyServerRequestUri + "' returned error code: '" +
-                        response.getStatusLine().getStatusCode() + "' File id", id);
+    /*
+     * Fetch a plain page from the peer owning it. Any error falls back to the
+     * archive, so a node leaving the cluster only costs a timeout.
+     */
+    private boolean loadFromPeer(URI peer, String id, int cachePage, byte[] buffer, int length) {
+        HttpGet request = new HttpGet(peer + "/cache/page/" + id + "/" + cachePage);
+        request.setConfig(peerRing.getRequestConfig());
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            if (response.getStatusLine().getStatusCode() != 200 || response.getEntity() == null
+                    || response.getEntity().getContentLength() != length) {
+                throw new IOException("status " + response.getStatusLine().getStatusCode());
             }
-            BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-            String encryptionKey = reader.readLine().trim();
-            reader.close();
-            if (encryptionKey == null || encryptionKey.length() == 0) {
-                throw new ServerErrorException("Retrieved header at: '" + keyServerRequestUri + "' is empty. File id", id);
+            try (DataInputStream content = new DataInputStream(response.getEntity().getContent())) {
+                content.readFully(buffer, 0, length);
             }
-            return encryptionKey;
+            peerRing.countLoad(true);
+            return true;
         } catch (IOException ex) {
-            throw new ServerErrorException("Error Retrieve header File data", id);
+            log.warn("Error loading page '" + cachePage + "' id '" + id + "' from peer " + peer + " " + ex.getMessage());
+            peerRing.countLoad(false);
+            return false;
         }
     }
 
-    private EgaFile[] getEgaFile(String id) throws IOException {
-        String fileDatabaseURL = getServiceURL("FILEDATABASE");
-        HttpGet sourceRequest = new HttpGet(fileDatabaseURL + "/file/" + id);
-
-        // EgaFile
-        try (CloseableHttpResponse sourceResponse = httpClient.execute(sourceRequest)) {
-            if (sourceResponse.getEntity() == null)
-                throw new ServerErrorException("Error Attempting to Load Cache Header File data ", id);
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(sourceResponse.getEntity().getContent()));
-            Gson gson = new Gson();
-            EgaFile[] files = gson.fromJson(reader, EgaFile[].class);
-            reader.close();
-            if (files == null || files.length == 0) {
-                throw new ServerErrorException("Error Loading Cache Header File data", id);
+    /*
+     * Fetch one sub-range of a page into the page buffer and decrypt it in place.
+     * Offsets are multiples of 16, so the CTR counter for the slice follows
+     * directly from its position in the file. Only this sub-range is retried,
+     * and a slow read of it may be duplicated by the hedger.
+     * The encrypted bytes go to the disk tier first, if there is one.
+     */
+    private void loadPart(String id, int cachePage, EgaAESFileHeader header, long startCoordinate,
+                          byte[] buffer, int offset, int length, DiskPageStore.PageWriter diskWriter) throws IOException {
+        long partStart = startCoordinate + offset;
+        String byteRange = "bytes=" + (partStart + 16) + "-" + (partStart + 16 + length - 1);
+
+        int pageCnt = 0;
+        boolean pageSuccess = false;
+        do {
+            try {
+                pageSuccess = hedger == null
+                        ? new RangeRead(id, cachePage, header.getUrl(), byteRange, length).read(buffer, offset)
+                        : hedger.read(() -> new RangeRead(id, cachePage, header.getUrl(), byteRange, length),
+                                buffer, offset, length);
+            } catch (Throwable th) {
+                log.error("FIRE error loading Cache Page Code  for id '" + id + "' page '" + cachePage
+                        + "' range '" + byteRange + "' attempt '" + pageCnt + "' ", th);
             }
-            return files;
-        } catch (IOException ex) {
-            throw new ServerErrorException("Error Loading Cache Header File data", id);
-        }
+        } while (!pageSuccess && pageCnt++ < 3 && !Thread.currentThread().isInterrupted());
+
+        if (!pageSuccess)
+            throw new ServerErrorException("FIRE error can't read data, file id " + id + " ,page " + cachePage
+                    + " ,range " + byteRange);
+
+        if (diskWriter != null)
+            diskWriter.write(buffer, offset, length, offset);
+        decryptPart(id, header, startCoordinate, buffer, offset, length);
     }
 
-    private Optional<EgaAESFileHeader> getFileEncryptionHeader(String path, String httpAuth, long fileSize, String sourceKey) {
-        String url;
-        HttpGet request;
-        if (path.startsWith("s3")) {
-            url = s3Commons.getS3ObjectUrl(path);
-            request = new HttpGet(url);
-        } else {
-            url = fireCommons.getFireObjectUrl(path);
-            request = new HttpGet(url);
-            fireCommons.addAuthenticationForFireRequest(httpAuth, url, request);
-            request.addHeader("Range", "bytes=0-16");
+    // Decrypt a 16-byte aligned slice of a page in place
+    private void decryptPart(String id, EgaAESFileHeader header, long startCoordinate,
+                             byte[] buffer, int offset, int length) {
+        long partStart = startCoordinate + offset;
+        long start = System.nanoTime();
+        try {
+            decrypt(buffer, offset, length, header.getSourceKey(), header.getIV(), partStart);
+            stageMetrics.record(StageMetrics.DECRYPT, System.nanoTime() - start, length);
+        } catch (GeneralSecurityException ex) {
+            String byteRange = "bytes=" + (partStart + 16) + "-" + (partStart + 16 + length - 1);
+            log.error("Error decrypting '" + byteRange + "' id '" + id + "' " + ex.getMessage(), ex);
+            throw new ServerErrorException("Error decrypting '" + byteRange + "' id '" + id + "' " + ex.getMessage(), ex);
         }
+    }
 
-        byte[] IV = new byte[16];
-        try (CloseableHttpResponse response = httpClient.execute(request);
-             DataInputStream content = new DataInputStream(response.getEntity().getContent());) {
-            content.readFully(IV);
-            return Optional.of(new EgaAESFileHeader(IV, "aes256", fileSize, url, sourceKey));
-        } catch (IOException ex) {
-            log.error(ex.getMessage(), ex);
-            return Optional.empty();
+    // Split a page into at most 'connections' 16-byte aligned sub-ranges, none smaller than MIN_PART_SIZE
+    private static int getPartSize(int length, int connections) {
+        int parts = Math.max(1, Math.min(connections, length / MIN_PART_SIZE));
+        int partSize = (length + parts - 1) / parts;
+        return ((partSize + 15) / 16) * 16;
+    }
+
+    // Presigned S3 URLs carry their signature in the query string, FIRE URLs don't
+    private static boolean isS3Url(String url) {
+        return url != null && (url.contains("X-Amz-Signature") || url.contains("AWSAccessKeyId"));
+    }
+
+    private EgaAESFileHeader getEgaAESFileHeader(String id) {
+        try {
+            return myHeaderCache.get(id); // loaded once for concurrent requests, see My2KCacheFactory
+        } catch (CacheLoaderException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new ServerErrorException("Header could not be loaded, File id", id);
         }
     }
 
     /*
-     * Decryption Function
+     * Decryption Function - in place, AES/CTR keeps the length unchanged
      */
-    private byte[] decrypt(byte[] cipherText, String encryptionKey, byte[] IV) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        SecretKey key_ = Glue.getInstance().getKey(encryptionKey.toCharArray(), 256);
-        cipher.init(Cipher.DECRYPT_MODE, key_, new IvParameterSpec(IV));
-        return cipher.doFinal(cipherText);
+    private void decrypt(byte[] buffer, int offset, int length, String encryptionKey, byte[] IV, long position)
+            throws GeneralSecurityException {
+        SecretKey key_ = keyCache.getKey(encryptionKey, 256);
+        Cipher cipher = AesCtr.init(ctrCipher.get(), Cipher.DECRYPT_MODE, key_, IV, position);
+        cipher.doFinal(buffer, offset, length, buffer, offset);
+    }
+
+    /*
+     * One request for a sub-range of an archive file
+     */
+    private final class RangeRead implements RequestHedger.Read {
+
+        private final String id;
+        private final int cachePage;
+        private final String byteRange;
+        private final int length;
+        private final HttpGet request;
+
+        private RangeRead(String id, int cachePage, String url, String byteRange, int length) {
+            this.id = id;
+            this.cachePage = cachePage;
+            this.byteRange = byteRange;
+            this.length = length;
+            this.request = new HttpGet(url);
+            request.addHeader("Authorization", "Basic ".concat(fireCommons.getBase64EncodedCredentials()));
+            request.addHeader("Range", byteRange);
+        }
+
+        @Override
+        public boolean read(byte[] target, int offset) throws IOException {
+            long start = System.nanoTime();
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                if (response.getStatusLine().getStatusCode() != 200
+                        && response.getStatusLine().getStatusCode() != 206) {
+                    log.error("FIRE error loading Cache Page Code "
+                            + response.getStatusLine().getStatusCode()
+                            + " for id '" + id + "' page '" + cachePage + "' range '" + byteRange + "'");
+                    return false;
+                }
+
+                // Read response from HTTP call, count bytes read (encrypted Data)
+                try (CountingInputStream cIn = new CountingInputStream(response.getEntity().getContent());
+                     DataInputStream dis = new DataInputStream(cIn);) {
+                    dis.readFully(target, offset, length);
+                    stageMetrics.record(StageMetrics.ARCHIVE_FETCH, System.nanoTime() - start, length);
+                    return true;
+                }
+            } finally {
+                request.releaseConnection();
+            }
+        }
+
+        @Override
+        public void abort() {
+            request.abort();
+        }
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @Getter
+    @ToString
+    private static final class PageKey {
+        private final String id;
+        private final int page;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of page sized buffers. Released buffers are kept for reuse up to
+ * {@code maxPooledBytes}; beyond that they are left to the garbage collector.
+ * <p>
+ * Buffers handed out and not yet released or discarded are bounded by
+ * {@code maxOutstandingBytes}, which includes the pages held by the page
+ * cache, so it has to be larger than the page cache. When the budget is used
+ * up {@link #acquire(int)} waits for a buffer to come back, and fails after
+ * {@code maxWaitMillis}.
+ */
+public class PageBufferPool {
+
+    private final int bufferSize;
+    private final long maxPooledBytes;
+    private final long maxWaitMillis;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    // One permit per page sized buffer that may be outstanding
+    private final Semaphore budget;
+    private final int maxPermits;
+
+    public PageBufferPool(int bufferSize, long maxPooledBytes, long maxOutstandingBytes, long maxWaitMillis) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxPermits = (int) Math.min(Integer.MAX_VALUE, maxOutstandingBytes / bufferSize);
+        this.budget = new Semaphore(maxPermits);
+    }
+
+    /**
+     * @param size minimum size required
+     * @return a buffer of at least {@code size} bytes, contents undefined
+     * @throws ServerErrorException if no budget became free in time
+     */
+    public byte[] acquire(int size) {
+        int permits = permits(Math.max(size, bufferSize));
+        try {
+            if (!budget.tryAcquire(permits, maxWaitMillis, TimeUnit.MILLISECONDS))
+                throw new ServerErrorException("No page buffer free after " + maxWaitMillis + " ms, "
+                        + getOutstandingBytes() + " bytes in use");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerErrorException("Interrupted waiting for a page buffer", ex);
+        }
+        if (size > bufferSize)
+            return new byte[size];
+        byte[] buffer = free.poll();
+        if (buffer == null)
+            return new byte[bufferSize];
+        pooledBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        // pooled before the budget is given back, so a waiting acquire can reuse it
+        if (buffer.length == bufferSize) {
+            if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes)
+                pooledBytes.addAndGet(-buffer.length);
+            else
+                free.offer(buffer);
+        }
+        budget.release(permits(buffer.length));
+    }
+
+    /**
+     * Gives back the budget of a buffer that must not be reused, such as one
+     * a cancelled read may still write to.
+     */
+    public void discard(byte[] buffer) {
+        budget.release(permits(buffer.length));
+    }
+
+    /**
+     * @return bytes currently held by free buffers
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return bytes of the buffers handed out and not yet released
+     */
+    public long getOutstandingBytes() {
+        return (long) (maxPermits - budget.availablePermits()) * bufferSize;
+    }
+
+    private int permits(int length) {
+        return (length + bufferSize - 1) / bufferSize;
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consistent-hash ring of the RES instances registered under one service id.
+ * Every page of every file has one owner on the ring; in cluster mode a node
+ * missing a page asks the owner for it, so a hot file is fetched from the
+ * archive once for the cluster instead of once per node.
+ * <p>
+ * Each instance is placed on the ring at several points (virtual nodes), so
+ * pages spread evenly and a node joining or leaving only moves its own share
+ * of the pages. Membership is read from the registry periodically; instances
+ * are told apart by host and port, so several nodes can run on one machine.
+ */
+@Slf4j
+public class PeerPageRing {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final DiscoveryClient discoveryClient;
+    private final String serviceId;
+    private final int virtualNodes;
+    private final RequestConfig requestConfig;
+    private final ScheduledExecutorService refresher;
+
+    private volatile List<URI> members = Collections.emptyList();
+    private volatile NavigableMap<Long, URI> ring = new TreeMap<>();
+    private volatile URI self;
+
+    private final AtomicLong peerLoads = new AtomicLong();
+    private final AtomicLong peerFailures = new AtomicLong();
+
+    public PeerPageRing(DiscoveryClient discoveryClient, String serviceId, int virtualNodes, int timeoutMillis,
+                        long refreshSeconds) {
+        this.discoveryClient = discoveryClient;
+        this.serviceId = serviceId;
+        this.virtualNodes = virtualNodes;
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("res-peer-ring-%d").setDaemon(true).build());
+        if (refreshSeconds > 0)
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Re-reads the members from the registry. The ring is only rebuilt if
+     * membership changed; a registry error keeps the current ring.
+     */
+    public void refresh() {
+        try {
+            ServiceInstance local = discoveryClient.getLocalServiceInstance();
+            self = local == null ? null : address(local);
+            TreeSet<URI> current = new TreeSet<>();
+            for (ServiceInstance instance : discoveryClient.getInstances(serviceId)) {
+                current.add(address(instance));
+            }
+            if (current.equals(new TreeSet<>(members)))
+                return;
+
+            NavigableMap<Long, URI> newRing = new TreeMap<>();
+            for (URI member : current) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    newRing.put(hash(member + "#" + i), member);
+                }
+            }
+            ring = newRing;
+            members = Collections.unmodifiableList(new ArrayList<>(current));
+            log.info("Peer ring '" + serviceId + "': " + current);
+        } catch (Exception ex) {
+            log.warn("Error refreshing peer ring '" + serviceId + "' " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return base URL of the node owning the page, null if that is this node
+     * or there are no peers
+     */
+    public URI getOwner(String id, int page) {
+        NavigableMap<Long, URI> ring = this.ring;
+        if (ring.isEmpty())
+            return null;
+        Map.Entry<Long, URI> owner = ring.ceilingEntry(hash(id + ":" + page));
+        if (owner == null)
+            owner = ring.firstEntry(); // wrap around
+        return owner.getValue().equals(self) ? null : owner.getValue();
+    }
+
+    public List<URI> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return timeouts for peer requests; peers that don't answer in time are
+     * skipped in favour of the archive
+     */
+    public RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    public long getPeerLoads() {
+        return peerLoads.get();
+    }
+
+    public long getPeerFailures() {
+        return peerFailures.get();
+    }
+
+    void countLoad(boolean success) {
+        (success ? peerLoads : peerFailures).incrementAndGet();
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    private static URI address(ServiceInstance instance) {
+        return URI.create((instance.isSecure() ? "https" : "http") + "://" + instance.getHost() + ":" + instance.getPort());
+    }
+
+    private static long hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Hedged archive reads. A read that takes longer than a percentile of the
+ * recent read times gets a duplicate; whichever finishes first is used and
+ * the other one is aborted.
+ * <p>
+ * The first read writes straight into the caller's buffer, the duplicate
+ * into a buffer of its own that is copied over if it wins. Only the calling
+ * thread ever writes to the caller's buffer, after its own read has ended.
+ * Duplicates run on a small pool; when all of its threads are busy no
+ * duplicate is sent, which caps the extra load on the archive.
+ */
+@Slf4j
+public class RequestHedger {
+
+    private static final int SAMPLES = 1000;
+    private static final int MIN_SAMPLES = 20; // no hedging until the percentile means something
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService hedgeExecutor;
+
+    // Recent read times in ms, a ring buffer; guarded by 'this'
+    private final long[] latencies = new long[SAMPLES];
+    private int nextSample;
+    private int samples;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param percentile     read time percentile (0-100) after which a duplicate is sent
+     * @param minDelayMillis lower bound of the delay, so fast reads are never duplicated
+     * @param threads        duplicates in flight at most
+     */
+    public RequestHedger(double percentile, long minDelayMillis, int threads) {
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("res-hedge-timer-%d").setDaemon(true).build());
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.timer = scheduler;
+        this.hedgeExecutor = new ThreadPoolExecutor(0, threads,
+                60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("res-hedge-%d").setDaemon(true).build());
+    }
+
+    /**
+     * One read of a range, from a fresh request.
+     */
+    public interface Read {
+
+        /**
+         * Reads the range into {@code target} starting at {@code offset}.
+         *
+         * @return false if the archive answered with an error
+         */
+        boolean read(byte[] target, int offset) throws IOException;
+
+        /**
+         * Aborts a read in progress, called from another thread.
+         */
+        void abort();
+    }
+
+    /**
+     * Reads a range of {@code length} bytes into {@code buffer}, sending a
+     * duplicate read if the first one is slow.
+     *
+     * @param reads  creates a new read of the range
+     * @return false if neither read got the data
+     * @throws IOException from the first read, if the duplicate didn't succeed either
+     */
+    public boolean read(Supplier<Read> reads, byte[] buffer, int offset, int length) throws IOException {
+        this.reads.incrementAndGet();
+        long start = System.nanoTime();
+        Race race = new Race(reads.get(), length);
+
+        long delay = getDelayMillis();
+        ScheduledFuture<?> hedgeTimer = delay == Long.MAX_VALUE ? null
+                : timer.schedule(() -> startHedge(race, reads), delay, TimeUnit.MILLISECONDS);
+
+        boolean success = false;
+        IOException error = null;
+        try {
+            success = race.primary.read(buffer, offset);
+        } catch (IOException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            error = new IOException(ex);
+        }
+
+        if (hedgeTimer != null)
+            hedgeTimer.cancel(false);
+        byte[] hedgeData = race.finishPrimary(success);
+        if (hedgeData != null) {
+            System.arraycopy(hedgeData, 0, buffer, offset, length);
+            hedgeWins.incrementAndGet();
+            success = true;
+        } else if (error != null) {
+            throw error;
+        }
+        if (success)
+            addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return success;
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return current delay before a duplicate is sent, Long.MAX_VALUE while there are too few samples
+     */
+    public synchronized long getDelayMillis() {
+        if (samples < MIN_SAMPLES)
+            return Long.MAX_VALUE;
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(samples - 1, Math.ceil(percentile / 100 * samples) - 1);
+        return Math.max(minDelayMillis, sorted[Math.max(0, index)]);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        hedgeExecutor.shutdownNow();
+    }
+
+    synchronized void addSample(long millis) {
+        latencies[nextSample] = millis;
+        nextSample = (nextSample + 1) % SAMPLES;
+        samples = Math.min(samples + 1, SAMPLES);
+    }
+
+    private void startHedge(Race race, Supplier<Read> reads) {
+        Read hedge = reads.get();
+        if (!race.startHedge(hedge))
+            return;
+        // counted before it is handed over, so it is visible once the hedge has run
+        hedges.incrementAndGet();
+        try {
+            hedgeExecutor.execute(() -> {
+                byte[] data = new byte[race.length];
+                boolean success = false;
+                try {
+                    success = hedge.read(data, 0);
+                } catch (Exception ex) {
+                    log.warn("Hedged read failed " + ex.getMessage());
+                }
+                race.finishHedge(success ? data : null);
+            });
+        } catch (RejectedExecutionException ex) {
+            hedges.decrementAndGet();
+            race.finishHedge(null); // all hedge threads busy
+        }
+    }
+
+    /*
+     * State shared by the first read and its duplicate. The first read to
+     * finish successfully wins and aborts the other one.
+     */
+    private static final class Race {
+
+        private final Read primary;
+        private final int length;
+        private Read hedge;
+        private boolean primaryDone;
+        private boolean hedgeDone;
+        private byte[] hedgeData;
+
+        private Race(Read primary, int length) {
+            this.primary = primary;
+            this.length = length;
+        }
+
+        synchronized boolean startHedge(Read hedge) {
+            if (primaryDone)
+                return false;
+            this.hedge = hedge;
+            return true;
+        }
+
+        synchronized void finishHedge(byte[] data) {
+            hedgeDone = true;
+            if (data != null && !primaryDone) {
+                hedgeData = data;
+                primary.abort();
+            }
+            notifyAll();
+        }
+
+        /*
+         * Called by the first read once it has ended. Returns the duplicate's
+         * data if that won, waiting for it if the first read failed.
+         */
+        synchronized byte[] finishPrimary(boolean success) {
+            if (hedgeData != null)
+                return hedgeData;
+            if (success) {
+                primaryDone = true;
+                if (hedge != null && !hedgeDone)
+                    hedge.abort();
+                return null;
+            }
+            while (hedge != null && !hedgeDone) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    hedge.abort();
+                    break;
+                }
+            }
+            primaryDone = true;
+            return hedgeData;
+        }
+    }
+
+}
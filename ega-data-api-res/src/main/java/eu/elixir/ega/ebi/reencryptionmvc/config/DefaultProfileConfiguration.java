@@ -1,6 +1,6 @@
 package eu.elixir.ega.ebi.reencryptionmvc.config;
 
-import java.util.Base64;
+import java.util.concurrent.Executors;
 
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.cache2k.Cache;
@@ -12,6 +12,8 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
 import org.springframework.web.client.RestTemplate;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ArchiveService;
@@ -19,49 +21,39 @@ import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ResService;
 import eu.elixir.ega.ebi.reencryptionmvc.service.internal.CacheResServiceImpl;
 import eu.elixir.ega.ebi.reencryptionmvc.service.internal.CleversaveArchiveServiceImpl;
+import eu.elixir.ega.ebi.reencryptionmvc.util.DerivedKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PgpKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
-import uk.ac.ebi.ega.fire.service.IFireService;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
 
 @Configuration
 @Profile("default")
 @EnableDiscoveryClient
 public class DefaultProfileConfiguration {
 
-    @Value("${fire.user:testUser}")
-    private String fireUsername;
-    @Value("${fire.password:testPass}")
-    private String firePassword;
-    @Value("${fire.url:testUrl}")
-    private String fireURL;
-
-    @Value("${ega.ebi.aws.access.key:#{null}}")
-    private String awsKey;
-    @Value("${ega.ebi.aws.access.secret:#{null}}")
-    private String awsSecretKey;
-    @Value("${ega.ebi.aws.endpoint.url:#{null}}")
-    private String awsEndpointUrl;
-    @Value("${ega.ebi.aws.endpoint.region:#{null}}")
-    private String awsRegion;
+    @Value("${res.transfer.async.enabled:false}")
+    private boolean asyncTransfer;
+    @Value("${res.transfer.async.threads:8}")
+    private int asyncTransferThreads;
 
     @Bean
     @Primary
     public ResService initCacheResService(KeyService keyService, Cache<String, EgaAESFileHeader> myHeaderCache,
-            My2KCachePageFactory pageDownloader, IFireService fireService, CloseableHttpClient httpClient) {
-        return new CacheResServiceImpl(keyService, myHeaderCache, pageDownloader,
-                new FireCommons(fireURL, base64EncodedCredentials(), fireService),
-                new S3Commons(awsKey, awsSecretKey, awsEndpointUrl, awsRegion), httpClient);
+            My2KCachePageFactory pageDownloader, FireCommons fireCommons, S3Commons s3Commons,
+            CloseableHttpClient httpClient, DerivedKeyCache keyCache, StageMetrics stageMetrics,
+            PgpKeyCache pgpKeyCache) {
+        return new CacheResServiceImpl(keyService, myHeaderCache, pageDownloader, fireCommons, s3Commons,
+                httpClient, keyCache,
+                asyncTransfer ? Executors.newFixedThreadPool(asyncTransferThreads,
+                        new ThreadFactoryBuilder().setNameFormat("res-async-transfer-%d").setDaemon(true).build()) : null,
+                stageMetrics, pgpKeyCache);
     }
 
     @Bean
     @Primary
     public ArchiveService initCleversaveArchiveServiceImpl(RestTemplate restTemplate, KeyService keyService,
-            IFireService fireService) {
-        return new CleversaveArchiveServiceImpl(restTemplate, keyService,
-                new FireCommons(fireURL, base64EncodedCredentials(), fireService));
-    }
-
-    private String base64EncodedCredentials() {
-        return Base64.getEncoder().encodeToString((fireUsername + ":" + firePassword).getBytes());
+            FireCommons fireCommons) {
+        return new CleversaveArchiveServiceImpl(restTemplate, keyService, fireCommons);
     }
 }
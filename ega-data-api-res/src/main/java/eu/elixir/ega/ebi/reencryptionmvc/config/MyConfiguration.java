@@ -18,6 +18,7 @@ package eu.elixir.ega.ebi.reencryptionmvc.config;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
@@ -32,26 +33,43 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 import org.cache2k.Cache;
 import org.identityconnectors.common.security.GuardedString;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.guava.GuavaCache;
 import org.springframework.cache.support.SimpleCacheManager;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.client.RestTemplate;
 
 import com.google.common.cache.CacheBuilder;
 
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.DiskPageStore;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.EgaAESFileHeaderLoader;
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCacheFactory;
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.PeerPageRing;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.RequestHedger;
+import eu.elixir.ega.ebi.reencryptionmvc.domain.repository.AsyncDownloaderLogRepository;
+import eu.elixir.ega.ebi.reencryptionmvc.domain.repository.DbDownloaderLogRepository;
+import eu.elixir.ega.ebi.reencryptionmvc.domain.repository.DownloaderLog;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
+import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
+import eu.elixir.ega.ebi.reencryptionmvc.util.DerivedKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PgpKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
 import htsjdk.samtools.seekablestream.ISeekableStreamFactory;
 import htsjdk.samtools.seekablestream.SeekableStreamFactory;
 import no.uio.ifi.crypt4gh.factory.HeaderFactory;
@@ -86,6 +104,90 @@ public class MyConfiguration {
     @Value("${ega.sharedpass.path}")
     private String sharedKeyPath;
 
+    @Value("${res.cache.header.max-entries:1000}")
+    private long headerCacheSize;
+    @Value("${res.cache.header.ttl-minutes:50}")
+    private long headerCacheTtl;
+    @Value("${res.cache.header.resilience-seconds:30}")
+    private long headerCacheResilience;
+
+    @Value("${res.cache.fire-url.max-entries:10000}")
+    private long fireUrlCacheSize;
+    @Value("${res.cache.fire-url.ttl-minutes:120}")
+    private long fireUrlCacheTtl;
+    @Value("${res.cache.s3-url.max-entries:10000}")
+    private long s3UrlCacheSize;
+    @Value("${res.cache.s3-url.validity-minutes:1440}")
+    private long s3UrlValidity;
+    @Value("${res.cache.s3-url.refresh-margin-minutes:60}")
+    private long s3UrlRefreshMargin;
+
+    @Value("${res.cache.page.max-bytes:1073741824}")
+    private long pageCacheSize;
+
+    @Value("${res.cache.key.max-entries:10000}")
+    private long keyCacheSize;
+    @Value("${res.cache.key.ttl-minutes:60}")
+    private long keyCacheTtl;
+    @Value("${res.cache.pgp.key-path-ttl-minutes:60}")
+    private long pgpKeyPathTtl;
+
+    @Value("${res.readahead.threads:8}")
+    private int readAheadThreads;
+    @Value("${res.readahead.max-pages:4}")
+    private int readAheadMaxPages;
+    @Value("${res.readahead.max-inflight:16}")
+    private int readAheadMaxInFlight;
+
+    @Value("${res.fetch.threads:32}")
+    private int fetchThreads;
+    @Value("${res.fetch.fire.connections:4}")
+    private int fireConnections;
+    @Value("${res.fetch.s3.connections:4}")
+    private int s3Connections;
+
+    @Value("${res.buffer.pool.max-bytes:268435456}")
+    private long bufferPoolSize;
+    @Value("${res.buffer.max-bytes:2147483648}")
+    private long bufferMaxBytes;
+
+    @Value("${res.hedge.enabled:true}")
+    private boolean hedgeEnabled;
+    @Value("${res.hedge.percentile:95}")
+    private double hedgePercentile;
+    @Value("${res.hedge.min-delay-millis:1000}")
+    private long hedgeMinDelay;
+    @Value("${res.hedge.threads:8}")
+    private int hedgeThreads;
+
+    @Value("${res.log.async.enabled:true}")
+    private boolean asyncDownloadLog;
+    @Value("${res.log.async.capacity:10000}")
+    private int downloadLogCapacity;
+    @Value("${res.log.async.batch-size:100}")
+    private int downloadLogBatchSize;
+    @Value("${res.log.async.spill-file:}")
+    private String downloadLogSpillFile;
+
+    @Value("${res.cache.disk.path:}")
+    private String diskCachePath;
+    @Value("${res.cache.disk.max-bytes:107374182400}")
+    private long diskCacheSize;
+
+    @Value("${res.cluster.enabled:false}")
+    private boolean clusterEnabled;
+    @Value("${res.cluster.service-id:${spring.application.name:res2}}")
+    private String clusterServiceId;
+    @Value("${res.cluster.virtual-nodes:64}")
+    private int clusterVirtualNodes;
+    @Value("${res.cluster.timeout-millis:10000}")
+    private int clusterTimeout;
+    @Value("${res.cluster.refresh-seconds:30}")
+    private long clusterRefresh;
+
+    @Autowired(required = false)
+    private DiscoveryClient discoveryClient;
+
     @Bean
     public ISeekableStreamFactory seekableStreamFactory() {
         return SeekableStreamFactory.getInstance();
@@ -98,20 +200,78 @@ public class MyConfiguration {
     }
 
     @Bean
-    public Cache<String, EgaAESFileHeader> myCache() {
-        return (new My2KCacheFactory()).getObject();
+    public Cache<String, EgaAESFileHeader> myCache(final CloseableHttpClient httpClient, LoadBalancerClient loadBalancer,
+            FireCommons fireCommons, S3Commons s3Commons) {
+        return (new My2KCacheFactory(new EgaAESFileHeaderLoader(httpClient, loadBalancer, fireCommons, s3Commons),
+                headerCacheSize, headerCacheTtl, headerCacheResilience)).getObject();
+    }
+
+    // One instance each, so that all callers share the URL caches (and the S3 client)
+    @Bean
+    public FireCommons fireCommons(IFireService fireService) {
+        return new FireCommons(fireURL, base64EncodedCredentials(), fireService, fireUrlCacheSize, fireUrlCacheTtl);
+    }
+
+    @Bean
+    public S3Commons s3Commons() {
+        return new S3Commons(awsKey, awsSecretKey, awsEndpointUrl, awsRegion, s3UrlCacheSize, s3UrlValidity,
+                s3UrlRefreshMargin);
+    }
+
+    // Download log calls are queued and written in batches, off the transfer path
+    @Bean
+    @Primary
+    @Profile("db-repo-logger")
+    public DownloaderLog asyncDownloaderLog(DbDownloaderLogRepository dbDownloaderLog,
+            PlatformTransactionManager transactionManager) {
+        if (!asyncDownloadLog)
+            return dbDownloaderLog;
+        return new AsyncDownloaderLogRepository(dbDownloaderLog, new TransactionTemplate(transactionManager),
+                downloadLogCapacity, downloadLogBatchSize,
+                downloadLogSpillFile.isEmpty() ? null : Paths.get(downloadLogSpillFile));
+    }
+
+    @Bean
+    public DerivedKeyCache derivedKeyCache() {
+        return new DerivedKeyCache(keyCacheSize, keyCacheTtl);
+    }
+
+    // Parsed GPG key files and extracted private keys, reloaded when the files change
+    @Bean
+    public PgpKeyCache pgpKeyCache(KeyService keyService) {
+        return new PgpKeyCache(keyService, pgpKeyPathTtl);
+    }
+
+    // Per-stage transfer latencies, published on /metrics
+    @Bean
+    public StageMetrics stageMetrics() {
+        return new StageMetrics();
     }
 
     @Bean
     public My2KCachePageFactory myPageFactory(final CloseableHttpClient httpClient, 
-            Cache<String, EgaAESFileHeader> myCache, LoadBalancerClient loadBalancer, IFireService fireService) throws Exception {
+            Cache<String, EgaAESFileHeader> myCache, FireCommons fireCommons,
+            DerivedKeyCache keyCache, StageMetrics stageMetrics) throws Exception {
         int pagesize = 1024 * 1024 * 12;    // 12 MB Page Size
         return new My2KCachePageFactory(httpClient, 
                 myCache,
-                loadBalancer,
                 pagesize,
-                new FireCommons(fireURL, base64EncodedCredentials(), fireService), 
-                new S3Commons(awsKey, awsSecretKey, awsEndpointUrl, awsRegion));
+                pageCacheSize,
+                fireCommons,
+                keyCache,
+                readAheadThreads,
+                readAheadMaxPages,
+                readAheadMaxInFlight,
+                fetchThreads,
+                fireConnections,
+                s3Connections,
+                bufferPoolSize,
+                bufferMaxBytes,
+                diskCachePath.isEmpty() ? null : new DiskPageStore(Paths.get(diskCachePath), diskCacheSize),
+                clusterEnabled && discoveryClient != null ? new PeerPageRing(discoveryClient, clusterServiceId,
+                        clusterVirtualNodes, clusterTimeout, clusterRefresh) : null,
+                hedgeEnabled ? new RequestHedger(hedgePercentile, hedgeMinDelay, hedgeThreads) : null,
+                stageMetrics);
     }
     
     @Bean
@@ -124,10 +284,7 @@ public class MyConfiguration {
         GuavaCache path = new GuavaCache("path", CacheBuilder.newBuilder()
                 .expireAfterAccess(20, TimeUnit.HOURS)
                 .build());
-        GuavaCache fireSignedUrl = new GuavaCache("fireSignedUrl", CacheBuilder.newBuilder()
-                .expireAfterAccess(2, TimeUnit.HOURS)
-                .build());
-        simpleCacheManager.setCaches(Arrays.asList(key, archive, path, fireSignedUrl));
+        simpleCacheManager.setCaches(Arrays.asList(key, archive, path));
         return simpleCacheManager;
     }
 
@@ -2,6 +2,7 @@ package eu.elixir.ega.ebi.reencryptionmvc.config;
 
 
 import eu.elixir.ega.ebi.reencryptionmvc.service.DownloaderLogService;
+import eu.elixir.ega.ebi.reencryptionmvc.service.internal.AsyncPageWriter;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -11,6 +12,11 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StopWatch;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
 @Profile("log-transfer")
 @Component
 @Aspect
@@ -31,8 +37,14 @@ public class TransferLoggingAspect {
     String requestId = downloaderLog.logStart((String) args[11], (Long) args[7], (Long) args[8]);
     try {
       Object retVal = pjp.proceed();
-      long result = (long) retVal;
       ret = retVal;
+      HttpServletRequest request = (HttpServletRequest) args[12];
+      if (request != null && request.isAsyncStarted()) {
+        // Async transfer: the outcome is only known when the response completes
+        request.getAsyncContext().addListener(new AsyncTransferListener(requestId, stopWatch));
+        return ret;
+      }
+      long result = (long) retVal;
       stopWatch.stop();
       double speed = (double) result / stopWatch.getTotalTimeMillis();
       downloaderLog.logCompleted(requestId, result, speed);
@@ -43,6 +55,51 @@ public class TransferLoggingAspect {
     return ret;
   }
 
+  private class AsyncTransferListener implements AsyncListener {
+
+    private final String requestId;
+    private final StopWatch stopWatch;
+
+    AsyncTransferListener(String requestId, StopWatch stopWatch) {
+      this.requestId = requestId;
+      this.stopWatch = stopWatch;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      stopWatch.stop();
+      ServletRequest request = event.getSuppliedRequest();
+      Throwable error = (Throwable) request.getAttribute(AsyncPageWriter.ERROR_ATTRIBUTE);
+      Long bytes = (Long) request.getAttribute(AsyncPageWriter.BYTES_ATTRIBUTE);
+      if (error != null || bytes == null) {
+        onError(error);
+        return;
+      }
+      double speed = (double) bytes / Math.max(1, stopWatch.getTotalTimeMillis());
+      downloaderLog.logCompleted(requestId, bytes, speed);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      downloaderLog.logError(requestId, "transfer", "async transfer timed out");
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private void onError(Throwable e) {
+      downloaderLog.logError(requestId, "transfer", e == null ? "async transfer incomplete"
+              : String.format("%s : %s", e.getClass().toString(), e.getMessage()));
+    }
+
+  }
+
 }
 
 
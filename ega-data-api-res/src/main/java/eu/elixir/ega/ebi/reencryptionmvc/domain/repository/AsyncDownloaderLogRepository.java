@@ -0,0 +1,305 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.domain.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Download log that keeps the database off the transfer path. Calls are
+ * queued and written by a background thread, a batch of them per
+ * transaction, through the wrapped log (the stored procedures).
+ * <p>
+ * {@link #makeRequest} returns a local id at once; the writer maps it to the
+ * id the database hands out when the request is written, and uses that for
+ * the completion or error of the same download. When the queue is full,
+ * calls are appended to the spill file if there is one, or dropped.
+ */
+@Slf4j
+public class AsyncDownloaderLogRepository implements DownloaderLog {
+
+  private static final String START = "start";
+  private static final String COMPLETE = "complete";
+  private static final String ERROR = "error";
+
+  private final DownloaderLog delegate;
+  private final TransactionTemplate transactionTemplate;
+  private final BlockingQueue<Event> queue;
+  private final int batchSize;
+  private final Path spillFile;
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  // Unique across restarts, the spill file may hold ids of earlier runs
+  private final String idPrefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+  private final AtomicLong nextId = new AtomicLong();
+
+  // local id -> database id of requests written and not yet completed; only used by the writer
+  private final Cache<String, String> requestIds = CacheBuilder.newBuilder()
+      .maximumSize(100000)
+      .expireAfterWrite(2, TimeUnit.DAYS)
+      .build();
+
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong spilled = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * @param transactionTemplate transaction per batch, null to write each call on its own
+   * @param spillFile           file for calls that don't fit into the queue, null to drop them
+   */
+  public AsyncDownloaderLogRepository(DownloaderLog delegate, TransactionTemplate transactionTemplate,
+      int capacity, int batchSize, Path spillFile) {
+    this.delegate = delegate;
+    this.transactionTemplate = transactionTemplate;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.batchSize = batchSize;
+    this.spillFile = spillFile;
+    this.writer = new ThreadFactoryBuilder().setNameFormat("res-download-log-%d").setDaemon(true).build()
+        .newThread(this::run);
+    this.writer.start();
+  }
+
+  @Override
+  public String makeRequest(String stableId, String user, String clientIp, long startCoordinate,
+      long endCoordinate) {
+
+    if (StringUtils.isBlank(stableId)) {
+      throw new RuntimeException("Need a stable id to log the request");
+    }
+    String requestId = idPrefix + nextId.incrementAndGet();
+    enqueue(new Event(START, requestId, stableId, user, clientIp, String.valueOf(startCoordinate),
+        String.valueOf(endCoordinate)));
+    return requestId;
+  }
+
+  @Override
+  public void downloadComplete(String requestId, long downloadSize, double speed) {
+    if (StringUtils.isBlank(requestId)) {
+      throw new RuntimeException("Need a requestId to complete the request");
+    }
+    enqueue(new Event(COMPLETE, requestId, String.valueOf(downloadSize), String.valueOf(speed)));
+  }
+
+  @Override
+  public void setError(String requestId, String hostname, String code, String description) {
+    if (StringUtils.isBlank(requestId)) {
+      throw new RuntimeException("Need a requestId to log the error");
+    }
+    enqueue(new Event(ERROR, requestId, hostname, code, description));
+  }
+
+  public long getWritten() {
+    return written.get();
+  }
+
+  public long getSpilled() {
+    return spilled.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public int getQueued() {
+    return queue.size();
+  }
+
+  /**
+   * Stops taking new calls and writes the queued ones, waiting at most
+   * {@code timeoutMillis}.
+   */
+  public void shutdown(long timeoutMillis) throws InterruptedException {
+    running = false;
+    writer.join(timeoutMillis);
+    writer.interrupt();
+  }
+
+  public void shutdown() throws InterruptedException {
+    shutdown(10000);
+  }
+
+  private void enqueue(Event event) {
+    if (running && queue.offer(event)) {
+      return;
+    }
+    overflow(event);
+  }
+
+  private void overflow(Event event) {
+    if (spillFile != null && spill(event)) {
+      return;
+    }
+    if (dropped.incrementAndGet() % 1000 == 1) {
+      log.warn("Download log queue full, " + dropped.get() + " calls dropped so far");
+    }
+  }
+
+  private void run() {
+    List<Event> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        write(batch);
+      } catch (InterruptedException e) {
+        break;
+      } catch (RuntimeException e) {
+        log.error("Download log writer error " + e.getMessage(), e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /*
+   * Writes a batch in one transaction. If that fails, nothing of it was
+   * committed, and the calls are written one by one so that a single bad
+   * call doesn't lose the others.
+   */
+  void write(List<Event> batch) {
+    Map<String, String> started = new HashMap<>();
+    Set<String> finished = new HashSet<>();
+    List<Event> orphans = new ArrayList<>();
+    if (transactionTemplate != null) {
+      try {
+        transactionTemplate.execute(status -> {
+          for (Event event : batch) {
+            apply(event, started, finished, orphans);
+          }
+          return null;
+        });
+        commit(started, finished, orphans);
+        written.addAndGet(batch.size() - orphans.size());
+        return;
+      } catch (RuntimeException e) {
+        log.warn("Writing " + batch.size() + " download log calls failed, retrying one by one " + e.getMessage());
+      }
+    }
+    for (Event event : batch) {
+      started.clear();
+      finished.clear();
+      orphans.clear();
+      try {
+        apply(event, started, finished, orphans);
+        commit(started, finished, orphans);
+        written.addAndGet(1 - orphans.size());
+      } catch (RuntimeException e) {
+        failed.incrementAndGet();
+        log.error("Writing download log " + event + " failed " + e.getMessage(), e);
+      }
+    }
+  }
+
+  private void apply(Event event, Map<String, String> started, Set<String> finished, List<Event> orphans) {
+    String[] f = event.fields;
+    if (START.equals(event.type)) {
+      started.put(event.requestId, delegate.makeRequest(f[0], f[1], f[2], Long.parseLong(f[3]),
+          Long.parseLong(f[4])));
+      return;
+    }
+    String databaseId = started.containsKey(event.requestId) ? started.get(event.requestId)
+        : requestIds.getIfPresent(event.requestId);
+    if (databaseId == null) {
+      orphans.add(event);
+      return;
+    }
+    if (COMPLETE.equals(event.type)) {
+      delegate.downloadComplete(databaseId, Long.parseLong(f[0]), Double.parseDouble(f[1]));
+    } else {
+      delegate.setError(databaseId, f[0], f[1], f[2]);
+    }
+    finished.add(event.requestId);
+  }
+
+  private void commit(Map<String, String> started, Set<String> finished, List<Event> orphans) {
+    requestIds.putAll(started);
+    requestIds.invalidateAll(finished);
+    // The request itself was spilled or dropped, keep these calls with it
+    for (Event orphan : orphans) {
+      overflow(orphan);
+    }
+  }
+
+  // One tab separated line per call: type, local id, database id if known, arguments
+  private synchronized boolean spill(Event event) {
+    String databaseId = requestIds.getIfPresent(event.requestId);
+    StringBuilder line = new StringBuilder(event.type).append('\t').append(event.requestId)
+        .append('\t').append(databaseId == null ? "" : databaseId);
+    for (String field : event.fields) {
+      line.append('\t').append(field == null ? "" : field.replaceAll("[\t\r\n]", " "));
+    }
+    try (Writer out = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      out.write(line.append('\n').toString());
+      spilled.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      log.error("Error spilling download log to " + spillFile + " " + e.getMessage());
+      return false;
+    }
+  }
+
+  static final class Event {
+
+    private final String type;
+    private final String requestId;
+    private final String[] fields;
+
+    Event(String type, String requestId, String... fields) {
+      this.type = type;
+      this.requestId = requestId;
+      this.fields = fields;
+    }
+
+    @Override
+    public String toString() {
+      return type + " " + requestId;
+    }
+  }
+
+}
@@ -15,22 +15,79 @@
  */
 package eu.elixir.ega.ebi.reencryptionmvc.dto;
 
-import lombok.AllArgsConstructor;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.PageBufferPool;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.NoArgsConstructor;
-import lombok.Setter;
 
-import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
+ * A plain page of an archive file. The buffer may be larger than the page
+ * (pooled buffers), only the first {@code length} bytes are data.
+ * <p>
+ * Pages are reference counted: the page cache holds one reference, each
+ * reader takes one with {@link #retain()} and gives it back with
+ * {@link #release()}. The buffer returns to its pool when the last
+ * reference is released.
+ * <p>
+ * The CRC32 of the page is computed once, when the page is loaded, and sent
+ * to clients that verify transfers page by page.
+ *
  * @author asenf
  */
-@NoArgsConstructor
-@AllArgsConstructor
-@Setter
 @Getter
-public class CachePage implements Serializable {
+public class CachePage {
+
+    private final byte[] page;
+    private final int length;
+    private final transient PageBufferPool pool;
+    private final transient AtomicInteger refCount = new AtomicInteger(1);
+    @Getter(AccessLevel.NONE)
+    private volatile long checksum = -1; // not computed yet
+
+    public CachePage(byte[] page, int length, PageBufferPool pool) {
+        this.page = page;
+        this.length = length;
+        this.pool = pool;
+    }
+
+    public CachePage(byte[] page) {
+        this(page, page.length, null);
+    }
+
+    /**
+     * Takes a reference to the page.
+     *
+     * @return false if the page was already released and must not be used
+     */
+    public boolean retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0)
+                return false;
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * @return CRC32 of the page content
+     */
+    public int getChecksum() {
+        long value = checksum;
+        if (value < 0) {
+            CRC32 crc = new CRC32();
+            crc.update(page, 0, length);
+            value = crc.getValue();
+            checksum = value; // racing readers compute the same value
+        }
+        return (int) value;
+    }
 
-    private byte[] page;
+    public void release() {
+        if (refCount.decrementAndGet() == 0 && pool != null)
+            pool.release(page);
+    }
 
 }
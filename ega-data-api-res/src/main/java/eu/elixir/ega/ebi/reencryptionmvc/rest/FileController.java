@@ -19,6 +19,7 @@ import eu.elixir.ega.ebi.reencryptionmvc.dto.ArchiveSource;
 import eu.elixir.ega.ebi.reencryptionmvc.exception.NotFoundException;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ArchiveService;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ResService;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PageChecksums;
 import htsjdk.samtools.seekablestream.RandomInputStream;
 import htsjdk.samtools.seekablestream.ebi.BufferedBackgroundInputStream;
 import lombok.extern.slf4j.Slf4j;
@@ -30,16 +31,24 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -103,17 +112,33 @@ public class FileController {
                                @RequestParam(value = "destinationIV", required = false) String destinationIV,
                                @RequestParam(value = "startCoordinate", required = false, defaultValue = "0") long startCoordinate,
                                @RequestParam(value = "endCoordinate", required = false, defaultValue = "0") long endCoordinate,
+                               @RequestParam(value = "ranges", required = false, defaultValue = "") String rangesParam,
                                @RequestHeader(value = "Range", required = false, defaultValue = "") String range,
                                HttpServletRequest request,
-                               HttpServletResponse response) {
+                               HttpServletResponse response) throws IOException {
 
         // Resolve Archive ID to actual File Path/URL - Needs Organization-Specific Implementation!
         ArchiveSource source = archiveService.getArchiveFile(id, request, response);
 
-        if (range.length() > 0 && range.startsWith("bytes=") && startCoordinate == 0 && endCoordinate == 0) {
-            String[] ranges = range.substring("bytes=".length()).split("-");
-            startCoordinate = Long.valueOf(ranges[0]);
-            endCoordinate = Long.valueOf(ranges[1]) + 1;
+        // Byte ranges, from the 'ranges' parameter (same syntax as the header, without 'bytes=') or the Range header
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            if (rangesParam.length() > 0)
+                ranges = parseRanges(rangesParam);
+            else if (range.length() > 0 && range.startsWith("bytes=") && startCoordinate == 0 && endCoordinate == 0)
+                ranges = parseRanges(range.substring("bytes=".length()));
+        } catch (IllegalArgumentException ex) {
+            sendRangeNotSatisfiable(response, plainSize(source));
+            return;
+        }
+
+        if (ranges.size() > 1) {
+            getArchiveFileRanges(id, source, destinationFormat, destinationKey, destinationIV, ranges, request, response);
+            return;
+        }
+        if (ranges.size() == 1) {
+            startCoordinate = ranges.get(0)[0];
+            endCoordinate = ranges.get(0)[1];
         }
         
         // Merge execution with fully specified function
@@ -133,6 +158,109 @@ public class FileController {
                 response);
     }
 
+    /*
+     * Several ranges of one file in a single multipart/byteranges response. The
+     * archive source is resolved once; ranges are served in file order, one after
+     * the other, so pages shared by adjacent or overlapping ranges come out of the
+     * page cache instead of being fetched again. Only plain output is served this
+     * way: re-encrypted parts (IV prefix, block alignment, new gpg packets) would
+     * not match the Content-Range of their part. Ranges starting past the end of
+     * the file are left out; if none is left the answer is 416.
+     */
+    private void getArchiveFileRanges(String id,
+                                      ArchiveSource source,
+                                      String destinationFormat,
+                                      String destinationKey,
+                                      String destinationIV,
+                                      List<long[]> ranges,
+                                      HttpServletRequest request,
+                                      HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        long size = plainSize(source);
+
+        if (!"plain".equalsIgnoreCase(destinationFormat)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Multiple ranges are only served as plain data");
+            return;
+        }
+        List<long[]> ordered = new ArrayList<>();
+        for (long[] range : ranges) {
+            if (range[0] < size && (range[1] == 0 || range[1] > range[0]))
+                ordered.add(range);
+        }
+        if (ordered.isEmpty()) {
+            sendRangeNotSatisfiable(response, size);
+            return;
+        }
+        ordered.sort(Comparator.comparingLong(r -> r[0]));
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        ServletOutputStream out = response.getOutputStream();
+        RangePartRequest partRequest = new RangePartRequest(request);
+        RangePartResponse partResponse = new RangePartResponse(response, out);
+
+        for (long[] range : ordered) {
+            long end = (range[1] == 0 || range[1] > size) ? size : range[1];
+            out.write(("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + (end - 1) + "/" + size + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            getFile(source.getEncryptionFormat(),
+                    source.getEncryptionKey(),
+                    source.getEncryptionIV(),
+                    destinationFormat,
+                    destinationKey,
+                    destinationIV,
+                    source.getFileUrl(),
+                    range[0],
+                    end,
+                    source.getSize(),
+                    source.getAuth(),
+                    id,
+                    partRequest,
+                    partResponse);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    // Plain size of an archive file, without the IV of AES encrypted files
+    private static long plainSize(ArchiveSource source) {
+        long size = source.getSize();
+        if (source.getEncryptionFormat() != null && source.getEncryptionFormat().toLowerCase().startsWith("aes"))
+            size -= 16; // IV
+        return size;
+    }
+
+    private static void sendRangeNotSatisfiable(HttpServletResponse response, long size) throws IOException {
+        response.setHeader("Content-Range", "bytes */" + size);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    }
+
+    /*
+     * Parses 'a-b,c-,...' into {start, end exclusive} pairs; an open end is 0,
+     * as for endCoordinate.
+     *
+     * @throws IllegalArgumentException if a range is malformed
+     */
+    static List<long[]> parseRanges(String ranges) {
+        List<long[]> result = new ArrayList<>();
+        for (String range : ranges.split(",")) {
+            String[] bounds = range.trim().split("-", -1);
+            if (bounds.length != 2 || bounds[0].isEmpty()) {
+                throw new IllegalArgumentException("Unsupported range '" + range + "'");
+            }
+            try {
+                long start = Long.parseLong(bounds[0].trim());
+                long end = bounds[1].trim().isEmpty() ? 0 : Long.parseLong(bounds[1].trim()) + 1;
+                result.add(new long[]{start, end});
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Unsupported range '" + range + "'", ex);
+            }
+        }
+        return result;
+    }
+
     // Archive File (List File ID rather than full specification) --------------
     @GetMapping(value = "/archive/{id}/size")
     public long getArchiveFileSize(@PathVariable("id") String id,
@@ -228,6 +356,120 @@ public class FileController {
 
     }
 
+    // Request of one part of a multi-range response: the transfer must stay blocking, without checksum trailer
+    private static class RangePartRequest extends HttpServletRequestWrapper {
+
+        RangePartRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return false;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            // no checksum trailers inside the multipart body
+            return PageChecksums.HEADER.equalsIgnoreCase(name) ? null : super.getHeader(name);
+        }
+
+    }
+
+    // Response of one part of a multi-range response: writes into the shared body, keeps it open
+    private static class RangePartResponse extends HttpServletResponseWrapper {
+
+        private final ServletOutputStream partOut;
+
+        RangePartResponse(HttpServletResponse response, ServletOutputStream out) {
+            super(response);
+            this.partOut = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush(); // the next part follows
+                }
+
+                @Override
+                public boolean isReady() {
+                    return out.isReady();
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    out.setWriteListener(writeListener);
+                }
+            };
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return partOut;
+        }
+
+        // Status and headers of the multipart response, and of each part, are set by the controller
+
+        @Override
+        public void setContentType(String type) {
+        }
+
+        @Override
+        public void setStatus(int sc) {
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+    }
+
     @Autowired
     public void setResService(ResService resService) {
         this.resService = resService;
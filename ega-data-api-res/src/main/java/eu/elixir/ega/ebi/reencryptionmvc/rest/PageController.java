@@ -0,0 +1,65 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.rest;
+
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Internal endpoint of the cluster mode: serves pages owned by this node to
+ * the other RES nodes (see {@link eu.elixir.ega.ebi.reencryptionmvc.cache2k.PeerPageRing}).
+ * Only registered when {@code res.cluster.enabled} is set; pages outside of
+ * the file are answered with 404.
+ */
+@RestController
+@ConditionalOnProperty("res.cluster.enabled")
+@RequestMapping("/cache")
+public class PageController {
+
+    private My2KCachePageFactory pageDownloader;
+
+    // Plain page content, 12 MB except for the last page of a file
+    @GetMapping(value = "/page/{id}/{page}")
+    public void getPage(@PathVariable("id") String id,
+                        @PathVariable("page") int page,
+                        HttpServletResponse response) throws IOException {
+        CachePage cachePage = pageDownloader.downloadOwnedPage(id, page);
+        try {
+            response.setContentType("application/octet-stream");
+            response.setContentLength(cachePage.getLength());
+            response.getOutputStream().write(cachePage.getPage(), 0, cachePage.getLength());
+        } finally {
+            cachePage.release();
+        }
+    }
+
+    @Autowired
+    public void setPageDownloader(My2KCachePageFactory pageDownloader) {
+        this.pageDownloader = pageDownloader;
+    }
+
+}
@@ -15,6 +15,12 @@
  */
 package eu.elixir.ega.ebi.reencryptionmvc.rest;
 
+import com.google.common.cache.CacheStats;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.DiskPageStore;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.PeerPageRing;
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.RequestHedger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
@@ -25,6 +31,8 @@ import javax.management.AttributeList;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * @author asenf
@@ -33,6 +41,8 @@ import java.lang.management.ManagementFactory;
 @RequestMapping("/stats")
 public class StatsController {
 
+    private My2KCachePageFactory pageDownloader;
+
     // Obtain local CPU Load (used by EBI Load Balancer as Heartbeat)
     private static double getProcessCPULoad() throws Exception {
         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
@@ -62,4 +72,42 @@ public class StatsController {
         }
     }
 
+    // Page cache counters (hit/miss/eviction) since startup
+    @GetMapping(value = "/cache")
+    @ResponseBody
+    public Map<String, Long> getCache() {
+        CacheStats stats = pageDownloader.getPageCacheStats();
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("entries", pageDownloader.getPageCacheEntries());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("loadFailures", stats.loadExceptionCount());
+        result.put("averageLoadMillis", (long) (stats.averageLoadPenalty() / 1000000));
+        DiskPageStore diskPageStore = pageDownloader.getDiskPageStore();
+        if (diskPageStore != null) {
+            result.put("diskHits", diskPageStore.getHits());
+            result.put("diskMisses", diskPageStore.getMisses());
+            result.put("diskBytes", diskPageStore.getTotalBytes());
+        }
+        PeerPageRing peerRing = pageDownloader.getPeerRing();
+        if (peerRing != null) {
+            result.put("peers", (long) peerRing.getMembers().size());
+            result.put("peerLoads", peerRing.getPeerLoads());
+            result.put("peerFailures", peerRing.getPeerFailures());
+        }
+        RequestHedger hedger = pageDownloader.getHedger();
+        if (hedger != null) {
+            result.put("rangeReads", hedger.getReads());
+            result.put("hedges", hedger.getHedges());
+            result.put("hedgeWins", hedger.getHedgeWins());
+        }
+        return result;
+    }
+
+    @Autowired
+    public void setPageDownloader(My2KCachePageFactory pageDownloader) {
+        this.pageDownloader = pageDownloader;
+    }
+
 }
@@ -0,0 +1,187 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.service.internal;
+
+import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PageChecksums;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
+import eu.elixir.ega.ebi.reencryptionmvc.util.TimedOutputStream;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking writer of a page range to an async servlet response.
+ * <p>
+ * The container calls {@link #onWritePossible()} whenever the client can
+ * take more data; the writer then writes slices of the current page until
+ * the output stops being ready, and returns. Page loads happen on the
+ * executor and resume writing when done. No thread waits on the client or
+ * on the archive, so slow downloads don't hold request threads.
+ */
+@Slf4j
+public class AsyncPageWriter implements WriteListener {
+
+    // Request attributes read by the transfer log once the async request completes
+    public static final String BYTES_ATTRIBUTE = AsyncPageWriter.class.getName() + ".bytes";
+    public static final String ERROR_ATTRIBUTE = AsyncPageWriter.class.getName() + ".error";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream servletOut;
+    private final OutputStream eOut; // encrypting stream over clientOut
+    private final TimedOutputStream clientOut; // servletOut, timed
+    private final My2KCachePageFactory pageDownloader;
+    private final Executor executor;
+    private final StageMetrics stageMetrics;
+    private final PageChecksums checksums; // null if the client doesn't verify pages
+    private final String id;
+    private final long bytesToTransfer;
+    private final int lastPage;
+
+    private int nextPage;
+    private int pageOffset;
+    private long bytesTransferred;
+    private CachePage page;
+    private boolean loading;
+    private boolean done;
+    private long blockedSince; // when the output stopped being ready, 0 if it is ready
+
+    public AsyncPageWriter(AsyncContext asyncContext, ServletOutputStream servletOut, OutputStream eOut,
+                    TimedOutputStream clientOut, My2KCachePageFactory pageDownloader, Executor executor,
+                    StageMetrics stageMetrics, PageChecksums checksums, String id, int startPage, int pageOffset,
+                    long bytesToTransfer, int lastPage) {
+        this.asyncContext = asyncContext;
+        this.servletOut = servletOut;
+        this.eOut = eOut;
+        this.clientOut = clientOut;
+        this.pageDownloader = pageDownloader;
+        this.executor = executor;
+        this.stageMetrics = stageMetrics;
+        this.checksums = checksums;
+        this.id = id;
+        this.nextPage = startPage;
+        this.pageOffset = pageOffset;
+        this.bytesToTransfer = bytesToTransfer;
+        this.lastPage = lastPage;
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        if (blockedSince != 0) {
+            stageMetrics.record(StageMetrics.BACKPRESSURE, System.nanoTime() - blockedSince, 0);
+            blockedSince = 0;
+        }
+        while (!done) {
+            if (!servletOut.isReady()) {
+                blockedSince = System.nanoTime(); // the container calls back once the client took the data
+                return;
+            }
+            if (bytesTransferred >= bytesToTransfer) {
+                finish();
+                return;
+            }
+            if (page == null) {
+                loadNextPage();
+                return;
+            }
+            int count = (int) Math.min(Math.min(CHUNK_SIZE, page.getLength() - pageOffset), bytesToTransfer - bytesTransferred);
+            if (count <= 0) {
+                onError(new IOException("Page '" + nextPage + "' of '" + id + "' ends at " + page.getLength()));
+                return;
+            }
+            long writeStart = System.nanoTime();
+            long clientNanos = clientOut.getNanos();
+            eOut.write(page.getPage(), pageOffset, count);
+            stageMetrics.record(StageMetrics.ENCRYPT,
+                    System.nanoTime() - writeStart - (clientOut.getNanos() - clientNanos), count);
+            pageOffset += count;
+            bytesTransferred += count;
+            if (pageOffset >= page.getLength()) {
+                page.release();
+                page = null;
+                pageOffset = 0;
+                nextPage++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        if (done)
+            return;
+        done = true;
+        log.error("Async transfer of '" + id + "' failed after " + bytesTransferred + " bytes", t);
+        releasePage();
+        asyncContext.getRequest().setAttribute(ERROR_ATTRIBUTE, t);
+        asyncContext.complete();
+    }
+
+    private void loadNextPage() {
+        if (loading)
+            return;
+        loading = true;
+        int pageNumber = nextPage;
+        executor.execute(() -> {
+            try {
+                CachePage loaded = pageDownloader.downloadPage(id, pageNumber);
+                if (pageNumber < lastPage)
+                    pageDownloader.readAhead(id, pageNumber + 1, lastPage, 0);
+                synchronized (this) {
+                    loading = false;
+                    if (done) {
+                        loaded.release();
+                        return;
+                    }
+                    page = loaded;
+                    if (checksums != null)
+                        checksums.add(page, pageOffset, (int) Math.max(0,
+                                Math.min(page.getLength() - pageOffset, bytesToTransfer - bytesTransferred)));
+                    onWritePossible();
+                }
+            } catch (Throwable t) {
+                onError(t);
+            }
+        });
+    }
+
+    private void finish() throws IOException {
+        done = true;
+        releasePage();
+        if (checksums != null)
+            clientOut.write(checksums.getTrailer());
+        eOut.close();
+        asyncContext.getRequest().setAttribute(BYTES_ATTRIBUTE, bytesTransferred);
+        asyncContext.complete();
+    }
+
+    private void releasePage() {
+        if (page != null) {
+            page.release();
+            page = null;
+        }
+    }
+
+}
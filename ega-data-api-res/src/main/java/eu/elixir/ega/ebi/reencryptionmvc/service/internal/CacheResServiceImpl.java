@@ -23,17 +23,22 @@
 package eu.elixir.ega.ebi.reencryptionmvc.service.internal;
 
 import com.google.common.base.Strings;
-import com.google.common.io.ByteStreams;
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.KeyPath;
 import eu.elixir.ega.ebi.reencryptionmvc.exception.GeneralStreamingException;
 import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
 import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ResService;
-import eu.elixir.ega.ebi.reencryptionmvc.util.DecryptionUtils;
+import eu.elixir.ega.ebi.reencryptionmvc.util.AesCtr;
+import eu.elixir.ega.ebi.reencryptionmvc.util.DerivedKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PageChecksums;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PgpKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
+import eu.elixir.ega.ebi.reencryptionmvc.util.TimedOutputStream;
 import htsjdk.samtools.seekablestream.FakeSeekableStream;
 import htsjdk.samtools.seekablestream.SeekableBasicAuthHTTPStream;
 import htsjdk.samtools.seekablestream.SeekableHTTPStream;
@@ -41,7 +46,6 @@ import htsjdk.samtools.seekablestream.SeekablePathStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.seekablestream.cipher.ebi.GPGOutputStream;
 import htsjdk.samtools.seekablestream.cipher.ebi.GPGStream;
-import htsjdk.samtools.seekablestream.cipher.ebi.Glue;
 import htsjdk.samtools.seekablestream.cipher.ebi.RemoteSeekableCipherStream;
 import htsjdk.samtools.seekablestream.cipher.ebi.SeekableCipherStream;
 import htsjdk.samtools.seekablestream.ebi.BufferedBackgroundSeekableInputStream;
@@ -61,14 +65,9 @@ import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
-import org.bouncycastle.openpgp.PGPSecretKey;
-import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
 import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
-import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
-import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
-import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
 import org.cache2k.Cache;
 
@@ -76,15 +75,12 @@ import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -93,17 +89,15 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.Security;
-import java.security.spec.AlgorithmParameterSpec;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -130,16 +124,25 @@ public class CacheResServiceImpl implements ResService {
     private FireCommons fireCommons;
     private S3Commons s3Commons;
     private CloseableHttpClient httpClient;
+    private DerivedKeyCache keyCache;
+    private Executor asyncExecutor; // null: blocking transfers only
+    private StageMetrics stageMetrics;
+    private PgpKeyCache pgpKeyCache;
 
     public CacheResServiceImpl(KeyService keyService, Cache<String, EgaAESFileHeader> myHeaderCache,
                                My2KCachePageFactory pageDowloader, FireCommons fireCommons, S3Commons s3Commons,
-                               CloseableHttpClient httpClient) {
+                               CloseableHttpClient httpClient, DerivedKeyCache keyCache, Executor asyncExecutor,
+                               StageMetrics stageMetrics, PgpKeyCache pgpKeyCache) {
         this.keyService = keyService;
         this.myHeaderCache = myHeaderCache;
         this.pageDowloader = pageDowloader;
         this.fireCommons = fireCommons;
         this.s3Commons = s3Commons;
         this.httpClient = httpClient;
+        this.keyCache = keyCache;
+        this.asyncExecutor = asyncExecutor;
+        this.stageMetrics = stageMetrics == null ? new StageMetrics() : stageMetrics;
+        this.pgpKeyCache = pgpKeyCache == null ? new PgpKeyCache(keyService, 60) : pgpKeyCache;
     }
 
     /*
@@ -196,16 +199,16 @@ public class CacheResServiceImpl implements ResService {
 
         String sessionId = Strings.isNullOrEmpty(request.getHeader("Session-Id")) ? "" : request.getHeader("Session-Id") + " ";
 
-        // Check if File Header is in Cache - otherwise Load it
-        if (!myHeaderCache.containsKey(id))
-            loadHeaderCleversafe(id, fileLocation, httpAuth, fileSize, request, response, sourceKey);
+        // Check if File Header is in Cache - otherwise Load it (once, concurrent requests wait for it)
+        long archiveSize = fileSize;
+        long headerStart = System.nanoTime();
+        myHeaderCache.computeIfAbsent(id, () -> loadHeaderCleversafe(fileLocation, httpAuth, archiveSize, request, response, sourceKey));
+        stageMetrics.record(StageMetrics.HEADER, System.nanoTime() - headerStart, 0);
 
-        // Streams and Digests for this data transfer
-        OutputStream outStream = null;
-        MessageDigest encryptedDigest = null;
-        DigestOutputStream encryptedDigestOut = null;
+        // Streams for this data transfer
+        TimedOutputStream outStream = null;
         OutputStream eOut = null;
-        InputStream in = null;
+        boolean asyncStarted = false;
 
         // get MIME type of the file (actually, it's always this for now)
         String mimeType = "application/octet-stream";
@@ -215,13 +218,20 @@ public class CacheResServiceImpl implements ResService {
 
         int errorLocation = 0;
         try {
-            // Get Send Stream - http Response, wrap in Digest Stream
-            outStream = response.getOutputStream();
-            encryptedDigest = MessageDigest.getInstance("MD5");
-            encryptedDigestOut = new DigestOutputStream(outStream, encryptedDigest);
+            // Get Send Stream - http Response (timed, the rest of a write is encryption)
+            outStream = new TimedOutputStream(response.getOutputStream(), stageMetrics.stage(StageMetrics.CLIENT_WRITE));
+
+            // Adjust start coordinate requested - to match 16 byte block structure; the
+            // cipher is positioned at the block start too, the client drops the extra bytes
+            if (destintionFormat.toLowerCase().startsWith("aes") &&
+                    destinationIV != null && destinationIV.length() > 0) {
+                long blockStart = (startCoordinate / 16) * 16;
+                int blockDelta = (int) (startCoordinate - blockStart);
+                startCoordinate -= blockDelta;
+            }
 
             // Generate Encrypting OutputStream
-            eOut = getTarget(encryptedDigestOut,
+            eOut = getTarget(outStream,
                     destintionFormat,
                     destinationKey,
                     destinationIV,
@@ -239,59 +249,78 @@ public class CacheResServiceImpl implements ResService {
             }
             if (endCoordinate > fileSize)
                 endCoordinate = fileSize;
-            // Adjust start coordinate requested - to match 16 byte block structure
-            if (destintionFormat.toLowerCase().startsWith("aes") &&
-                    destinationIV != null && destinationIV.length() > 0) {
-                long blockStart = (startCoordinate / 16) * 16;
-                int blockDelta = (int) (startCoordinate - blockStart);
-                startCoordinate -= blockDelta;
-            }
             long bytesToTransfer = fileSize - startCoordinate - (endCoordinate > 0 ? (fileSize - endCoordinate) : 0);
             long bytesTransferred = 0;
             errorLocation = 2;
 
             int startPage = (int) (startCoordinate / BUFFER_SIZE);
             int pageOffset = (int) (startCoordinate - ((long) startPage * (long) BUFFER_SIZE));
+            int lastPage = (int) ((startCoordinate + bytesToTransfer - 1) / BUFFER_SIZE);
+            long drainNanos = 0; // moving average of the time to send one page to the client
+
+            // Per-page checksums after the data, if the client verifies with them instead of MD5
+            PageChecksums checksums = PageChecksums.isRequested(request, destintionFormat)
+                    ? PageChecksums.start(response, bytesToTransfer, BUFFER_SIZE) : null;
+
+            // Async mode: hand the response over to the container, pages are written as the client takes them.
+            // GPG output writes its own framing on close and stays blocking.
+            if (asyncExecutor != null && request.isAsyncSupported() && bytesToTransfer > 0
+                    && !destintionFormat.toLowerCase().startsWith("publicgpg")) {
+                AsyncContext asyncContext = request.startAsync(request, response);
+                asyncContext.setTimeout(0); // a download may take hours; dead clients end in onError
+                ServletOutputStream servletOut = response.getOutputStream();
+                servletOut.setWriteListener(new AsyncPageWriter(asyncContext, servletOut, eOut, outStream,
+                        pageDowloader, asyncExecutor, stageMetrics, checksums, id, startPage, pageOffset,
+                        bytesToTransfer, lastPage));
+                asyncStarted = true;
+                return 0;
+            }
 
             while (bytesTransferred < bytesToTransfer) {
                 errorLocation = 3;
 
-                byte[] page = pageDowloader.downloadPage(id, startPage);
+                CachePage page = pageDowloader.downloadPage(id, startPage);
                 errorLocation = 4;
                 if (page == null)
                     throw new GeneralStreamingException(sessionId + " Error getting page id '" + id + "' page '"
                             + startPage + "'");
-
-                ByteArrayInputStream bais = new ByteArrayInputStream(page);
-                bais.skip(pageOffset); // first cache page
+                if (startPage < lastPage)
+                    pageDowloader.readAhead(id, startPage + 1, lastPage, drainNanos);
 
                 // At this point the plain data is in a cache page
-
-                long delta = bytesToTransfer - bytesTransferred;
-                if (delta < page.length) {
-                    in = ByteStreams.limit(bais, delta);
-                } else {
-                    in = bais;
+                long bytes;
+                long copyStart = System.nanoTime();
+                try {
+                    // Write the requested slice of the page - encrypting through output
+                    bytes = Math.max(0, Math.min(page.getLength() - pageOffset, bytesToTransfer - bytesTransferred));
+                    if (checksums != null)
+                        checksums.add(page, pageOffset, (int) bytes);
+                    long clientNanos = outStream.getNanos();
+                    eOut.write(page.getPage(), pageOffset, (int) bytes);
+                    stageMetrics.record(StageMetrics.ENCRYPT,
+                            System.nanoTime() - copyStart - (outStream.getNanos() - clientNanos), bytes);
+                } finally {
+                    page.release();
                 }
                 pageOffset = 0;
-
-                // Copy the specified contents - decrypting through input, encrypting through output
-                long bytes = ByteStreams.copy(in, eOut);
                 errorLocation = 6;
+                if (bytes == BUFFER_SIZE) { // only full pages say something about the client
+                    long copyNanos = System.nanoTime() - copyStart;
+                    drainNanos = drainNanos == 0 ? copyNanos : (drainNanos * 3 + copyNanos) / 4;
+                }
                 bytesTransferred += bytes;
                 startPage += 1;
             }
+            if (checksums != null)
+                outStream.write(checksums.getTrailer());
             return bytesTransferred;
         } catch (Exception ex) {
             log.error(sessionId + " Error Location: " + errorLocation + "\n" + ex.toString(), ex);
             throw new GeneralStreamingException(sessionId + " Error Location: " + errorLocation + "\n" + ex.toString(), 10);
         } finally {
             try {
-                if (in != null)
-                    in.close();
-                if (encryptedDigestOut != null)
-                    encryptedDigestOut.close();
-                if (eOut != null)
+                // in async mode the streams are closed by the AsyncPageWriter
+                if (eOut != null && !asyncStarted)
                     eOut.close();
             } catch (Exception ex) {
                 log.error(sessionId + " Error Location: " + errorLocation + "\n" + ex.toString(), ex);
@@ -369,24 +398,24 @@ public class CacheResServiceImpl implements ResService {
             int bits = 128;
             if (destinationFormat.equalsIgnoreCase("aes256"))
                 bits = 256;
-            SecretKey secret = Glue.getInstance().getKey(destinationKey.toCharArray(), bits);
+            SecretKey secret = keyCache.getKey(destinationKey, bits);
             // Determine random IV - either random, or specified. Account for starting offset
             byte[] random_iv = new byte[16];
+            long position = 0;
             if (IVSpecified) {
                 //byte[] dIV = Base64.decode(destinationIV);
                 byte[] dIV = java.util.Base64.getDecoder().decode(destinationIV);
                 System.arraycopy(dIV, 0, random_iv, 0, 16);
-                DecryptionUtils.byteIncrementFast(random_iv, startCoordinate);
+                position = startCoordinate;
             } else {
                 SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
                 random.nextBytes(random_iv);
             }
-            AlgorithmParameterSpec paramSpec = new IvParameterSpec(random_iv);
             // If the random IV was generated in here, write it to the output stream
             if (!IVSpecified)
                 outStream.write(random_iv);
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding"); // load a cipher AES / Segmented Integer Counter
-            cipher.init(Cipher.ENCRYPT_MODE, secret, paramSpec);
+            // load a cipher AES / Segmented Integer Counter, positioned at the start coordinate
+            Cipher cipher = AesCtr.getCipher(Cipher.ENCRYPT_MODE, secret, random_iv, position);
             out = new CipherOutputStream(outStream, cipher);
 
         } else if (destinationFormat.toLowerCase().startsWith("publicgpg")) {
@@ -407,10 +436,8 @@ public class CacheResServiceImpl implements ResService {
         try {
             // Load key, if not provided. Details in config XML file
             if (sourceKey == null || sourceKey.length() == 0) {
-                KeyPath keyPath = keyService.getKeyPath("SymmetricGPG");
-                BufferedReader br = new BufferedReader(new FileReader(keyPath.getKeyPath()));
-                sourceKey = br.readLine();
-                br.close();
+                KeyPath keyPath = pgpKeyCache.getKeyPath("SymmetricGPG");
+                sourceKey = pgpKeyCache.get(keyPath.getKeyPath(), PgpKeyCache::readFirstLine);
             }
 
             in = GPGStream.getDecodingGPGInoutStream(in, sourceKey.toCharArray());
@@ -428,14 +455,8 @@ public class CacheResServiceImpl implements ResService {
 
         try {
             KeyPath keyPath = sourceFormat.equalsIgnoreCase("publicgpg_sanger") ?
-                    keyService.getKeyPath("PrivateGPG_Sanger") :
-                    keyService.getKeyPath("PrivateGPG");
-
-            BufferedReader br = new BufferedReader(new FileReader(keyPath.getKeyPassPath()));
-            String key = br.readLine();
-            br.close();
-
-            InputStream keyIn = new BufferedInputStream(new FileInputStream(keyPath.getKeyPath()));
+                    pgpKeyCache.getKeyPath("PrivateGPG_Sanger") :
+                    pgpKeyCache.getKeyPath("PrivateGPG");
 
             PGPObjectFactory pgpF = new PGPObjectFactory(c_in, fingerPrintCalculater);
             PGPEncryptedDataList enc;
@@ -456,18 +477,13 @@ public class CacheResServiceImpl implements ResService {
             Iterator<PGPPublicKeyEncryptedData> it = enc.getEncryptedDataObjects();
             PGPPrivateKey sKey = null;
             PGPPublicKeyEncryptedData pbe = null;
-            PGPSecretKeyRingCollection pgpSec = new PGPSecretKeyRingCollection(
-                    PGPUtil.getDecoderStream(keyIn), fingerPrintCalculater);
 
             while (sKey == null && it.hasNext()) {
                 try {
                     pbe = it.next();
 
-                    PGPSecretKey pgpSecKey = pgpSec.getSecretKey(pbe.getKeyID());
-                    if (pgpSecKey != null) {
-                        PBESecretKeyDecryptor decryptor = new BcPBESecretKeyDecryptorBuilder(new BcPGPDigestCalculatorProvider()).build(key.toCharArray());
-                        sKey = pgpSecKey.extractPrivateKey(decryptor);
-                    }
+                    // parsed key ring and extracted key cached by key id
+                    sKey = pgpKeyCache.getPrivateKey(keyPath, pbe.getKeyID());
                 } catch (Throwable t) {
                     log.error(t.getMessage(), t);
                 }
@@ -505,15 +521,22 @@ public class CacheResServiceImpl implements ResService {
     // *************************************************************************
     // ** Get Public Key fo Encryption
     public PGPPublicKey getPublicGPGKey(String destinationFormat) throws IOException {
-        PGPPublicKey pgKey = null;
-        Security.addProvider(new BouncyCastleProvider());
-
         // Paths (file containing the key - no paswords for public GPG Keys)
-        KeyPath vals = keyService.getKeyPath(destinationFormat);
+        KeyPath vals = pgpKeyCache.getKeyPath(destinationFormat);
         if (vals == null) {
             throw new GeneralStreamingException("Can't Read Destination Key: " + destinationFormat, 10);
         }
-        String path = vals.getKeyPath();
+        try {
+            return pgpKeyCache.get(vals.getKeyPath(), this::readPublicGPGKey);
+        } catch (PGPException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private PGPPublicKey readPublicGPGKey(String path) throws IOException {
+        PGPPublicKey pgKey = null;
+        Security.addProvider(new BouncyCastleProvider());
+
         InputStream in = new FileInputStream(path);
 
         // Two types of public GPG key files - pick the correct one! (through trial-and-error)
@@ -573,7 +596,7 @@ public class CacheResServiceImpl implements ResService {
         return key;
     }
 
-    private void loadHeaderCleversafe(String id, String url, String httpAuth, long fileSize,
+    private EgaAESFileHeader loadHeaderCleversafe(String url, String httpAuth, long fileSize,
                                       HttpServletRequest request_, HttpServletResponse response_, String sourceKey) {
         String sessionId = Strings.isNullOrEmpty(request_.getHeader("Session-Id")) ? ""
                 : request_.getHeader("Session-Id") + " ";
@@ -595,7 +618,7 @@ public class CacheResServiceImpl implements ResService {
             try (DataInputStream content = new DataInputStream(response.getEntity().getContent())) {
                 byte[] IV = new byte[16];
                 content.readFully(IV);
-                myHeaderCache.put(id, new EgaAESFileHeader(IV, "aes256", fileSize, url, sourceKey));
+                return new EgaAESFileHeader(IV, "aes256", fileSize, url, sourceKey);
             }
         } catch (IOException ex) {
             throw new ServerErrorException(sessionId + "LoadHeader: " + ex.toString() + " :: ", url);
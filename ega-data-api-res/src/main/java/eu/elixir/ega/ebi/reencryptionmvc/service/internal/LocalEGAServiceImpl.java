@@ -16,23 +16,26 @@
 package eu.elixir.ega.ebi.reencryptionmvc.service.internal;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import eu.elixir.ega.ebi.reencryptionmvc.domain.Format;
 import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ResService;
-import htsjdk.samtools.seekablestream.SeekableBasicAuthHTTPStream;
-import htsjdk.samtools.seekablestream.SeekableFileStream;
-import htsjdk.samtools.seekablestream.SeekableHTTPStream;
+import eu.elixir.ega.ebi.reencryptionmvc.util.ParallelCtrOutputStream;
+import eu.elixir.ega.ebi.reencryptionmvc.util.ReadAheadSeekableStream;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
+import eu.elixir.ega.ebi.reencryptionmvc.util.TimedOutputStream;
 import io.minio.MinioClient;
 import io.minio.errors.*;
 import io.minio.http.Method;
 import lombok.extern.slf4j.Slf4j;
 import no.uio.ifi.crypt4gh.stream.Crypt4GHOutputStream;
 import no.uio.ifi.crypt4gh.stream.SeekableStreamInput;
-import org.apache.commons.crypto.stream.CtrCryptoOutputStream;
 import org.apache.commons.crypto.stream.PositionedCryptoInputStream;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BoundedInputStream;
-import org.apache.commons.lang.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -46,17 +49,22 @@ import org.springframework.stereotype.Service;
 import org.xmlpull.v1.XmlPullParserException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
+import java.nio.file.Paths;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author asenf
@@ -68,6 +76,7 @@ import java.util.Properties;
 public class LocalEGAServiceImpl implements ResService {
 
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
+    private static final int COPY_BUFFER_SIZE = 1024 * 64;
     private static final int MAX_EXPIRATION_TIME = 7 * 24 * 3600;
 
     @Value("${ega.ebi.aws.endpoint.url:#{null}}")
@@ -82,17 +91,72 @@ public class LocalEGAServiceImpl implements ResService {
     @Value("${ega.ebi.aws.access.secret:#{null}}")
     private String s3Secret;
 
+    @Value("${res.lega.read.block-size:4194304}")
+    private int readBlockSize;
+
+    @Value("${res.lega.read.depth:4}")
+    private int readAheadDepth;
+
+    @Value("${res.lega.read.threads:16}")
+    private int readAheadThreads;
+
+    @Value("${res.lega.encrypt.block-size:1048576}")
+    private int encryptBlockSize;
+
+    @Value("${res.lega.encrypt.max-blocks:8}")
+    private int encryptMaxBlocks;
+
+    @Value("${res.lega.encrypt.threads:8}")
+    private int encryptThreads;
+
+    @Value("${res.lega.s3-url.max-entries:10000}")
+    private int s3UrlCacheSize;
+
+    @Value("${res.lega.s3-url.ttl-minutes:60}")
+    private int s3UrlTtl;
+
     @Autowired
     private KeyService keyService;
 
+    @Autowired(required = false)
+    private CloseableHttpClient httpClient;
+
+    @Autowired(required = false)
+    private StageMetrics stageMetrics = new StageMetrics();
+
     private MinioClient s3Client;
 
+    // Presigned URLs by object, reused well within their validity
+    private Cache<String, String> s3Urls;
+
+    // Blocks read ahead of the decrypting stream, shared by all transfers; null reads them when needed
+    private ExecutorService readAheadExecutor;
+
+    // Blocks of AES output encrypted in parallel, shared by all transfers; null encrypts them on the request thread
+    private ExecutorService encryptExecutor;
+
     @PostConstruct
     private void init() throws InvalidPortException, InvalidEndpointException {
         Security.addProvider(new BouncyCastleProvider());
         if (s3URL != null && s3Key != null && s3Secret != null) {
             s3Client = new MinioClient(s3URL, s3Key, s3Secret);
         }
+        s3Urls = CacheBuilder.newBuilder()
+                .maximumSize(s3UrlCacheSize)
+                .expireAfterWrite(Math.min(s3UrlTtl, MAX_EXPIRATION_TIME / 60 / 2), TimeUnit.MINUTES)
+                .build();
+        readAheadExecutor = Executors.newFixedThreadPool(readAheadThreads,
+                new ThreadFactoryBuilder().setNameFormat("res-lega-read-ahead-%d").setDaemon(true).build());
+        encryptExecutor = Executors.newFixedThreadPool(encryptThreads,
+                new ThreadFactoryBuilder().setNameFormat("res-lega-encrypt-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (readAheadExecutor != null)
+            readAheadExecutor.shutdownNow();
+        if (encryptExecutor != null)
+            encryptExecutor.shutdownNow();
     }
 
     @Override
@@ -112,16 +176,21 @@ public class LocalEGAServiceImpl implements ResService {
                          HttpServletResponse response) {
         long transferSize = 0;
         InputStream inputStream;
+        TimedOutputStream clientStream;
         OutputStream outputStream;
         String sessionId= Strings.isNullOrEmpty(request.getHeader("Session-Id"))? "" : request.getHeader("Session-Id") + " ";
         try {
+            long headerStart = System.nanoTime();
             inputStream = getInputStream(Hex.decode(sourceKey),
                     Hex.decode(sourceIV),
                     fileLocation,
                     httpAuth,
                     startCoordinate,
                     endCoordinate);
-            outputStream = getOutputStream(response.getOutputStream(),
+            stageMetrics.record(StageMetrics.HEADER, System.nanoTime() - headerStart, 0);
+            clientStream = new TimedOutputStream(response.getOutputStream(),
+                    stageMetrics.stage(StageMetrics.CLIENT_WRITE));
+            outputStream = getOutputStream(clientStream,
                     Format.valueOf(destinationFormat.toUpperCase()),
                     destinationKey,
                     destinationIV);
@@ -133,7 +202,7 @@ public class LocalEGAServiceImpl implements ResService {
         response.setStatus(200);
         response.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
         try {
-            transferSize = IOUtils.copyLarge(inputStream, outputStream);
+            transferSize = copy(inputStream, outputStream, clientStream);
             inputStream.close();
             outputStream.flush();
             return transferSize;
@@ -143,25 +212,46 @@ public class LocalEGAServiceImpl implements ResService {
         }
     }
 
+    /*
+     * Copy loop, timed: reads are archive fetch and decryption in one, the
+     * part of a write not spent in the client stream is encryption
+     */
+    private long copy(InputStream inputStream, OutputStream outputStream, TimedOutputStream clientStream)
+            throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long count = 0;
+        while (true) {
+            long readStart = System.nanoTime();
+            int n = inputStream.read(buffer);
+            if (n == -1)
+                return count;
+            long writeStart = System.nanoTime();
+            stageMetrics.record(StageMetrics.ARCHIVE_FETCH, writeStart - readStart, n);
+            long clientNanos = clientStream.getNanos();
+            outputStream.write(buffer, 0, n);
+            stageMetrics.record(StageMetrics.ENCRYPT,
+                    System.nanoTime() - writeStart - (clientStream.getNanos() - clientNanos), n);
+            count += n;
+        }
+    }
+
     protected InputStream getInputStream(byte[] key,
                                          byte[] iv,
                                          String fileLocation,
                                          String httpAuth,
                                          long startCoordinate,
                                          long endCoordinate) throws IOException, InvalidKeyException, NoSuchAlgorithmException, InsufficientDataException, InvalidExpiresRangeException, InternalException, NoResponseException, InvalidBucketNameException, XmlPullParserException, ErrorResponseException, InvalidArgumentException {
-        InputStream inputStream;
+        // Archive read in large blocks, the next ones fetched ahead
+        ReadAheadSeekableStream.BlockSource source;
         if (fileLocation.startsWith("http")) { // some external URL
-            if (StringUtils.isNotEmpty(httpAuth)) {
-                inputStream = new SeekableBasicAuthHTTPStream(new URL(fileLocation), httpAuth);
-            } else {
-                inputStream = new SeekableHTTPStream(new URL(fileLocation));
-            }
+            source = new ReadAheadSeekableStream.HttpBlockSource(httpClient, fileLocation, httpAuth);
         } else if (fileLocation.startsWith("/")) { // absolute file path
-            inputStream = new SeekableFileStream(new File(fileLocation));
+            source = new ReadAheadSeekableStream.FileBlockSource(Paths.get(fileLocation));
         } else { // S3 object
-            String presignedObjectUrl = s3Client.getPresignedObjectUrl(Method.GET, s3Bucket, fileLocation, MAX_EXPIRATION_TIME, null);
-            inputStream = new SeekableHTTPStream(new URL(presignedObjectUrl));
+            source = new ReadAheadSeekableStream.HttpBlockSource(httpClient, getPresignedObjectUrl(fileLocation), null);
         }
+        InputStream inputStream = new ReadAheadSeekableStream(source, fileLocation, readBlockSize, readAheadDepth,
+                readAheadExecutor);
         // 32 bytes for SHA256 checksum - it's prepended to the file by lega-cryptor (LocalEGA python encryption tool)
         SeekableStreamInput seekableStreamInput = new SeekableStreamInput(inputStream, DEFAULT_BUFFER_SIZE, 32);
         PositionedCryptoInputStream positionedStream = new PositionedCryptoInputStream(new Properties(), seekableStreamInput, key, iv, 32);
@@ -171,13 +261,23 @@ public class LocalEGAServiceImpl implements ResService {
                 positionedStream;
     }
 
+    private String getPresignedObjectUrl(String fileLocation) throws IOException {
+        try {
+            return s3Urls.get(fileLocation,
+                    () -> s3Client.getPresignedObjectUrl(Method.GET, s3Bucket, fileLocation, MAX_EXPIRATION_TIME, null));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IOException("Error signing S3 URL for " + fileLocation, e.getCause());
+        }
+    }
+
     protected OutputStream getOutputStream(OutputStream outputStream, Format targetFormat, String targetKey, String targetIV) throws IOException,
             PGPException {
         switch (targetFormat) {
             case CRYPT4GH:
                 return new Crypt4GHOutputStream(outputStream, keyService.getPublicKey(targetKey));
             case AES:
-                return new CtrCryptoOutputStream(new Properties(), outputStream, targetKey.getBytes(), targetIV.getBytes());
+                return new ParallelCtrOutputStream(outputStream, new SecretKeySpec(targetKey.getBytes(), "AES"),
+                        targetIV.getBytes(), 0, encryptBlockSize, encryptMaxBlocks, encryptExecutor);
             default:
                 return outputStream;
         }
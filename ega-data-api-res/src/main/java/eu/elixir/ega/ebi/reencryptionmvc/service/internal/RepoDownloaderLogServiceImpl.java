@@ -9,11 +9,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 @Profile("repo-logger")
 @Primary
-@Transactional
 @Service
 public class RepoDownloaderLogServiceImpl implements DownloaderLogService {
 
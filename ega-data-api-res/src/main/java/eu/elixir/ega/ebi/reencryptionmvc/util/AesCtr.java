@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Seekable AES-CTR: positions a cipher at any byte offset of a stream that
+ * was encrypted from offset 0 with the given IV.
+ */
+public final class AesCtr {
+
+    public static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    public static final int BLOCK_SIZE = 16;
+
+    private AesCtr() {
+    }
+
+    /**
+     * Adds {@code blocks} to the 128 bit big-endian counter, in place and
+     * without allocation. Wraps around like the CTR counter itself.
+     *
+     * @param counter IV / counter block, modified
+     * @param blocks  number of blocks to add, not negative
+     */
+    public static void add(byte[] counter, long blocks) {
+        long carry = blocks;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+    }
+
+    /**
+     * Initialises {@code cipher} to continue the stream at byte {@code position}.
+     * For offsets that are not block aligned the key stream of the partial
+     * block is skipped.
+     *
+     * @param cipher   an {@link #TRANSFORMATION} cipher, reusable
+     * @param mode     {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key      AES key
+     * @param iv       IV of the stream at position 0, not modified
+     * @param position byte offset in the stream
+     * @return the cipher
+     */
+    public static Cipher init(Cipher cipher, int mode, SecretKey key, byte[] iv, long position)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        byte[] counter = iv.clone();
+        add(counter, position / BLOCK_SIZE);
+        cipher.init(mode, key, new IvParameterSpec(counter));
+        int skip = (int) (position % BLOCK_SIZE);
+        if (skip > 0)
+            cipher.update(new byte[skip]);
+        return cipher;
+    }
+
+    /**
+     * @return a new cipher positioned at byte {@code position}
+     * @see #init(Cipher, int, SecretKey, byte[], long)
+     */
+    public static Cipher getCipher(int mode, SecretKey key, byte[] iv, long position) throws NoSuchAlgorithmException,
+            NoSuchPaddingException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException {
+        return init(Cipher.getInstance(TRANSFORMATION), mode, key, iv, position);
+    }
+
+}
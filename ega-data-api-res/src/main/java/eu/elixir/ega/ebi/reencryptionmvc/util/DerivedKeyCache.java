@@ -0,0 +1,69 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import htsjdk.samtools.seekablestream.cipher.ebi.Glue;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of AES keys derived (PBKDF2, see {@link Glue}) from archive and
+ * destination passwords. The derivation depends only on the password and the
+ * key length, so all pages and requests for the same file share one entry.
+ */
+public class DerivedKeyCache {
+
+    private final LoadingCache<KeySpec, SecretKey> keys;
+
+    public DerivedKeyCache(long maxEntries, long ttlMinutes) {
+        this.keys = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+                .build(new CacheLoader<KeySpec, SecretKey>() {
+                    @Override
+                    public SecretKey load(KeySpec spec) {
+                        return Glue.getInstance().getKey(spec.password.toCharArray(), spec.bits);
+                    }
+                });
+    }
+
+    /**
+     * Returns the AES key for the given password, deriving it on first use.
+     *
+     * @param password archive or destination key
+     * @param bits     128 or 256
+     * @return derived AES key
+     */
+    public SecretKey getKey(String password, int bits) {
+        return keys.getUnchecked(new KeySpec(password, bits));
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static final class KeySpec {
+        private final String password;
+        private final int bits;
+    }
+
+}
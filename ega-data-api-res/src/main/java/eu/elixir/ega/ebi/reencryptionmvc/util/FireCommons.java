@@ -2,11 +2,15 @@ package eu.elixir.ega.ebi.reencryptionmvc.util;
 
 import java.net.URISyntaxException;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.springframework.cache.annotation.Cacheable;
 
 import lombok.extern.slf4j.Slf4j;
 import uk.ac.ebi.ega.fire.service.IFireService;
@@ -17,14 +21,24 @@ import uk.ac.ebi.ega.fire.models.FireResponse;
 public class FireCommons {
 
     private static final String PATH_OBJECTS = "objects/blob/path/";
+    private static final int ATTEMPTS = 4;
+    private static final long BACKOFF_MILLIS = 100; // before the second attempt, doubled for each further one
     private final String fireUrl;
     private final String base64EncodedCredentials;
     private final IFireService fireService;
 
-    public FireCommons(String fireUrl, String base64EncodedCredentials, IFireService fireService) {
+    // FIRE object URLs by path; concurrent requests for a path share one lookup
+    private final Cache<String, FireObject> fireObjects;
+
+    public FireCommons(String fireUrl, String base64EncodedCredentials, IFireService fireService,
+                       long maxUrls, long urlTtlMinutes) {
         this.fireUrl = fireUrl;
         this.base64EncodedCredentials = base64EncodedCredentials;
         this.fireService = fireService;
+        this.fireObjects = CacheBuilder.newBuilder()
+                .maximumSize(maxUrls)
+                .expireAfterWrite(urlTtlMinutes, TimeUnit.MINUTES)
+                .build();
     }
 
     public void addAuthenticationForFireRequest(String httpAuth, String url, HttpGet request) {
@@ -41,42 +55,54 @@ public class FireCommons {
         return getFireSignedUrl(path.toLowerCase().startsWith("/fire/a/") ? path.substring(16) : path, "").getFileURL();
     }
 
-    @Cacheable(cacheNames = "fireSignedUrl", key = "#root.methodName + #path")
     public FireObject getFireSignedUrl(String path, String sessionId) {
-        // Sending Request; 4 re-try attempts
-        int reTryCount = 4;
-        Optional<FireResponse> fireResponse = Optional.empty();
-        do {
+        try {
+            return fireObjects.get(path, () -> findFireObject(path, sessionId));
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new ServerErrorException("Session id: " + sessionId + " can't not retrieve FireFileURL", ex.getCause());
+        }
+    }
+
+    public long getCachedUrls() {
+        return fireObjects.size();
+    }
+
+    // Errors are retried after a growing pause, a missing file is not; failures are not cached
+    private FireObject findFireObject(String path, String sessionId) {
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                try {
+                    Thread.sleep(BACKOFF_MILLIS << (attempt - 2));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
             try {
-                fireResponse = fireService.findFile(path);
-
-                if (fireResponse.isPresent()) {
-                    FireResponse fire = fireResponse.get();
-                    final String encodedFirePath;
-                    try {
-                        encodedFirePath = new URIBuilder()
-                                .setPath(path)
-                                .build()
-                                .getRawPath();
-                    } catch (URISyntaxException e) {
-                        throw new FireServiceException("Session id: " + sessionId +" Unable to build encoded fire path.", e);
-                    }
-                    log.info(sessionId + " path=" + encodedFirePath);
-
-                    return new FireObject(fireUrl + PATH_OBJECTS + encodedFirePath, fire.getObjectSize());
+                Optional<FireResponse> fireResponse = fireService.findFile(path);
+                if (!fireResponse.isPresent()) {
+                    log.error(sessionId + "FIRE has no file at " + path);
+                    break;
                 }
 
-            } catch (Throwable th) {
-                log.error(sessionId + "FIRE error: " + th.getMessage(), th);
-            }
-            if (!fireResponse.isPresent()) {
+                final String encodedFirePath;
                 try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    log.error(e.getMessage(), e);
+                    encodedFirePath = new URIBuilder()
+                            .setPath(path)
+                            .build()
+                            .getRawPath();
+                } catch (URISyntaxException e) {
+                    throw new FireServiceException("Session id: " + sessionId +" Unable to build encoded fire path.", e);
                 }
+                log.info(sessionId + " path=" + encodedFirePath);
+
+                return new FireObject(fireUrl + PATH_OBJECTS + encodedFirePath, fireResponse.get().getObjectSize());
+            } catch (Throwable th) {
+                log.error(sessionId + "FIRE error (attempt " + attempt + "): " + th.getMessage(), th);
             }
-        } while (!fireResponse.isPresent() && --reTryCount > 0);
+        }
 
         throw new ServerErrorException("Session id: " + sessionId + " can't not retrieve FireFileURL");
     }
@@ -0,0 +1,94 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum trailer of a plain transfer, for clients that verify the data
+ * page by page instead of hashing all of it with MD5.
+ * <p>
+ * A client asks for it with the request header {@code X-Checksum: crc32}.
+ * The response then carries {@code X-Checksum: crc32}, the number of data
+ * bytes in {@code X-Checksum-Length} and the page size in
+ * {@code X-Checksum-Page-Size}. The data is followed by one CRC32 (4 bytes,
+ * big-endian) per segment, a segment being the part of the data within one
+ * page of the file; the first and last segment may be short. Whole pages use
+ * the checksum computed when the page was loaded, so only the partial pages
+ * at either end are hashed during the transfer.
+ */
+public class PageChecksums {
+
+    public static final String HEADER = "X-Checksum";
+    public static final String LENGTH_HEADER = "X-Checksum-Length";
+    public static final String PAGE_SIZE_HEADER = "X-Checksum-Page-Size";
+    public static final String CRC32 = "crc32";
+
+    private final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+
+    /**
+     * @return true if the client asked for checksums and the transfer can have them (plain output)
+     */
+    public static boolean isRequested(HttpServletRequest request, String destinationFormat) {
+        return CRC32.equalsIgnoreCase(request.getHeader(HEADER)) && "plain".equalsIgnoreCase(destinationFormat);
+    }
+
+    /**
+     * Announces the trailer in the response headers, before any data is written.
+     *
+     * @param length   data bytes of the transfer, without the trailer
+     * @param pageSize page size, segments end at multiples of it in file coordinates
+     */
+    public static PageChecksums start(HttpServletResponse response, long length, long pageSize) {
+        response.setHeader(HEADER, CRC32);
+        response.setHeader(LENGTH_HEADER, String.valueOf(length));
+        response.setHeader(PAGE_SIZE_HEADER, String.valueOf(pageSize));
+        return new PageChecksums();
+    }
+
+    /**
+     * Adds the segment of a page that is sent.
+     */
+    public void add(CachePage page, int offset, int length) {
+        int checksum;
+        if (offset == 0 && length == page.getLength()) {
+            checksum = page.getChecksum();
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(page.getPage(), offset, length);
+            checksum = (int) crc.getValue();
+        }
+        trailer.write(checksum >>> 24);
+        trailer.write(checksum >>> 16);
+        trailer.write(checksum >>> 8);
+        trailer.write(checksum);
+    }
+
+    /**
+     * @return the checksums of all segments added, to be written after the data
+     */
+    public byte[] getTrailer() {
+        return trailer.toByteArray();
+    }
+
+}
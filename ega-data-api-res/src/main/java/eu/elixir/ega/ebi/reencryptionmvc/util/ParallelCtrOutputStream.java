@@ -0,0 +1,200 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * AES-CTR encrypting output stream that encrypts blocks of the stream on a
+ * worker pool and writes them in order.
+ * <p>
+ * CTR blocks are independent: the cipher for any byte offset is derived from
+ * the IV ({@link AesCtr#init}), so each block is encrypted on its own and the
+ * output is the same as that of a {@link javax.crypto.CipherOutputStream}
+ * over one cipher. At most {@code maxBlocks} blocks are being encrypted or
+ * waiting to be written; a writer that gets ahead of that waits for the
+ * oldest block and writes it. Buffers are reused, so memory stays at
+ * {@code maxBlocks + 1} blocks per stream. Not thread safe.
+ */
+public class ParallelCtrOutputStream extends OutputStream {
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(AesCtr.TRANSFORMATION);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final OutputStream out;
+    private final SecretKey key;
+    private final byte[] iv;
+    private final ExecutorService executor; // null: blocks are encrypted on the writing thread
+    private final int blockSize;
+    private final int maxBlocks;
+
+    // Blocks being encrypted, oldest first, and buffers free for reuse
+    private final Deque<Block> pending = new ArrayDeque<>();
+    private final Deque<byte[]> free = new ArrayDeque<>();
+
+    private byte[] buffer;
+    private int count;
+    private long position; // stream offset of buffer[0]
+    private boolean closed;
+
+    /**
+     * @param position  stream offset of the first byte written, for the counter
+     * @param blockSize bytes encrypted per task
+     * @param maxBlocks blocks in flight before a write waits
+     * @param executor  pool encrypting the blocks, null to encrypt them when full
+     */
+    public ParallelCtrOutputStream(OutputStream out, SecretKey key, byte[] iv, long position, int blockSize,
+                                   int maxBlocks, ExecutorService executor) {
+        this.out = out;
+        this.key = key;
+        this.iv = iv.clone();
+        this.position = position;
+        this.blockSize = blockSize;
+        this.maxBlocks = Math.max(1, maxBlocks);
+        this.executor = executor;
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize)
+                submit();
+        }
+    }
+
+    /**
+     * Encrypts and writes everything written so far.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0)
+            submit();
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            for (Block block : pending) {
+                block.future.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        while (pending.size() >= maxBlocks) {
+            writeOldest();
+        }
+        Block block = new Block(buffer, count, position);
+        pending.add(block);
+        if (executor != null) {
+            try {
+                executor.execute(block.future);
+            } catch (RejectedExecutionException ex) {
+                // pool shut down: encrypted when written
+            }
+        }
+        position += count;
+        count = 0;
+        buffer = free.isEmpty() ? new byte[blockSize] : free.poll();
+    }
+
+    private void writeOldest() throws IOException {
+        Block block = pending.poll();
+        if (!block.future.isDone())
+            block.future.run(); // not started yet: encrypt it here rather than wait for the pool
+        try {
+            block.future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted encrypting at " + block.position);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error encrypting at " + block.position, ex.getCause());
+        }
+        out.write(block.data, 0, block.length);
+        free.add(block.data);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+
+    /**
+     * Block of the stream, encrypted in place.
+     */
+    private class Block {
+
+        private final byte[] data;
+        private final int length;
+        private final long position;
+        private final FutureTask<Void> future;
+
+        private Block(byte[] data, int length, long position) {
+            this.data = data;
+            this.length = length;
+            this.position = position;
+            this.future = new FutureTask<>(() -> {
+                Cipher cipher = AesCtr.init(CIPHERS.get(), Cipher.ENCRYPT_MODE, key, iv, position);
+                cipher.update(data, 0, length, data, 0);
+                return null;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.KeyPath;
+import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of PGP key material: key file paths from the key service, parsed
+ * key files and private keys extracted from secret key rings.
+ * <p>
+ * Parsing a key ring and the S2K passphrase extraction of a private key take
+ * hundreds of milliseconds; with the cache only the first GPG request for a
+ * key pays for them. Files are loaded again when their modification time or
+ * size changes (checked on each use, one stat), so replacing a key file on
+ * disk takes effect without a restart. Key paths are looked up again after
+ * {@code ttlMinutes}.
+ */
+@Slf4j
+public class PgpKeyCache {
+
+    /**
+     * Parses a key file.
+     */
+    public interface Loader<T> {
+        T load(String path) throws IOException, PGPException;
+    }
+
+    private final KeyService keyService;
+    private final KeyFingerPrintCalculator fingerPrintCalculator = new BcKeyFingerprintCalculator();
+    private final Cache<String, KeyPath> keyPaths;
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+
+    public PgpKeyCache(KeyService keyService, long ttlMinutes) {
+        this.keyService = keyService;
+        this.keyPaths = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Returns the key file paths of a key, asking the key service on first use.
+     *
+     * @return paths, null if the key service has none (not cached)
+     */
+    public KeyPath getKeyPath(String keyName) {
+        KeyPath keyPath = keyPaths.getIfPresent(keyName);
+        if (keyPath == null) {
+            keyPath = keyService.getKeyPath(keyName);
+            if (keyPath != null)
+                keyPaths.put(keyName, keyPath);
+        }
+        return keyPath;
+    }
+
+    /**
+     * Returns the content of a key file as parsed by {@code loader}, parsing
+     * it on first use and after the file changed. A file is always read with
+     * the same loader.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String path, Loader<T> loader) throws IOException, PGPException {
+        FileStamp stamp = new FileStamp(new File(path).lastModified(), new File(path).length());
+        FileEntry entry = files.get(path);
+        if (entry == null || !entry.stamp.equals(stamp)) {
+            // Parsed outside of the map: a slow key file doesn't block the others
+            entry = new FileEntry(stamp, loader.load(path));
+            files.put(path, entry);
+            log.info("Loaded key file " + path);
+        }
+        return (T) entry.value;
+    }
+
+    /**
+     * Returns the private key with the given id from a secret key ring,
+     * extracting it with the passphrase in {@link KeyPath#getKeyPassPath()}
+     * on first use.
+     *
+     * @return the key, null if the key ring has no key with that id
+     */
+    public PGPPrivateKey getPrivateKey(KeyPath keyPath, long keyId) throws IOException, PGPException {
+        String passphrase = get(keyPath.getKeyPassPath(), PgpKeyCache::readFirstLine);
+        SecretKeys secretKeys = get(keyPath.getKeyPath(), this::readSecretKeys);
+        return secretKeys.getPrivateKey(keyId, passphrase);
+    }
+
+    /**
+     * Reads a passphrase or password file.
+     *
+     * @return its first line
+     */
+    public static String readFirstLine(String path) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            return br.readLine();
+        }
+    }
+
+    private SecretKeys readSecretKeys(String path) throws IOException, PGPException {
+        try (InputStream keyIn = new BufferedInputStream(new FileInputStream(path))) {
+            return new SecretKeys(new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn),
+                    fingerPrintCalculator));
+        }
+    }
+
+    /**
+     * A secret key ring and the private keys extracted from it, by key id
+     * and passphrase (the passphrase file may change on its own).
+     */
+    private static class SecretKeys {
+
+        private final PGPSecretKeyRingCollection keyRings;
+        private final Map<String, PGPPrivateKey> privateKeys = new ConcurrentHashMap<>();
+
+        private SecretKeys(PGPSecretKeyRingCollection keyRings) {
+            this.keyRings = keyRings;
+        }
+
+        private PGPPrivateKey getPrivateKey(long keyId, String passphrase) throws PGPException {
+            String key = keyId + ":" + passphrase;
+            PGPPrivateKey privateKey = privateKeys.get(key);
+            if (privateKey == null) {
+                PGPSecretKey secretKey = keyRings.getSecretKey(keyId);
+                if (secretKey == null)
+                    return null;
+                privateKey = secretKey.extractPrivateKey(new BcPBESecretKeyDecryptorBuilder(
+                        new BcPGPDigestCalculatorProvider()).build(passphrase.toCharArray()));
+                privateKeys.put(key, privateKey);
+            }
+            return privateKey;
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class FileEntry {
+        private final FileStamp stamp;
+        private final Object value;
+    }
+
+    /**
+     * Modification time and size of a file, to tell when it was replaced.
+     */
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static final class FileStamp {
+        private final long lastModified;
+        private final long length;
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Seekable stream over an archive file that reads it in large blocks and
+ * fetches the blocks following the current one in the background.
+ * <p>
+ * Small reads by the decrypting layer above are served from the current
+ * block, so each block costs one range request (or one positional read of a
+ * local file) instead of one per few KB. Up to {@code depth} blocks after
+ * the current one are in flight on the executor; a seek outside the window
+ * drops them. Not thread safe, like other seekable streams.
+ */
+public class ReadAheadSeekableStream extends SeekableStream {
+
+    /**
+     * Random access to the archive file.
+     */
+    public interface BlockSource {
+
+        /**
+         * Reads {@code length} bytes at {@code position}, fewer only at the end of the file.
+         *
+         * @return bytes read
+         */
+        int read(long position, byte[] buffer, int length) throws IOException;
+
+        long length() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final BlockSource source;
+    private final String sourceName;
+    private final long length;
+    private final int blockSize;
+    private final int depth;
+    private final ExecutorService executor; // null: blocks are read on the calling thread
+
+    // Blocks read or being read, by index; the current one and up to 'depth' after it
+    private final TreeMap<Long, Future<byte[]>> blocks = new TreeMap<>();
+    private long position;
+
+    /**
+     * @param blockSize bytes per read from the source
+     * @param depth     blocks read ahead of the current one
+     * @param executor  pool for blocks read ahead, null to read them when needed
+     */
+    public ReadAheadSeekableStream(BlockSource source, String sourceName, int blockSize, int depth,
+                                   ExecutorService executor) throws IOException {
+        this.source = source;
+        this.sourceName = sourceName;
+        this.length = source.length();
+        this.blockSize = blockSize;
+        this.depth = executor == null ? 0 : depth;
+        this.executor = executor;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public boolean eof() {
+        return position >= length;
+    }
+
+    @Override
+    public String getSource() {
+        return sourceName;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (eof())
+            return -1;
+        long index = position / blockSize;
+        byte[] block = getBlock(index);
+        int blockOffset = (int) (position - index * blockSize);
+        int n = Math.min(len, block.length - blockOffset);
+        if (n <= 0)
+            throw new EOFException("Block " + index + " of " + sourceName + " ends at " + block.length);
+        System.arraycopy(block, blockOffset, buffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> block : blocks.values()) {
+            block.cancel(true);
+        }
+        blocks.clear();
+        source.close();
+    }
+
+    private byte[] getBlock(long index) throws IOException {
+        long last = Math.min(index + depth, (length - 1) / blockSize);
+        // Drop blocks outside the window, after a seek or once they have been read
+        Iterator<Map.Entry<Long, Future<byte[]>>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Future<byte[]>> entry = it.next();
+            if (entry.getKey() < index || entry.getKey() > last) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+        Future<byte[]> current = blocks.computeIfAbsent(index, this::readBlock);
+        for (long next = index + 1; next <= last; next++) {
+            blocks.computeIfAbsent(next, this::readBlock);
+        }
+        if (current instanceof FutureTask && !current.isDone())
+            ((FutureTask<byte[]>) current).run(); // not started yet: read it here rather than wait for the pool
+        try {
+            return current.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + sourceName);
+        } catch (ExecutionException ex) {
+            blocks.remove(index); // the next read tries again
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("Error reading " + sourceName + " at " + index * blockSize, ex.getCause());
+        }
+    }
+
+    private Future<byte[]> readBlock(long index) {
+        FutureTask<byte[]> task = new FutureTask<>(() -> {
+            long start = index * blockSize;
+            byte[] block = new byte[(int) Math.min(blockSize, length - start)];
+            int n = source.read(start, block, block.length);
+            if (n < block.length)
+                throw new EOFException(sourceName + " ended at " + (start + n) + " of " + length);
+            return block;
+        });
+        if (executor != null && index != position / blockSize) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                // pool shut down: read it when needed
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Positional reads of a local file, no shared file pointer.
+     */
+    public static class FileBlockSource implements BlockSource {
+
+        private final FileChannel channel;
+
+        public FileBlockSource(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int length) throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position()) == -1)
+                    break;
+            }
+            return target.position();
+        }
+
+        @Override
+        public long length() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Range requests on the pooled http client.
+     */
+    public static class HttpBlockSource implements BlockSource {
+
+        private final CloseableHttpClient httpClient;
+        private final String url;
+        private final String authorization; // null if none
+
+        /**
+         * @param httpAuth 'user:password' for basic authentication, null or empty if none
+         */
+        public HttpBlockSource(CloseableHttpClient httpClient, String url, String httpAuth) {
+            this.httpClient = httpClient;
+            this.url = url;
+            this.authorization = httpAuth == null || httpAuth.isEmpty() ? null
+                    : "Basic " + Base64.getEncoder().encodeToString(httpAuth.getBytes());
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int length) throws IOException {
+            HttpGet request = new HttpGet(url);
+            if (authorization != null)
+                request.addHeader("Authorization", authorization);
+            request.addHeader("Range", "bytes=" + position + "-" + (position + length - 1));
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status != 206 && !(status == 200 && position == 0))
+                    throw new IOException("Status " + status + " reading " + url + " at " + position);
+                try (InputStream in = response.getEntity().getContent()) {
+                    new DataInputStream(in).readFully(buffer, 0, length);
+                    return length;
+                }
+            } finally {
+                request.releaseConnection();
+            }
+        }
+
+        // A one byte range, presigned URLs are signed for GET only
+        @Override
+        public long length() throws IOException {
+            HttpGet request = new HttpGet(url);
+            if (authorization != null)
+                request.addHeader("Authorization", authorization);
+            request.addHeader("Range", "bytes=0-0");
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                Header contentRange = response.getFirstHeader("Content-Range");
+                if (status == 206 && contentRange != null)
+                    return Long.parseLong(contentRange.getValue().substring(contentRange.getValue().indexOf('/') + 1));
+                if (status == 200 && response.getEntity() != null && response.getEntity().getContentLength() >= 0)
+                    return response.getEntity().getContentLength();
+                throw new IOException("Status " + status + " getting the size of " + url);
+            } finally {
+                request.abort(); // don't read the body of a whole file answer
+            }
+        }
+
+        @Override
+        public void close() {
+            // connections go back to the pool after each request
+        }
+    }
+
+}
@@ -4,6 +4,8 @@ import static com.amazonaws.HttpMethod.GET;
 
 import java.net.URL;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
@@ -12,9 +14,19 @@ import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Presigned S3 object URLs. One client is shared by all callers, and the
+ * URL of an object is signed once and reused until shortly before it
+ * expires.
+ */
 @Slf4j
 public class S3Commons {
     
@@ -22,37 +34,64 @@ public class S3Commons {
     private final String awsSecretAccessKey;
     private final String awsEndpointUrl;
     private final String awsRegion;
-    
-    public S3Commons(String awsAccessKeyId, String awsSecretAccessKey, String awsEndpointUrl, String awsRegion) {
+    private final long urlValidityMillis;
+
+    // Built on first use, the keys are not set where S3 isn't used
+    private final Supplier<AmazonS3> s3 = Suppliers.memoize(this::buildClient);
+    private final Cache<String, String> objectUrls;
+
+    /**
+     * @param maxUrls              presigned URLs to keep
+     * @param urlValidityMinutes   validity of a presigned URL
+     * @param refreshMarginMinutes how long before it expires a URL is no longer handed out
+     */
+    public S3Commons(String awsAccessKeyId, String awsSecretAccessKey, String awsEndpointUrl, String awsRegion,
+                     long maxUrls, long urlValidityMinutes, long refreshMarginMinutes) {
         this.awsAccessKeyId = awsAccessKeyId;
         this.awsSecretAccessKey = awsSecretAccessKey;
         this.awsEndpointUrl = awsEndpointUrl;
         this.awsRegion = awsRegion;
+        this.urlValidityMillis = TimeUnit.MINUTES.toMillis(urlValidityMinutes);
+        this.objectUrls = CacheBuilder.newBuilder()
+                .maximumSize(maxUrls)
+                .expireAfterWrite(Math.max(0, urlValidityMinutes - refreshMarginMinutes), TimeUnit.MINUTES)
+                .build();
     }
 
-
     public String getS3ObjectUrl(String fileLocation) {
-        log.info("Inside load loadHeaders3 - 2" + awsEndpointUrl + "==" + awsRegion);
-        // Load first 16 bytes; set stats
+        try {
+            return objectUrls.get(fileLocation, () -> presign(fileLocation));
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new UncheckedExecutionException(ex.getCause());
+        }
+    }
+
+    public long getCachedUrls() {
+        return objectUrls.size();
+    }
+
+    private String presign(String fileLocation) {
+        log.info("Signing S3 URL for " + fileLocation + " " + awsEndpointUrl + "==" + awsRegion);
         final String bucket = fileLocation.substring(5, fileLocation.indexOf("/", 5));
         final String awsPath = fileLocation.substring(fileLocation.indexOf("/", 5) + 1);
 
-        final AWSCredentials credentials = new BasicAWSCredentials(awsAccessKeyId, awsSecretAccessKey);
-        final AmazonS3 s3 = AmazonS3ClientBuilder.standard()
-                .withCredentials(new AWSStaticCredentialsProvider(credentials)).withPathStyleAccessEnabled(true)
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(awsEndpointUrl, awsRegion))
-                .build();
-
-        Date expiration = new Date();
-        long expTimeMillis = expiration.getTime();
-        expTimeMillis += (1000 * 3600) * 24;
-        expiration.setTime(expTimeMillis);
+        Date expiration = new Date(System.currentTimeMillis() + urlValidityMillis);
 
         GeneratePresignedUrlRequest generatePresignedUrlRequest = new GeneratePresignedUrlRequest(bucket, awsPath)
                 .withMethod(GET).withExpiration(expiration);
-        URL url = s3.generatePresignedUrl(generatePresignedUrlRequest);
+        URL url = s3.get().generatePresignedUrl(generatePresignedUrlRequest);
 
         return url.toString();
     }
 
+    private AmazonS3 buildClient() {
+        final AWSCredentials credentials = new BasicAWSCredentials(awsAccessKeyId, awsSecretAccessKey);
+        return AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(credentials)).withPathStyleAccessEnabled(true)
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(awsEndpointUrl, awsRegion))
+                .build();
+    }
+
 }
@@ -0,0 +1,209 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms of the stages of a transfer, so a slow download can be
+ * told apart as archive-bound (header, fetch, page wait), CPU-bound
+ * (decrypt, encrypt) or client-bound (client write, backpressure).
+ * <p>
+ * Each stage counts its events into power-of-two buckets of microseconds,
+ * without locking. The histograms are published on the actuator
+ * {@code /metrics} endpoint as {@code stage.<name>.*}: count, bytes,
+ * throughput, mean, percentiles, max and the cumulative bucket counts.
+ */
+public class StageMetrics implements PublicMetrics {
+
+    /** Resolving the archive file header (IV, key, URL) for a transfer */
+    public static final String HEADER = "header";
+    /** One sub-range read from the archive; LocalEGA reads through a decrypting stream, so fetch and decrypt together */
+    public static final String ARCHIVE_FETCH = "archive-fetch";
+    /** Decrypting archive data */
+    public static final String DECRYPT = "decrypt";
+    /** Loading a page that was not in the page cache */
+    public static final String PAGE_LOAD = "page-load";
+    /** The transfer waiting for its next page */
+    public static final String PAGE_WAIT = "page-wait";
+    /** Encrypting data for the client */
+    public static final String ENCRYPT = "encrypt";
+    /** Writing to the client connection; blocking transfers block here on slow clients */
+    public static final String CLIENT_WRITE = "client-write";
+    /** Non-blocking transfers waiting for the client to take more data */
+    public static final String BACKPRESSURE = "backpressure";
+
+    private static final int BUCKETS = 40; // up to 2^40 us, about 12 days
+
+    private final Map<String, Stage> stages;
+
+    public StageMetrics() {
+        Map<String, Stage> stages = new LinkedHashMap<>();
+        for (String name : new String[]{HEADER, ARCHIVE_FETCH, DECRYPT, PAGE_LOAD, PAGE_WAIT, ENCRYPT,
+                CLIENT_WRITE, BACKPRESSURE}) {
+            stages.put(name, new Stage(name));
+        }
+        this.stages = Collections.unmodifiableMap(stages);
+    }
+
+    /**
+     * @param name one of the stage constants
+     * @return the stage
+     */
+    public Stage stage(String name) {
+        Stage stage = stages.get(name);
+        if (stage == null)
+            throw new IllegalArgumentException("Unknown stage '" + name + "'");
+        return stage;
+    }
+
+    public void record(String name, long nanos, long bytes) {
+        stage(name).record(nanos, bytes);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        for (Stage stage : stages.values()) {
+            stage.addMetrics(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Histogram of one stage.
+     */
+    public static final class Stage {
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param nanos duration of the event
+         * @param bytes data handled in it, 0 if not applicable
+         */
+        public void record(long nanos, long bytes) {
+            if (nanos < 0)
+                nanos = 0;
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = micros == 0 ? 0 : Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            this.bytes.add(bytes);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @param percentile 0-100
+         * @return upper bound of the bucket holding the percentile, in microseconds
+         */
+        public long getPercentileMicros(double percentile) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank))
+                    return upperMicros(i);
+            }
+            return upperMicros(BUCKETS);
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        // Bucket i holds durations below 2^i us
+        private static long upperMicros(int bucket) {
+            return 1L << bucket;
+        }
+
+        private void addMetrics(List<Metric<?>> metrics) {
+            String prefix = "stage." + name + ".";
+            long n = getCount();
+            long nanos = getTotalNanos();
+            metrics.add(new Metric<>(prefix + "count", n));
+            metrics.add(new Metric<>(prefix + "bytes", getBytes()));
+            metrics.add(new Metric<>(prefix + "mbPerSecond",
+                    nanos == 0 ? 0.0 : getBytes() / (1024.0 * 1024.0) / (nanos / 1e9)));
+            metrics.add(new Metric<>(prefix + "meanMillis", n == 0 ? 0.0 : nanos / 1e6 / n));
+            metrics.add(new Metric<>(prefix + "p50Millis", getPercentileMicros(50) / 1000.0));
+            metrics.add(new Metric<>(prefix + "p95Millis", getPercentileMicros(95) / 1000.0));
+            metrics.add(new Metric<>(prefix + "p99Millis", getPercentileMicros(99) / 1000.0));
+            metrics.add(new Metric<>(prefix + "maxMillis", getMaxNanos() / 1e6));
+            long[] counts = snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (counts[i] > 0)
+                    metrics.add(new Metric<>(prefix + "bucket.le" + upperMicros(i) + "us", cumulative));
+            }
+        }
+    }
+
+}
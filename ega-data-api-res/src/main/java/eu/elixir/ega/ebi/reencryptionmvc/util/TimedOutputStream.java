@@ -0,0 +1,75 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that records the time spent in the wrapped stream. Used
+ * under an encrypting stream, the time of a write to the encrypting stream
+ * minus the time added here is the encryption time.
+ * <p>
+ * Not thread safe, like the streams it wraps.
+ */
+public class TimedOutputStream extends FilterOutputStream {
+
+    private final StageMetrics.Stage stage;
+    private long nanos;
+
+    public TimedOutputStream(OutputStream out, StageMetrics.Stage stage) {
+        super(out);
+        this.stage = stage;
+    }
+
+    /**
+     * @return total time spent in the wrapped stream so far
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        record(start, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        record(start, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        record(start, 0);
+    }
+
+    private void record(long start, long bytes) {
+        long elapsed = System.nanoTime() - start;
+        nanos += elapsed;
+        stage.record(elapsed, bytes);
+    }
+
+}
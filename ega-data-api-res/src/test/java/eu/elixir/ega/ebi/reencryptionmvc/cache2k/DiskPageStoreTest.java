@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test class for {@link DiskPageStore}.
+ */
+public class DiskPageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Verify a committed page can be read back, also after a restart, and an
+     * aborted one is not visible.
+     */
+    @Test
+    public void testWriteAndRead() throws Exception {
+        DiskPageStore store = new DiskPageStore(folder.getRoot().toPath(), 1000);
+        store.write("EGAF1", 0, 10).abort();
+        write(store, "EGAF1", 1, 10);
+
+        byte[] buffer = new byte[10];
+        assertThat(store.read("EGAF1", 0, buffer, 10), equalTo(false));
+        assertThat(store.read("EGAF1", 1, buffer, 10), equalTo(true));
+        assertThat(buffer, equalTo(page(1, 10)));
+
+        store = new DiskPageStore(folder.getRoot().toPath(), 1000);
+        Arrays.fill(buffer, (byte) 0);
+        assertThat(store.read("EGAF1", 1, buffer, 10), equalTo(true));
+        assertThat(buffer, equalTo(page(1, 10)));
+        assertThat(store.getTotalBytes(), equalTo(14L)); // page and checksum
+    }
+
+    /**
+     * Verify a page file that does not match its checksum is deleted rather
+     * than returned.
+     */
+    @Test
+    public void testCorruptPageIsDiscarded() throws Exception {
+        DiskPageStore store = new DiskPageStore(folder.getRoot().toPath(), 1000);
+        write(store, "EGAF1", 0, 10);
+        try (RandomAccessFile file = new RandomAccessFile(folder.getRoot().listFiles()[0], "rw")) {
+            file.seek(3);
+            file.write(0x55);
+        }
+
+        assertThat(store.read("EGAF1", 0, new byte[10], 10), equalTo(false));
+        assertThat(store.getMisses(), equalTo(1L));
+        assertThat(store.getTotalBytes(), equalTo(0L));
+        assertThat(folder.getRoot().list().length, equalTo(0));
+    }
+
+    /**
+     * Verify the least recently used page is deleted when the store is full.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        DiskPageStore store = new DiskPageStore(folder.getRoot().toPath(), 28);
+        write(store, "EGAF1", 0, 10);
+        write(store, "EGAF1", 1, 10);
+        store.read("EGAF1", 0, new byte[10], 10);
+        write(store, "EGAF1", 2, 10);
+
+        assertThat(store.read("EGAF1", 0, new byte[10], 10), equalTo(true));
+        assertThat(store.read("EGAF1", 1, new byte[10], 10), equalTo(false));
+        assertThat(store.getTotalBytes(), equalTo(28L));
+        assertThat(folder.getRoot().list().length, equalTo(2));
+    }
+
+    /**
+     * Verify leftovers of interrupted writes are removed on startup.
+     */
+    @Test
+    public void testRebuildRemovesTemporaryFiles() throws Exception {
+        DiskPageStore store = new DiskPageStore(folder.getRoot().toPath(), 1000);
+        store.write("EGAF1", 0, 10).write(page(0, 10), 0, 5, 0);
+        assertThat(folder.getRoot().list().length, equalTo(1));
+
+        new DiskPageStore(folder.getRoot().toPath(), 1000);
+        File[] files = folder.getRoot().listFiles();
+        assertThat(files.length, equalTo(0));
+    }
+
+    private static void write(DiskPageStore store, String id, int page, int length) {
+        DiskPageStore.PageWriter writer = store.write(id, page, length);
+        byte[] data = page(page, length);
+        writer.write(data, 5, length - 5, 5);
+        writer.write(data, 0, 5, 0);
+        writer.commit();
+    }
+
+    private static byte[] page(int page, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) (page + 1));
+        return data;
+    }
+
+}
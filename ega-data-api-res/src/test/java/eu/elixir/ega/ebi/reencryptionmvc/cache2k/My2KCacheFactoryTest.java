@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cache2k.Cache;
+import org.cache2k.integration.CacheLoader;
+import org.junit.Test;
+
+import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
+
+/**
+ * Test class for {@link My2KCacheFactory}.
+ */
+public class My2KCacheFactoryTest {
+
+    /**
+     * Verify concurrent misses on the same file load its header only once.
+     */
+    @Test
+    public void testConcurrentGetLoadsOnce() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final Cache<String, EgaAESFileHeader> cache = new My2KCacheFactory(new CacheLoader<String, EgaAESFileHeader>() {
+            @Override
+            public EgaAESFileHeader load(String id) throws Exception {
+                loads.incrementAndGet();
+                loading.await();
+                return new EgaAESFileHeader(new byte[16], "aes256", 100, "http://fire/" + id, "key");
+            }
+        }, 10, 50, 30).getObject();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<EgaAESFileHeader>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> cache.get("id")));
+            }
+            Thread.sleep(200);
+            loading.countDown();
+
+            final EgaAESFileHeader header = results.get(0).get();
+            for (Future<EgaAESFileHeader> result : results) {
+                assertThat(result.get(), sameInstance(header));
+            }
+            assertThat(loads.get(), equalTo(1));
+        } finally {
+            executor.shutdown();
+            cache.close();
+        }
+    }
+
+}
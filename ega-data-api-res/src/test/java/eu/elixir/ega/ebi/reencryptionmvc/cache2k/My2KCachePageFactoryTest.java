@@ -0,0 +1,324 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.cache2k.Cache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
+import eu.elixir.ega.ebi.reencryptionmvc.exception.NotFoundException;
+import eu.elixir.ega.ebi.reencryptionmvc.util.DerivedKeyCache;
+import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.StageMetrics;
+
+/**
+ * Test class for {@link My2KCachePageFactory}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class My2KCachePageFactoryTest {
+
+    private static final int PAGE_SIZE = 1024 * 1024 * 4;
+    private static final int PLAIN_SIZE = PAGE_SIZE + 1000;
+
+    @Mock
+    private CloseableHttpClient httpClient;
+
+    @Mock
+    private Cache<String, EgaAESFileHeader> myHeaderCache;
+
+    @Mock
+    private FireCommons fireCommons;
+
+    @Mock
+    private DerivedKeyCache keyCache;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private My2KCachePageFactory pageFactory;
+    private byte[] plain;
+    private byte[] file;
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean failOnce = new AtomicBoolean();
+    private final List<String> peerRequests = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean peerDown = new AtomicBoolean();
+
+    @Before
+    public void setup() throws Exception {
+        plain = new byte[PLAIN_SIZE];
+        new Random(42).nextBytes(plain);
+        byte[] iv = new byte[16];
+        new Random(7).nextBytes(iv);
+        SecretKey key = new SecretKeySpec(new byte[32], "AES");
+
+        // Archive file: IV followed by the AES-CTR encrypted data
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        file = new byte[16 + PLAIN_SIZE];
+        System.arraycopy(iv, 0, file, 0, 16);
+        cipher.doFinal(plain, 0, PLAIN_SIZE, file, 16);
+
+        when(keyCache.getKey(anyString(), anyInt())).thenReturn(key);
+        when(fireCommons.getBase64EncodedCredentials()).thenReturn("credentials");
+        when(myHeaderCache.get("id")).thenReturn(new EgaAESFileHeader(iv, "aes256", file.length, "http://fire/file", "key"));
+        when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(invocation -> {
+            HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+            if (request.getURI().getHost().equals("peer")) {
+                peerRequests.add(request.getURI().getPath());
+                if (peerDown.get())
+                    throw new IOException("connection refused");
+                return response(Arrays.copyOfRange(plain, 0, PAGE_SIZE), 200);
+            }
+            String range = request.getFirstHeader("Range").getValue();
+            ranges.add(range);
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]);
+            int end = Math.min(Integer.parseInt(bounds[1]), file.length - 1);
+            if (start > 16 && failOnce.compareAndSet(true, false))
+                throw new IOException("connection reset");
+            return response(Arrays.copyOfRange(file, start, end + 1), 206);
+        });
+
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE * 4L,
+                fireCommons, keyCache, 1, 0, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L, null, null, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        pageFactory.shutdown();
+    }
+
+    /**
+     * Verify a page is fetched as several aligned sub-ranges and decrypted
+     * correctly, including the short last page.
+     */
+    @Test
+    public void testDownloadPageInParts() throws Exception {
+        assertThat(plain(pageFactory.downloadPage("id", 0)), equalTo(Arrays.copyOfRange(plain, 0, PAGE_SIZE)));
+        assertThat(ranges.size(), equalTo(4));
+        for (String range : ranges) {
+            long start = Long.parseLong(range.substring("bytes=".length()).split("-")[0]);
+            assertThat((start - 16) % 16, equalTo(0L));
+        }
+
+        assertThat(plain(pageFactory.downloadPage("id", 1)), equalTo(Arrays.copyOfRange(plain, PAGE_SIZE, PLAIN_SIZE)));
+    }
+
+    /**
+     * Verify only the failed sub-range is requested again.
+     */
+    @Test
+    public void testDownloadPageRetriesFailedPart() throws Exception {
+        failOnce.set(true);
+
+        assertThat(plain(pageFactory.downloadPage("id", 0)), equalTo(Arrays.copyOfRange(plain, 0, PAGE_SIZE)));
+        assertThat(ranges.size(), equalTo(5));
+    }
+
+    /**
+     * Verify a cached page is not fetched again.
+     */
+    @Test
+    public void testDownloadPageCached() throws Exception {
+        pageFactory.downloadPage("id", 0).release();
+        pageFactory.downloadPage("id", 0).release();
+
+        assertThat(ranges.size(), equalTo(4));
+        assertThat(pageFactory.getPageCacheStats().hitCount(), equalTo(1L));
+    }
+
+    /**
+     * Verify read-ahead skips a cached page without counting it as a cache hit.
+     */
+    @Test
+    public void testReadAheadProbeKeepsCacheStats() throws Exception {
+        pageFactory.shutdown();
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE * 4L,
+                fireCommons, keyCache, 1, 1, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L, null, null, null, null);
+        pageFactory.downloadPage("id", 0).release();
+        pageFactory.readAhead("id", 0, 0, 0);
+
+        assertThat(ranges.size(), equalTo(4));
+        assertThat(pageFactory.getPageCacheStats().hitCount(), equalTo(0L));
+        assertThat(pageFactory.getPageCacheStats().missCount(), equalTo(1L));
+    }
+
+    /**
+     * Verify the archive reads, decryption, page load and page wait are timed.
+     */
+    @Test
+    public void testDownloadPageRecordsStages() throws Exception {
+        pageFactory.downloadPage("id", 0).release();
+        pageFactory.downloadPage("id", 0).release();
+
+        StageMetrics stageMetrics = pageFactory.getStageMetrics();
+        assertThat(stageMetrics.stage(StageMetrics.ARCHIVE_FETCH).getCount(), equalTo(4L));
+        assertThat(stageMetrics.stage(StageMetrics.ARCHIVE_FETCH).getBytes(), equalTo((long) PAGE_SIZE));
+        assertThat(stageMetrics.stage(StageMetrics.DECRYPT).getCount(), equalTo(4L));
+        assertThat(stageMetrics.stage(StageMetrics.PAGE_LOAD).getCount(), equalTo(1L));
+        assertThat(stageMetrics.stage(StageMetrics.PAGE_WAIT).getCount(), equalTo(2L));
+        assertThat(stageMetrics.stage(StageMetrics.PAGE_WAIT).getBytes(), equalTo(2L * PAGE_SIZE));
+    }
+
+    /**
+     * Verify an evicted page goes back to the buffer pool only after the last
+     * reader has released it.
+     */
+    @Test
+    public void testPageBufferReleasedAfterLastReader() throws Exception {
+        pageFactory.shutdown();
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE,
+                fireCommons, keyCache, 1, 0, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L, null, null, null, null);
+        PageBufferPool pool = new PageBufferPool(PAGE_SIZE, PAGE_SIZE * 2L, PAGE_SIZE * 2L, 0);
+        CachePage page = new CachePage(pool.acquire(PAGE_SIZE), PAGE_SIZE, pool);
+
+        assertThat(page.retain(), equalTo(true));
+        page.release(); // reader
+        assertThat(pool.getPooledBytes(), equalTo(0L));
+        page.release(); // cache eviction
+        assertThat(pool.getPooledBytes(), equalTo((long) PAGE_SIZE));
+        assertThat(page.retain(), equalTo(false));
+
+        CachePage first = pageFactory.downloadPage("id", 0);
+        pageFactory.downloadPage("id", 1).release(); // evicts page 0 from the one page cache
+        assertThat(plain(first), equalTo(Arrays.copyOfRange(plain, 0, PAGE_SIZE)));
+        first.release();
+    }
+
+    /**
+     * Verify a page missing from memory is read from the local disk tier
+     * instead of the archive.
+     */
+    @Test
+    public void testDownloadPageFromDisk() throws Exception {
+        pageFactory.shutdown();
+        DiskPageStore diskPageStore = new DiskPageStore(folder.getRoot().toPath(), PAGE_SIZE * 4L);
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE * 4L,
+                fireCommons, keyCache, 1, 0, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L, diskPageStore, null, null, null);
+        pageFactory.downloadPage("id", 0).release();
+        assertThat(ranges.size(), equalTo(4));
+        pageFactory.shutdown();
+
+        // new instance, empty page cache, index rebuilt from the directory
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE * 4L,
+                fireCommons, keyCache, 1, 0, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L,
+                new DiskPageStore(folder.getRoot().toPath(), PAGE_SIZE * 4L), null, null, null);
+
+        assertThat(plain(pageFactory.downloadPage("id", 0)), equalTo(Arrays.copyOfRange(plain, 0, PAGE_SIZE)));
+        assertThat(ranges.size(), equalTo(4));
+        assertThat(pageFactory.getDiskPageStore().getHits(), equalTo(1L));
+    }
+
+    /**
+     * Verify a page owned by a peer is taken from the peer, a page owned by
+     * this node is loaded from the archive even when a peer asks for it, and
+     * an unreachable peer falls back to the archive.
+     */
+    @Test
+    public void testDownloadPageFromPeer() throws Exception {
+        pageFactory.shutdown();
+        PeerPageRing peerRing = mock(PeerPageRing.class);
+        when(peerRing.getOwner("id", 0)).thenReturn(URI.create("http://peer:9090"));
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE * 4L,
+                fireCommons, keyCache, 1, 0, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L, null, peerRing, null, null);
+
+        assertThat(plain(pageFactory.downloadPage("id", 0)), equalTo(Arrays.copyOfRange(plain, 0, PAGE_SIZE)));
+        assertThat(peerRequests, equalTo(Arrays.asList("/cache/page/id/0")));
+        assertThat(ranges.size(), equalTo(0));
+
+        assertThat(plain(pageFactory.downloadOwnedPage("id", 1)), equalTo(Arrays.copyOfRange(plain, PAGE_SIZE, PLAIN_SIZE)));
+        assertThat(peerRequests.size(), equalTo(1));
+
+        peerDown.set(true);
+        pageFactory.shutdown();
+        pageFactory = new My2KCachePageFactory(httpClient, myHeaderCache, PAGE_SIZE, PAGE_SIZE * 4L,
+                fireCommons, keyCache, 1, 0, 1, 4, 4, 4, PAGE_SIZE * 2L, PAGE_SIZE * 8L, null, peerRing, null, null);
+        assertThat(plain(pageFactory.downloadPage("id", 0)), equalTo(Arrays.copyOfRange(plain, 0, PAGE_SIZE)));
+        assertThat(peerRequests.size(), equalTo(2));
+        assertThat(ranges.size(), equalTo(5));
+    }
+
+    /**
+     * Verify a peer asking for a page past the end of the file gets an error
+     * rather than an empty page.
+     */
+    @Test(expected = NotFoundException.class)
+    public void testDownloadOwnedPagePastEnd() throws Exception {
+        pageFactory.downloadOwnedPage("id", 2);
+    }
+
+    /**
+     * Verify a peer asking for a negative page gets an error.
+     */
+    @Test(expected = NotFoundException.class)
+    public void testDownloadOwnedPageNegative() throws Exception {
+        pageFactory.downloadOwnedPage("id", -1);
+    }
+
+    private static byte[] plain(CachePage page) {
+        return Arrays.copyOf(page.getPage(), page.getLength());
+    }
+
+    private CloseableHttpResponse response(byte[] content, int status) throws IOException {
+        CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        StatusLine statusLine = mock(StatusLine.class);
+        HttpEntity entity = mock(HttpEntity.class);
+        when(statusLine.getStatusCode()).thenReturn(status);
+        when(response.getStatusLine()).thenReturn(statusLine);
+        when(response.getEntity()).thenReturn(entity);
+        when(entity.getContent()).thenReturn(new ByteArrayInputStream(content));
+        when(entity.getContentLength()).thenReturn((long) content.length);
+        return response;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
+
+/**
+ * Test class for {@link PageBufferPool}.
+ */
+public class PageBufferPoolTest {
+
+    /**
+     * Verify a released buffer is reused and kept only up to the pooled size.
+     */
+    @Test
+    public void testReleasedBufferIsReused() {
+        PageBufferPool pool = new PageBufferPool(10, 10, 100, 0);
+        byte[] first = pool.acquire(10);
+        byte[] second = pool.acquire(5);
+        pool.release(first);
+        pool.release(second); // beyond the pooled size
+
+        assertThat(pool.getPooledBytes(), equalTo(10L));
+        assertThat(pool.acquire(10) == first, equalTo(true));
+        assertThat(pool.getPooledBytes(), equalTo(0L));
+    }
+
+    /**
+     * Verify acquire fails once the outstanding buffers use up the budget, and
+     * a released or discarded buffer gives its budget back.
+     */
+    @Test
+    public void testOutstandingBytesAreBounded() {
+        PageBufferPool pool = new PageBufferPool(10, 100, 20, 0);
+        byte[] first = pool.acquire(10);
+        byte[] second = pool.acquire(10);
+        assertThat(pool.getOutstandingBytes(), equalTo(20L));
+        assertThat(fails(pool), equalTo(true));
+
+        pool.release(first);
+        assertThat(pool.getOutstandingBytes(), equalTo(10L));
+        pool.acquire(10);
+        pool.discard(second);
+        pool.acquire(10);
+        assertThat(pool.getOutstandingBytes(), equalTo(20L));
+        assertThat(fails(pool), equalTo(true));
+    }
+
+    /**
+     * Verify acquire waits for a buffer to be released while the budget is used up.
+     */
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        PageBufferPool pool = new PageBufferPool(10, 100, 10, 10000);
+        byte[] first = pool.acquire(10);
+        CompletableFuture<byte[]> waiting = CompletableFuture.supplyAsync(() -> pool.acquire(10));
+        Thread.sleep(100);
+        assertThat(waiting.isDone(), equalTo(false));
+
+        pool.release(first);
+        assertThat(waiting.get(5, TimeUnit.SECONDS) == first, equalTo(true));
+    }
+
+    private static boolean fails(PageBufferPool pool) {
+        try {
+            pool.acquire(10);
+            return false;
+        } catch (ServerErrorException ex) {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+/**
+ * Test class for {@link PeerPageRing}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PeerPageRingTest {
+
+    private static final int PAGES = 10000;
+
+    @Mock
+    private DiscoveryClient discoveryClient;
+
+    private PeerPageRing peerRing;
+
+    @Before
+    public void setup() {
+        // three nodes on one machine
+        when(discoveryClient.getLocalServiceInstance()).thenReturn(instance(9001));
+        when(discoveryClient.getInstances("res2")).thenReturn(Arrays.asList(instance(9001), instance(9002), instance(9003)));
+        peerRing = new PeerPageRing(discoveryClient, "res2", 64, 1000, 0);
+        peerRing.refresh();
+    }
+
+    @After
+    public void tearDown() {
+        peerRing.shutdown();
+    }
+
+    /**
+     * Verify pages spread over all nodes, and pages owned by this node have no
+     * peer owner.
+     */
+    @Test
+    public void testGetOwner() {
+        Map<URI, Integer> owned = owners();
+
+        assertThat(peerRing.getMembers().size(), equalTo(3));
+        assertThat(owned.size(), equalTo(3)); // null (self) and the two peers
+        for (int count : owned.values()) {
+            assertThat(count, greaterThan(PAGES / 6));
+            assertThat(count, lessThan(PAGES / 2));
+        }
+    }
+
+    /**
+     * Verify a node joining only takes pages over, pages don't move between
+     * the existing nodes.
+     */
+    @Test
+    public void testJoinMovesOnlyNewShare() {
+        List<URI> before = new ArrayList<>();
+        for (int page = 0; page < PAGES; page++) {
+            before.add(peerRing.getOwner("EGAF00000000001", page));
+        }
+
+        when(discoveryClient.getInstances("res2"))
+                .thenReturn(Arrays.asList(instance(9001), instance(9002), instance(9003), instance(9004)));
+        peerRing.refresh();
+
+        URI joined = URI.create("http://localhost:9004");
+        int moved = 0;
+        for (int page = 0; page < PAGES; page++) {
+            URI owner = peerRing.getOwner("EGAF00000000001", page);
+            if (owner == null ? before.get(page) != null : !owner.equals(before.get(page))) {
+                assertThat(owner, equalTo(joined));
+                moved++;
+            }
+        }
+        assertThat(moved, greaterThan(PAGES / 8));
+        assertThat(moved, lessThan(PAGES / 2));
+    }
+
+    /**
+     * Verify a registry error keeps the current ring.
+     */
+    @Test
+    public void testRefreshErrorKeepsRing() {
+        Map<URI, Integer> before = owners();
+
+        when(discoveryClient.getInstances("res2")).thenThrow(new IllegalStateException("registry down"));
+        peerRing.refresh();
+
+        assertThat(peerRing.getMembers().size(), equalTo(3));
+        assertThat(owners(), equalTo(before));
+    }
+
+    private Map<URI, Integer> owners() {
+        Map<URI, Integer> owned = new HashMap<>();
+        for (int page = 0; page < PAGES; page++) {
+            owned.merge(peerRing.getOwner("EGAF00000000001", page), 1, Integer::sum);
+        }
+        return owned;
+    }
+
+    private static ServiceInstance instance(int port) {
+        return new DefaultServiceInstance("res2", "localhost", port, false);
+    }
+
+}
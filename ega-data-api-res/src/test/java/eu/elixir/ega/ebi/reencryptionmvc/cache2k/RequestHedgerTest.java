@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.cache2k;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test class for {@link RequestHedger}.
+ */
+public class RequestHedgerTest {
+
+    private RequestHedger hedger;
+
+    @After
+    public void tearDown() {
+        if (hedger != null)
+            hedger.shutdown();
+    }
+
+    /**
+     * Verify the delay is the configured percentile of the samples, not below the minimum.
+     */
+    @Test
+    public void testDelayFollowsPercentile() {
+        hedger = new RequestHedger(95, 0, 1);
+        assertThat(hedger.getDelayMillis(), equalTo(Long.MAX_VALUE));
+        for (int i = 1; i <= 100; i++) {
+            hedger.addSample(i);
+        }
+        assertThat(hedger.getDelayMillis(), equalTo(95L));
+
+        hedger.shutdown();
+        hedger = new RequestHedger(95, 200, 1);
+        for (int i = 1; i <= 100; i++) {
+            hedger.addSample(i);
+        }
+        assertThat(hedger.getDelayMillis(), equalTo(200L));
+    }
+
+    /**
+     * Verify a stuck read is duplicated, the duplicate's data is used and the first read aborted.
+     */
+    @Test
+    public void testSlowReadIsHedged() throws Exception {
+        hedger = warmHedger();
+        FakeRead slow = new FakeRead((byte) 1, -1);
+        FakeRead fast = new FakeRead((byte) 2, 0);
+        AtomicInteger created = new AtomicInteger();
+
+        byte[] buffer = new byte[20];
+        boolean success = hedger.read(() -> created.getAndIncrement() == 0 ? slow : fast, buffer, 4, 16);
+
+        assertThat(success, equalTo(true));
+        assertThat(Arrays.copyOfRange(buffer, 4, 20), equalTo(filled((byte) 2)));
+        assertThat(slow.aborted.getCount(), equalTo(0L));
+        assertThat(hedger.getHedges(), equalTo(1L));
+        assertThat(hedger.getHedgeWins(), equalTo(1L));
+    }
+
+    /**
+     * Verify the first read wins if it ends first, and the duplicate is aborted.
+     */
+    @Test
+    public void testFirstReadWins() throws Exception {
+        hedger = warmHedger();
+        FakeRead first = new FakeRead((byte) 1, 200);
+        FakeRead stuck = new FakeRead((byte) 2, -1);
+        AtomicInteger created = new AtomicInteger();
+
+        byte[] buffer = new byte[16];
+        boolean success = hedger.read(() -> created.getAndIncrement() == 0 ? first : stuck, buffer, 0, 16);
+
+        assertThat(success, equalTo(true));
+        assertThat(buffer, equalTo(filled((byte) 1)));
+        assertThat(stuck.aborted.await(1, TimeUnit.SECONDS), equalTo(true));
+        assertThat(hedger.getHedges(), equalTo(1L));
+        assertThat(hedger.getHedgeWins(), equalTo(0L));
+    }
+
+    /**
+     * Verify nothing is duplicated before there are enough samples.
+     */
+    @Test
+    public void testNoHedgeWithoutSamples() throws Exception {
+        hedger = new RequestHedger(50, 0, 1);
+        byte[] buffer = new byte[16];
+
+        assertThat(hedger.read(() -> new FakeRead((byte) 3, 50), buffer, 0, 16), equalTo(true));
+        assertThat(buffer, equalTo(filled((byte) 3)));
+        assertThat(hedger.getReads(), equalTo(1L));
+        assertThat(hedger.getHedges(), equalTo(0L));
+    }
+
+    // Hedges after 10 ms
+    private static RequestHedger warmHedger() {
+        RequestHedger hedger = new RequestHedger(50, 10, 1);
+        for (int i = 0; i < 50; i++) {
+            hedger.addSample(1);
+        }
+        return hedger;
+    }
+
+    private static byte[] filled(byte value) {
+        byte[] data = new byte[16];
+        Arrays.fill(data, value);
+        return data;
+    }
+
+    /*
+     * Fills the range with a value after a delay, or waits until aborted if the delay is negative
+     */
+    private static final class FakeRead implements RequestHedger.Read {
+
+        private final byte value;
+        private final long delayMillis;
+        private final CountDownLatch aborted = new CountDownLatch(1);
+
+        private FakeRead(byte value, long delayMillis) {
+            this.value = value;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public boolean read(byte[] target, int offset) throws IOException {
+            try {
+                if (delayMillis < 0 ? aborted.await(10, TimeUnit.SECONDS) : aborted.await(delayMillis, TimeUnit.MILLISECONDS))
+                    throw new IOException("aborted");
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            Arrays.fill(target, offset, offset + 16, value);
+            return true;
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+    }
+
+}
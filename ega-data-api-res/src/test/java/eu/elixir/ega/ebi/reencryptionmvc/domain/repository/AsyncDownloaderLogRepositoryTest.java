@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.domain.repository;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test class for {@link AsyncDownloaderLogRepository}.
+ */
+public class AsyncDownloaderLogRepositoryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final DownloaderLog database = mock(DownloaderLog.class);
+  private AsyncDownloaderLogRepository downloaderLog;
+
+  @After
+  public void tearDown() throws Exception {
+    if (downloaderLog != null) {
+      downloaderLog.shutdown(1000);
+    }
+  }
+
+  /**
+   * Verify calls are written in the background with the database request id.
+   */
+  @Test
+  public void testWritesWithDatabaseId() throws Exception {
+    when(database.makeRequest("EGAF1", "user", "1.2.3.4", 0, 100)).thenReturn("42");
+    downloaderLog = new AsyncDownloaderLogRepository(database, null, 100, 10, null);
+
+    String requestId = downloaderLog.makeRequest("EGAF1", "user", "1.2.3.4", 0, 100);
+    downloaderLog.downloadComplete(requestId, 100, 1.5);
+    String failedId = downloaderLog.makeRequest("EGAF1", "user", "1.2.3.4", 0, 100);
+    downloaderLog.setError(failedId, "host", "transfer", "broken pipe");
+
+    verify(database, timeout(2000)).downloadComplete("42", 100, 1.5);
+    verify(database, timeout(2000)).setError("42", "host", "transfer", "broken pipe");
+    assertThat(requestId.equals(failedId), equalTo(false));
+  }
+
+  /**
+   * Verify a failing call doesn't lose the others of its batch.
+   */
+  @Test
+  public void testFailedCallIsIsolated() throws Exception {
+    when(database.makeRequest(anyString(), anyString(), anyString(), anyLong(), anyLong())).thenReturn("7");
+    doThrow(new RuntimeException("db down")).when(database).setError("7", "host", "code", "msg");
+    downloaderLog = new AsyncDownloaderLogRepository(database, null, 100, 10, null);
+
+    String first = downloaderLog.makeRequest("EGAF1", "user", "ip", 0, 1);
+    String second = downloaderLog.makeRequest("EGAF2", "user", "ip", 0, 1);
+    downloaderLog.setError(first, "host", "code", "msg");
+    downloaderLog.downloadComplete(second, 1, 1.0);
+
+    verify(database, timeout(2000)).downloadComplete("7", 1, 1.0);
+    downloaderLog.shutdown(1000);
+    assertThat(downloaderLog.getFailed(), equalTo(1L));
+    assertThat(downloaderLog.getWritten(), equalTo(3L));
+  }
+
+  /**
+   * Verify calls that don't fit into the queue go to the spill file, with the calls that belong to them.
+   */
+  @Test
+  public void testOverflowIsSpilled() throws Exception {
+    Path spill = folder.getRoot().toPath().resolve("download.log");
+    downloaderLog = new AsyncDownloaderLogRepository(database, null, 1, 10, spill);
+    downloaderLog.shutdown(1000); // no more queueing
+
+    String requestId = downloaderLog.makeRequest("EGAF1", "user", "1.2.3.4", 0, 100);
+    downloaderLog.downloadComplete(requestId, 100, 1.5);
+
+    List<String> lines = Files.readAllLines(spill);
+    assertThat(lines, equalTo(Arrays.asList(
+        "start\t" + requestId + "\t\tEGAF1\tuser\t1.2.3.4\t0\t100",
+        "complete\t" + requestId + "\t\t100\t1.5")));
+    assertThat(downloaderLog.getSpilled(), equalTo(2L));
+    verify(database, never()).makeRequest(anyString(), anyString(), anyString(), anyLong(), anyLong());
+  }
+
+  /**
+   * Verify calls are dropped when the queue is full and there is no spill file.
+   */
+  @Test
+  public void testOverflowIsDropped() throws Exception {
+    downloaderLog = new AsyncDownloaderLogRepository(database, null, 1, 10, null);
+    downloaderLog.shutdown(1000);
+
+    downloaderLog.makeRequest("EGAF1", "user", "ip", 0, 1);
+
+    assertThat(downloaderLog.getDropped(), equalTo(1L));
+    assertThat(downloaderLog.getSpilled(), equalTo(0L));
+  }
+
+}
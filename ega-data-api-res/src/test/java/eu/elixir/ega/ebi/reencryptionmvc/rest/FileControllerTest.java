@@ -16,18 +16,31 @@
 package eu.elixir.ega.ebi.reencryptionmvc.rest;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.ArchiveSource;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ArchiveService;
 import eu.elixir.ega.ebi.reencryptionmvc.service.ResService;
+import java.io.OutputStream;
+import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Test;
@@ -103,6 +116,221 @@ public class FileControllerTest {
         assertThat(response.getStatus(), equalTo(OK.value()));
     }
 
+    /**
+     * Test
+     * {@link FileController#getArchiveFile(String, String, String, String, long, long, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify several ranges are returned as one multipart/byteranges response,
+     * in file order, with the archive source resolved once.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetArchiveFileMultipleRanges() throws Exception {
+
+        final ArchiveSource archiveSource = new ArchiveSource();
+        archiveSource.setEncryptionFormat("aes256");
+        archiveSource.setSize(1016);
+
+        when(archiveService.getArchiveFile(any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(archiveSource);
+        rangeMockMethod();
+
+        final MockHttpServletResponse response = mockMvc
+                .perform(get("/file/archive/id").header("Range", "bytes=26-28,0-2").session(new MockHttpSession()))
+                .andReturn().getResponse();
+
+        assertThat(response.getStatus(), equalTo(PARTIAL_CONTENT.value()));
+        assertThat(response.getContentType(), startsWith("multipart/byteranges; boundary="));
+        String body = response.getContentAsString();
+        assertThat(body, containsString("Content-Range: bytes 0-2/1000\r\n\r\nabc\r\n"));
+        assertThat(body, containsString("Content-Range: bytes 26-28/1000\r\n\r\nabc\r\n"));
+        assertThat(body.indexOf("bytes 0-2"), lessThan(body.indexOf("bytes 26-28")));
+        verify(archiveService, times(1)).getArchiveFile(any(String.class), any(HttpServletRequest.class),
+                any(HttpServletResponse.class));
+    }
+
+    /**
+     * Test
+     * {@link FileController#getArchiveFile(String, String, String, String, long, long, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify several ranges of re-encrypted output are refused, as the parts
+     * would not match their Content-Range.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetArchiveFileMultipleRangesNotPlain() throws Exception {
+
+        final ArchiveSource archiveSource = new ArchiveSource();
+        archiveSource.setEncryptionFormat("aes256");
+        archiveSource.setSize(1016);
+
+        when(archiveService.getArchiveFile(any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(archiveSource);
+        rangeMockMethod();
+
+        final MockHttpServletResponse response = mockMvc
+                .perform(get("/file/archive/id").param("destinationFormat", "aes128").header("Range", "bytes=0-2,26-28")
+                        .session(new MockHttpSession()))
+                .andReturn().getResponse();
+
+        assertThat(response.getStatus(), equalTo(BAD_REQUEST.value()));
+        verify(resService, never()).transfer(any(String.class), any(String.class), any(String.class), any(String.class),
+                any(String.class), any(String.class), any(String.class), any(Long.class), any(Long.class), any(Long.class),
+                any(String.class), any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+    }
+
+    /**
+     * Test
+     * {@link FileController#getArchiveFile(String, String, String, String, long, long, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify a range starting past the end of the file is left out of the
+     * multipart response, and the last range is cut at the end of the file.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetArchiveFileMultipleRangesPastEnd() throws Exception {
+
+        final ArchiveSource archiveSource = new ArchiveSource();
+        archiveSource.setEncryptionFormat("aes256");
+        archiveSource.setSize(1016);
+
+        when(archiveService.getArchiveFile(any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(archiveSource);
+        rangeMockMethod();
+
+        final MockHttpServletResponse response = mockMvc
+                .perform(get("/file/archive/id").header("Range", "bytes=0-2,998-1010,1000-1010")
+                        .session(new MockHttpSession()))
+                .andReturn().getResponse();
+
+        assertThat(response.getStatus(), equalTo(PARTIAL_CONTENT.value()));
+        String body = response.getContentAsString();
+        assertThat(body, containsString("Content-Range: bytes 0-2/1000\r\n"));
+        assertThat(body, containsString("Content-Range: bytes 998-999/1000\r\n"));
+        assertThat(body, not(containsString("bytes 1000-")));
+    }
+
+    /**
+     * Test
+     * {@link FileController#getArchiveFile(String, String, String, String, long, long, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify the api call returns status is REQUESTED_RANGE_NOT_SATISFIABLE when
+     * all ranges start past the end of the file.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetArchiveFileMultipleRangesUnsatisfiable() throws Exception {
+
+        final ArchiveSource archiveSource = new ArchiveSource();
+        archiveSource.setEncryptionFormat("aes256");
+        archiveSource.setSize(1016);
+
+        when(archiveService.getArchiveFile(any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(archiveSource);
+        rangeMockMethod();
+
+        final MockHttpServletResponse response = mockMvc
+                .perform(get("/file/archive/id").header("Range", "bytes=1000-1010,2000-")
+                        .session(new MockHttpSession()))
+                .andReturn().getResponse();
+
+        assertThat(response.getStatus(), equalTo(REQUESTED_RANGE_NOT_SATISFIABLE.value()));
+        assertThat(response.getHeader("Content-Range"), equalTo("bytes */1000"));
+    }
+
+    /**
+     * Test
+     * {@link FileController#getArchiveFile(String, String, String, String, long, long, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify a transfer setting status and headers for each part, as
+     * LocalEGAServiceImpl does, leaves the multipart response unchanged.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetArchiveFileMultipleRangesKeepsResponseHeaders() throws Exception {
+
+        final ArchiveSource archiveSource = new ArchiveSource();
+        archiveSource.setEncryptionFormat("aes256");
+        archiveSource.setSize(1016);
+
+        when(archiveService.getArchiveFile(any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(archiveSource);
+        doAnswer(invocation -> {
+            long start = (long) invocation.getArguments()[7];
+            long end = (long) invocation.getArguments()[8];
+            HttpServletResponse partResponse = (HttpServletResponse) invocation.getArguments()[13];
+            partResponse.setStatus(200);
+            partResponse.addHeader("Content-Type", "application/octet-stream");
+            partResponse.setHeader("Content-Type", "application/octet-stream");
+            partResponse.setContentLength((int) (end - start));
+            partResponse.setContentLengthLong(end - start);
+            OutputStream out = partResponse.getOutputStream();
+            for (long i = start; i < end; i++) {
+                out.write('a' + (int) (i % 26));
+            }
+            out.close();
+            return end - start;
+        }).when(resService).transfer(any(String.class), any(String.class), any(String.class), any(String.class),
+                any(String.class), any(String.class), any(String.class), any(Long.class), any(Long.class), any(Long.class),
+                any(String.class), any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+
+        final MockHttpServletResponse response = mockMvc
+                .perform(get("/file/archive/id").header("Range", "bytes=0-2,26-28").session(new MockHttpSession()))
+                .andReturn().getResponse();
+
+        assertThat(response.getStatus(), equalTo(PARTIAL_CONTENT.value()));
+        assertThat(response.getContentType(), startsWith("multipart/byteranges; boundary="));
+        assertThat(response.getHeaders("Content-Type").size(), equalTo(1));
+        assertThat(response.getHeader("Content-Length"), equalTo(null));
+        assertThat(response.getContentAsString(), containsString("Content-Range: bytes 26-28/1000\r\n\r\nabc\r\n"));
+    }
+
+    /**
+     * Test
+     * {@link FileController#getArchiveFile(String, String, String, String, long, long, String, String, HttpServletRequest, HttpServletResponse)}.
+     * Verify the api call returns status is REQUESTED_RANGE_NOT_SATISFIABLE for
+     * a malformed range.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetArchiveFileMalformedRange() throws Exception {
+
+        final ArchiveSource archiveSource = new ArchiveSource();
+        archiveSource.setEncryptionFormat("aes256");
+        archiveSource.setSize(1016);
+
+        when(archiveService.getArchiveFile(any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class)))
+                .thenReturn(archiveSource);
+        rangeMockMethod();
+
+        MockHttpServletResponse response = mockMvc
+                .perform(get("/file/archive/id").header("Range", "bytes=0-2,x-5").session(new MockHttpSession()))
+                .andReturn().getResponse();
+        assertThat(response.getStatus(), equalTo(REQUESTED_RANGE_NOT_SATISFIABLE.value()));
+        assertThat(response.getHeader("Content-Range"), equalTo("bytes */1000"));
+
+        response = mockMvc
+                .perform(get("/file/archive/id").param("ranges", "0-99999999999999999999").session(new MockHttpSession()))
+                .andReturn().getResponse();
+        assertThat(response.getStatus(), equalTo(REQUESTED_RANGE_NOT_SATISFIABLE.value()));
+        verify(resService, never()).transfer(any(String.class), any(String.class), any(String.class), any(String.class),
+                any(String.class), any(String.class), any(String.class), any(Long.class), any(Long.class), any(Long.class),
+                any(String.class), any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+    }
+
+    /**
+     * Test {@link FileController#parseRanges(String)}.
+     */
+    @Test
+    public void testParseRanges() {
+        List<long[]> ranges = FileController.parseRanges("0-99, 200-");
+
+        assertThat(ranges.size(), equalTo(2));
+        assertThat(ranges.get(0), equalTo(new long[]{0, 100}));
+        assertThat(ranges.get(1), equalTo(new long[]{200, 0}));
+    }
+
     /**
      * Test
      * {@link FileController#getArchiveFileSize(String, HttpServletRequest, HttpServletResponse)}.
@@ -152,4 +380,22 @@ public class FileControllerTest {
                 any(String.class), any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
     }
 
+    /**
+     * Mock transfer writing the requested plain range, one letter per position.
+     */
+    private void rangeMockMethod() {
+        doAnswer(invocation -> {
+            long start = (long) invocation.getArguments()[7];
+            long end = (long) invocation.getArguments()[8];
+            OutputStream out = ((HttpServletResponse) invocation.getArguments()[13]).getOutputStream();
+            for (long i = start; i < end; i++) {
+                out.write('a' + (int) (i % 26));
+            }
+            out.close();
+            return end - start;
+        }).when(resService).transfer(any(String.class), any(String.class), any(String.class), any(String.class),
+                any(String.class), any(String.class), any(String.class), any(Long.class), any(Long.class), any(Long.class),
+                any(String.class), any(String.class), any(HttpServletRequest.class), any(HttpServletResponse.class));
+    }
+
 }
@@ -19,7 +19,12 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.springframework.http.HttpStatus.OK;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.mockito.BDDMockito.given;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import com.google.common.cache.CacheStats;
 
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
 import org.junit.Test;
@@ -60,4 +65,23 @@ public class StatsControllerTest {
 
         assertThat(response.getStatus(), equalTo(OK.value()));
     }
+
+    /**
+     * Test {@link StatsController#getCache()}. Verify the page cache counters
+     * are returned.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGetCache() throws Exception {
+        given(pageDowload.getPageCacheStats()).willReturn(new CacheStats(3, 2, 2, 0, 1000000, 1));
+        given(pageDowload.getPageCacheEntries()).willReturn(1L);
+
+        mockMvc.perform(get("/stats/cache").accept(APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.entries").value(1))
+                .andExpect(jsonPath("$.hits").value(3))
+                .andExpect(jsonPath("$.misses").value(2))
+                .andExpect(jsonPath("$.evictions").value(1));
+    }
 }
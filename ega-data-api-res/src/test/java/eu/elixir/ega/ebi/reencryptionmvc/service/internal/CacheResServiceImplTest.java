@@ -15,10 +15,14 @@
  */
 package eu.elixir.ega.ebi.reencryptionmvc.service.internal;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mock;
@@ -26,7 +30,15 @@ import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.mockito.PowerMockito.when;
 
 import java.io.ByteArrayInputStream;
-
+import java.io.DataInputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -41,16 +53,20 @@ import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 
 import eu.elixir.ega.ebi.reencryptionmvc.cache2k.My2KCachePageFactory;
+import eu.elixir.ega.ebi.reencryptionmvc.dto.CachePage;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.EgaAESFileHeader;
 import eu.elixir.ega.ebi.reencryptionmvc.dto.MyAwsConfig;
 import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
+import eu.elixir.ega.ebi.reencryptionmvc.util.DerivedKeyCache;
 import eu.elixir.ega.ebi.reencryptionmvc.util.FireCommons;
+import eu.elixir.ega.ebi.reencryptionmvc.util.PageChecksums;
 import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
 
 /**
@@ -60,6 +76,7 @@ import eu.elixir.ega.ebi.reencryptionmvc.util.S3Commons;
  */
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({CacheResServiceImpl.class, HttpClientBuilder.class})
+@PowerMockIgnore("javax.crypto.*")
 public class CacheResServiceImplTest {
 
     @InjectMocks
@@ -85,6 +102,9 @@ public class CacheResServiceImplTest {
 
     @Mock
     private CloseableHttpClient httpClient;
+
+    @Mock
+    private DerivedKeyCache keyCache;
     
     @Before
     public void initMocks() {
@@ -110,6 +130,89 @@ public class CacheResServiceImplTest {
         }
     }
 
+    /**
+     * Verify the page following the current one is read ahead when the
+     * requested range spans more than one page.
+     */
+    @Test
+    public void testTransferReadsAhead() throws Exception {
+        setupMock();
+        final int pageSize = 1024 * 1024 * 12;
+        when(pageDowloader.downloadPage(anyString(), anyInt())).thenAnswer(invocation -> new CachePage(new byte[pageSize]));
+
+        final long bytes = cacheResServiceImpl.transfer("aes256", "sourceKey", "sourceIV", "plain", "destinationKey",
+                "destinationIV", "fileLocation", 0, pageSize + 10, pageSize + 116, "httpAuth", "id",
+                new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        assertThat(bytes, equalTo(pageSize + 10L));
+        verify(pageDowloader, times(2)).downloadPage(anyString(), anyInt());
+        verify(pageDowloader, times(1)).readAhead(eq("id"), eq(1), eq(1), anyLong());
+    }
+
+    /**
+     * Verify a client asking for checksums gets the data followed by the CRC32
+     * of each page segment, the first segment starting at the range start.
+     */
+    @Test
+    public void testTransferWithChecksums() throws Exception {
+        setupMock();
+        final int pageSize = 1024 * 1024 * 12;
+        final byte[][] pages = {new byte[pageSize], new byte[pageSize]};
+        new Random(1).nextBytes(pages[0]);
+        new Random(2).nextBytes(pages[1]);
+        when(pageDowloader.downloadPage(anyString(), anyInt()))
+                .thenAnswer(invocation -> new CachePage(pages[(Integer) invocation.getArguments()[1]]));
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(PageChecksums.HEADER, PageChecksums.CRC32);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        final long bytes = cacheResServiceImpl.transfer("aes256", "sourceKey", "sourceIV", "plain", "destinationKey",
+                "destinationIV", "fileLocation", 5, pageSize + 10, pageSize + 116, "httpAuth", "id",
+                request, response);
+
+        assertThat(bytes, equalTo(pageSize + 5L));
+        assertThat(response.getHeader(PageChecksums.HEADER), equalTo(PageChecksums.CRC32));
+        assertThat(response.getHeader(PageChecksums.LENGTH_HEADER), equalTo(String.valueOf(pageSize + 5)));
+        assertThat(response.getHeader(PageChecksums.PAGE_SIZE_HEADER), equalTo(String.valueOf(pageSize)));
+        final DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+                response.getContentAsByteArray(), pageSize + 5, 8));
+        assertThat(trailer.readInt(), equalTo(crc32(pages[0], 5, pageSize - 5)));
+        assertThat(trailer.readInt(), equalTo(crc32(pages[1], 0, 10)));
+    }
+
+    /**
+     * Verify an AES range with an IV that starts inside a 16 byte block is
+     * sent from the block start, encrypted with the keystream of that block.
+     */
+    @Test
+    public void testTransferAesWithIvAtUnalignedStart() throws Exception {
+        setupMock();
+        final String inputData = "test output forty one characters given.";
+        final byte[] key = new byte[16];
+        final byte[] iv = new byte[16];
+        new Random(3).nextBytes(key);
+        new Random(4).nextBytes(iv);
+        final SecretKeySpec secret = new SecretKeySpec(key, "AES");
+        when(keyCache.getKey("destinationKey", 128)).thenReturn(secret);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        cacheResServiceImpl.transfer("aes256", "sourceKey", "sourceIV", "aes128", "destinationKey",
+                Base64.getEncoder().encodeToString(iv), "fileLocation", 21, 30, 16 + inputData.length(), "httpAuth",
+                "id", new MockHttpServletRequest(), response);
+
+        final Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+        cipher.update(new byte[16]); // the keystream of the first block
+        final byte[] plain = cipher.doFinal(response.getContentAsByteArray());
+        assertThat(new String(plain), equalTo(inputData.substring(16, 30)));
+    }
+
+    private static int crc32(byte[] data, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
     /**
      * Method to Setup mock.
      *
@@ -133,8 +236,9 @@ public class CacheResServiceImplTest {
         when(mockHttpEntity.getContent()).thenReturn(new ByteArrayInputStream(inputData.getBytes()));
         when(myAwsConfig.getAwsAccessKeyId()).thenReturn("accessKeyId");
         when(myAwsConfig.getAwsSecretAccessKey()).thenReturn("secretAccesskey");
-        when(myHeaderCache.containsKey(any())).thenReturn(Boolean.FALSE);
-        when(pageDowloader.downloadPage(anyString(),anyInt())).thenReturn(inputData.getBytes());
+        when(myHeaderCache.computeIfAbsent(any(), any())).thenAnswer(invocation ->
+                ((Callable<EgaAESFileHeader>) invocation.getArguments()[1]).call());
+        when(pageDowloader.downloadPage(anyString(),anyInt())).thenReturn(new CachePage(inputData.getBytes()));
     }
 
 }
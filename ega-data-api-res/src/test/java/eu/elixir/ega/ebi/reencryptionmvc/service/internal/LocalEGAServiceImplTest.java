@@ -24,6 +24,7 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -48,6 +49,7 @@ public class LocalEGAServiceImplTest {
     @Before
     public void initMocks() {
         MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(localEgaServiceImpl, "readBlockSize", 64 * 1024);
     }
 
     /**
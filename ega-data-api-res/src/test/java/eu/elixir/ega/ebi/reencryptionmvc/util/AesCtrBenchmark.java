@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of {@link AesCtr} against {@link DecryptionUtils}: counter
+ * arithmetic alone, and positioning a cipher for a page as the page
+ * factory does. Not run by the unit tests; start with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=eu.elixir.ega.ebi.reencryptionmvc.util.AesCtrBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AesCtrBenchmark {
+
+    @Param({"0", "12582912", "1099511627776"})
+    public long offset;
+
+    private final byte[] iv = new byte[16];
+    private final byte[] counter = new byte[16];
+    private SecretKey key;
+    private Cipher cipher;
+
+    @Setup
+    public void setup() throws Exception {
+        for (int i = 0; i < iv.length; i++) {
+            iv[i] = (byte) (0xF0 + i);
+        }
+        key = new SecretKeySpec(new byte[32], "AES");
+        cipher = Cipher.getInstance(AesCtr.TRANSFORMATION);
+    }
+
+    @Benchmark
+    public byte[] byteIncrementFast() {
+        System.arraycopy(iv, 0, counter, 0, 16);
+        DecryptionUtils.byteIncrementFast(counter, offset);
+        return counter;
+    }
+
+    @Benchmark
+    public byte[] add() {
+        System.arraycopy(iv, 0, counter, 0, 16);
+        AesCtr.add(counter, offset / 16);
+        return counter;
+    }
+
+    @Benchmark
+    public Cipher initWithByteIncrementFast() throws Exception {
+        byte[] newIV = new byte[16];
+        System.arraycopy(iv, 0, newIV, 0, 16);
+        DecryptionUtils.byteIncrementFast(newIV, offset);
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(newIV));
+        return cipher;
+    }
+
+    @Benchmark
+    public Cipher init() throws Exception {
+        return AesCtr.init(cipher, Cipher.DECRYPT_MODE, key, iv, offset);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AesCtrBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link AesCtr}.
+ */
+public class AesCtrTest {
+
+    /**
+     * Verify the counter addition matches {@link DecryptionUtils#byteIncrementFast(byte[], long)}
+     * for file offsets up to 256 TB.
+     */
+    @Test
+    public void testAddMatchesByteIncrementFast() {
+        Random random = new Random(1);
+        long[] offsets = {0, 15, 16, 4096, 1024L * 1024 * 12 * 7 + 32, (1L << 48) - 1};
+        for (int i = 0; i < 200; i++) {
+            byte[] iv = iv(random, i);
+            long offset = i < offsets.length ? offsets[i] : random.nextLong() & ((1L << 48) - 1);
+
+            byte[] expected = iv.clone();
+            DecryptionUtils.byteIncrementFast(expected, offset);
+            byte[] actual = iv.clone();
+            AesCtr.add(actual, offset / 16);
+
+            assertThat(actual, equalTo(expected));
+        }
+    }
+
+    /**
+     * Verify the counter addition over the whole range of block counts
+     * against 128 bit arithmetic.
+     */
+    @Test
+    public void testAddLargeBlockCounts() {
+        Random random = new Random(3);
+        BigInteger modulus = BigInteger.ONE.shiftLeft(128);
+        for (int i = 0; i < 200; i++) {
+            byte[] iv = iv(random, i);
+            long blocks = i == 0 ? Long.MAX_VALUE : random.nextLong() & Long.MAX_VALUE;
+
+            byte[] actual = iv.clone();
+            AesCtr.add(actual, blocks);
+
+            BigInteger expected = new BigInteger(1, iv).add(BigInteger.valueOf(blocks)).mod(modulus);
+            assertThat(new BigInteger(1, actual), equalTo(expected));
+        }
+    }
+
+    /**
+     * Verify the counter wraps around at 2^128.
+     */
+    @Test
+    public void testAddWrapsAround() {
+        byte[] counter = new byte[16];
+        Arrays.fill(counter, (byte) 0xFF);
+        AesCtr.add(counter, 2);
+
+        byte[] expected = new byte[16];
+        expected[15] = 1;
+        assertThat(counter, equalTo(expected));
+    }
+
+    private static byte[] iv(Random random, int i) {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        if (i % 4 == 0)
+            Arrays.fill(iv, 8, 16, (byte) 0xFF); // force carries
+        return iv;
+    }
+
+    /**
+     * Verify a cipher positioned at any offset, aligned or not, continues the
+     * stream encrypted from offset 0.
+     */
+    @Test
+    public void testInitAtOffset() throws Exception {
+        SecretKey key = new SecretKeySpec(new byte[32], "AES");
+        byte[] iv = new byte[16];
+        Arrays.fill(iv, (byte) 0xFE);
+        byte[] plain = new byte[1000];
+        new Random(2).nextBytes(plain);
+        Cipher cipher = Cipher.getInstance(AesCtr.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(plain);
+
+        for (int position : new int[]{0, 1, 15, 16, 17, 500, 999}) {
+            AesCtr.init(cipher, Cipher.DECRYPT_MODE, key, iv, position);
+            byte[] decrypted = cipher.doFinal(encrypted, position, encrypted.length - position);
+            assertThat(decrypted, equalTo(Arrays.copyOfRange(plain, position, plain.length)));
+        }
+    }
+
+}
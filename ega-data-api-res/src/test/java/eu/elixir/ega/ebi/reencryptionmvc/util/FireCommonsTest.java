@@ -0,0 +1,99 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.elixir.ega.ebi.reencryptionmvc.exception.ServerErrorException;
+import uk.ac.ebi.ega.fire.exceptions.FireServiceException;
+import uk.ac.ebi.ega.fire.models.FireResponse;
+import uk.ac.ebi.ega.fire.service.IFireService;
+
+/**
+ * Test class for {@link FireCommons}.
+ */
+public class FireCommonsTest {
+
+    private static final String PATH = "ab/cd/file.cip";
+
+    private IFireService fireService;
+    private FireCommons fireCommons;
+    private FireResponse fireResponse;
+
+    @Before
+    public void setUp() {
+        fireService = mock(IFireService.class);
+        fireResponse = mock(FireResponse.class);
+        when(fireResponse.getObjectSize()).thenReturn(1234L);
+        fireCommons = new FireCommons("http://fire/", "credentials", fireService, 100, 120);
+    }
+
+    /**
+     * Verify FIRE is asked once per path and the URL is reused.
+     */
+    @Test
+    public void testUrlIsCached() throws Exception {
+        when(fireService.findFile(PATH)).thenReturn(Optional.of(fireResponse));
+
+        FireObject first = fireCommons.getFireSignedUrl(PATH, "s1");
+        FireObject second = fireCommons.getFireSignedUrl(PATH, "s2");
+
+        assertThat(first, equalTo(new FireObject("http://fire/objects/blob/path/" + PATH, 1234L)));
+        assertThat(second, equalTo(first));
+        assertThat(fireCommons.getFireObjectUrl(PATH), equalTo(first.getFileURL()));
+        verify(fireService, times(1)).findFile(PATH);
+    }
+
+    /**
+     * Verify errors are retried after a pause and a missing file is not, and that failures are not cached.
+     */
+    @Test
+    public void testRetriesErrorsButNotMissingFiles() throws Exception {
+        when(fireService.findFile(PATH))
+                .thenThrow(new FireServiceException("down", null))
+                .thenReturn(Optional.of(fireResponse));
+        long start = System.nanoTime();
+        assertThat(fireCommons.getFireSignedUrl(PATH, "s1").getFileSize(), equalTo(1234L));
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100), equalTo(true));
+        verify(fireService, times(2)).findFile(PATH);
+
+        when(fireService.findFile("missing")).thenReturn(Optional.empty());
+        for (int i = 0; i < 2; i++) {
+            try {
+                fireCommons.getFireSignedUrl("missing", "s1");
+                fail("Should have thrown ServerErrorException");
+            } catch (ServerErrorException ex) {
+                // expected
+            }
+        }
+        verify(fireService, times(2)).findFile("missing");
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test class for {@link ParallelCtrOutputStream}.
+ */
+public class ParallelCtrOutputStreamTest {
+
+    private final SecretKey key = new SecretKeySpec("0123456789abcdef0123456789abcdef".getBytes(), "AES");
+
+    private final byte[] iv = "fedcba9876543210".getBytes();
+
+    private final byte[] data = new byte[100000];
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    public ParallelCtrOutputStreamTest() {
+        new Random(13).nextBytes(data);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Verify blocks encrypted on the pool give the output of one cipher over the whole stream.
+     */
+    @Test
+    public void testSameAsCipherOutputStream() throws Exception {
+        assertThat(encrypt(executor, 0, 1000, 3), equalTo(encryptSequentially(0)));
+    }
+
+    /**
+     * Verify a stream starting at an unaligned offset, written without a pool.
+     */
+    @Test
+    public void testOffsetWithoutExecutor() throws Exception {
+        assertThat(encrypt(null, 37, 4096, 2), equalTo(encryptSequentially(37)));
+    }
+
+    /**
+     * Verify a flush in the middle of a block writes what was written so far.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        ParallelCtrOutputStream out = new ParallelCtrOutputStream(target, key, iv, 0, 1000, 2, executor);
+
+        out.write(data, 0, 2500);
+        out.flush();
+        assertThat(target.size(), equalTo(2500));
+
+        out.write(data, 2500, data.length - 2500);
+        out.close();
+        assertThat(target.toByteArray(), equalTo(encryptSequentially(0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterClose() throws IOException {
+        ParallelCtrOutputStream out = new ParallelCtrOutputStream(new ByteArrayOutputStream(), key, iv, 0, 1000, 2,
+                executor);
+        out.close();
+        out.write(1);
+    }
+
+    private byte[] encrypt(ExecutorService executor, long position, int blockSize, int maxBlocks) throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (ParallelCtrOutputStream out = new ParallelCtrOutputStream(target, key, iv, position, blockSize, maxBlocks,
+                executor)) {
+            // odd sized writes across block boundaries
+            for (int offset = 0; offset < data.length; offset += 777) {
+                out.write(data, offset, Math.min(777, data.length - offset));
+            }
+        }
+        return target.toByteArray();
+    }
+
+    private byte[] encryptSequentially(long position) throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (CipherOutputStream out = new CipherOutputStream(target,
+                AesCtr.getCipher(Cipher.ENCRYPT_MODE, key, iv, position))) {
+            out.write(data);
+        }
+        return target.toByteArray();
+    }
+
+}
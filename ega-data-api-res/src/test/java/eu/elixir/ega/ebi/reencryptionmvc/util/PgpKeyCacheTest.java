@@ -0,0 +1,142 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.elixir.ega.ebi.reencryptionmvc.dto.KeyPath;
+import eu.elixir.ega.ebi.reencryptionmvc.service.KeyService;
+
+/**
+ * Test class for {@link PgpKeyCache}.
+ */
+public class PgpKeyCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final KeyService keyService = mock(KeyService.class);
+
+    private final PgpKeyCache pgpKeyCache = new PgpKeyCache(keyService, 60);
+
+    /**
+     * Verify key paths are asked from the key service once, and missing ones every time.
+     */
+    @Test
+    public void testGetKeyPath() {
+        KeyPath keyPath = new KeyPath("path1", "path2");
+        when(keyService.getKeyPath("PrivateGPG")).thenReturn(keyPath);
+
+        assertThat(pgpKeyCache.getKeyPath("PrivateGPG"), sameInstance(keyPath));
+        assertThat(pgpKeyCache.getKeyPath("PrivateGPG"), sameInstance(keyPath));
+        assertThat(pgpKeyCache.getKeyPath("unknown"), nullValue());
+        assertThat(pgpKeyCache.getKeyPath("unknown"), nullValue());
+
+        verify(keyService, times(1)).getKeyPath("PrivateGPG");
+        verify(keyService, times(2)).getKeyPath("unknown");
+    }
+
+    /**
+     * Verify a key file is parsed once, and again after it changed.
+     */
+    @Test
+    public void testReloadOnChange() throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), "first".getBytes());
+        AtomicInteger loads = new AtomicInteger();
+        PgpKeyCache.Loader<String> loader = path -> {
+            loads.incrementAndGet();
+            return PgpKeyCache.readFirstLine(path);
+        };
+
+        assertThat(pgpKeyCache.get(file.getPath(), loader), equalTo("first"));
+        assertThat(pgpKeyCache.get(file.getPath(), loader), equalTo("first"));
+        assertThat(loads.get(), equalTo(1));
+
+        Files.write(file.toPath(), "second line".getBytes());
+        assertThat(pgpKeyCache.get(file.getPath(), loader), equalTo("second line"));
+        assertThat(loads.get(), equalTo(2));
+    }
+
+    /**
+     * Verify private keys are extracted from the secret key ring once per key id.
+     */
+    @Test
+    public void testGetPrivateKey() throws Exception {
+        File keyFile = folder.newFile();
+        File passFile = folder.newFile();
+        Files.write(passFile.toPath(), "secret".getBytes());
+        PGPKeyRingGenerator generator = generateKeyRing("secret");
+        try (OutputStream out = new FileOutputStream(keyFile)) {
+            generator.generateSecretKeyRing().encode(out);
+        }
+        long keyId = generator.generatePublicKeyRing().getPublicKey().getKeyID();
+        KeyPath keyPath = new KeyPath(keyFile.getPath(), passFile.getPath());
+
+        PGPPrivateKey privateKey = pgpKeyCache.getPrivateKey(keyPath, keyId);
+
+        assertThat(privateKey.getKeyID(), equalTo(keyId));
+        assertThat(pgpKeyCache.getPrivateKey(keyPath, keyId), sameInstance(privateKey));
+        assertThat(pgpKeyCache.getPrivateKey(keyPath, keyId + 1), nullValue());
+    }
+
+    private static PGPKeyRingGenerator generateKeyRing(String passphrase) throws Exception {
+        RSAKeyPairGenerator rsa = new RSAKeyPairGenerator();
+        rsa.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 1024, 12));
+        BcPGPKeyPair keyPair = new BcPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, rsa.generateKeyPair(), new Date());
+        PGPDigestCalculator sha1 = new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1);
+        return new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair, "test", sha1, null, null,
+                new BcPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new BcPBESecretKeyEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256, sha1)
+                        .build(passphrase.toCharArray()));
+    }
+
+}
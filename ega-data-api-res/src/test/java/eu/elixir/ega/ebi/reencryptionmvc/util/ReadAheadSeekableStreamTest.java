@@ -0,0 +1,147 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test class for {@link ReadAheadSeekableStream}.
+ */
+public class ReadAheadSeekableStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = new byte[1000];
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    public ReadAheadSeekableStreamTest() {
+        new Random(11).nextBytes(data);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Verify a local file is read whole and after seeks through positional reads.
+     */
+    @Test
+    public void testFileBlockSource() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+
+        try (ReadAheadSeekableStream in = new ReadAheadSeekableStream(
+                new ReadAheadSeekableStream.FileBlockSource(file.toPath()), file.getName(), 64, 2, executor)) {
+            assertThat(in.length(), equalTo(1000L));
+            assertThat(IOUtils.toByteArray(in), equalTo(data));
+            assertThat(in.eof(), equalTo(true));
+
+            in.seek(500);
+            byte[] buffer = new byte[100];
+            in.readFully(buffer);
+            assertThat(buffer, equalTo(Arrays.copyOfRange(data, 500, 600)));
+            assertThat(in.position(), equalTo(600L));
+        }
+    }
+
+    /**
+     * Verify each block is read from the source once, however small the reads on top.
+     */
+    @Test
+    public void testBlocksReadOnce() throws IOException {
+        CountingSource source = new CountingSource();
+
+        try (ReadAheadSeekableStream in = new ReadAheadSeekableStream(source, "test", 300, 0, null)) {
+            byte[] buffer = new byte[10];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                assertThat(n, equalTo(10));
+            }
+        }
+
+        assertThat(source.positions, equalTo(Arrays.asList(0L, 300L, 600L, 900L)));
+    }
+
+    /**
+     * Verify the blocks after the current one are read ahead, and a seek skips the ones in between.
+     */
+    @Test
+    public void testReadAhead() throws IOException, InterruptedException {
+        CountingSource source = new CountingSource();
+
+        try (ReadAheadSeekableStream in = new ReadAheadSeekableStream(source, "test", 100, 2, executor)) {
+            assertThat(in.read(), equalTo(data[0] & 0xff));
+            for (int i = 0; i < 100 && source.positions.size() < 3; i++) {
+                Thread.sleep(10); // blocks 1 and 2 are read on the pool
+            }
+            in.seek(750);
+            byte[] buffer = new byte[250];
+            in.readFully(buffer);
+            assertThat(buffer, equalTo(Arrays.copyOfRange(data, 750, 1000)));
+        }
+
+        assertThat(source.positions.containsAll(Arrays.asList(100L, 200L)), equalTo(true)); // ahead of block 0
+        assertThat(source.positions.contains(500L), equalTo(false)); // skipped by the seek
+        assertThat(source.positions.containsAll(Arrays.asList(700L, 800L, 900L)), equalTo(true));
+    }
+
+    /**
+     * Source over the test data, recording the position of each read.
+     */
+    private class CountingSource implements ReadAheadSeekableStream.BlockSource {
+
+        private final List<Long> positions = new CopyOnWriteArrayList<>();
+
+        @Override
+        public int read(long position, byte[] buffer, int length) {
+            positions.add(position);
+            System.arraycopy(data, (int) position, buffer, 0, length);
+            return length;
+        }
+
+        @Override
+        public long length() {
+            return data.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
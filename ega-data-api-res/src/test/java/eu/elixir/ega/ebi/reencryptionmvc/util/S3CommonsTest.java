@@ -0,0 +1,61 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link S3Commons}. Signing is local, no S3 endpoint is contacted.
+ */
+public class S3CommonsTest {
+
+    /**
+     * Verify a presigned URL is reused for the same object.
+     */
+    @Test
+    public void testUrlIsCached() {
+        S3Commons s3Commons = new S3Commons("key", "secret", "http://localhost:9000", "us-east-1", 100, 24 * 60, 60);
+
+        String first = s3Commons.getS3ObjectUrl("s3://bucket/path/file.cip");
+        String other = s3Commons.getS3ObjectUrl("s3://bucket/path/other.cip");
+
+        assertThat(first, containsString("/bucket/path/file.cip?"));
+        assertThat(first, containsString("X-Amz-Expires=8639"));
+        assertThat(s3Commons.getS3ObjectUrl("s3://bucket/path/file.cip"), equalTo(first));
+        assertThat(other, not(equalTo(first)));
+        assertThat(s3Commons.getCachedUrls(), equalTo(2L));
+    }
+
+    /**
+     * Verify URLs are not kept when the refresh margin covers their validity.
+     */
+    @Test
+    public void testShortLivedUrlsAreNotCached() {
+        S3Commons s3Commons = new S3Commons("key", "secret", "http://localhost:9000", "us-east-1", 100, 10, 10);
+
+        s3Commons.getS3ObjectUrl("s3://bucket/path/file.cip");
+
+        assertThat(s3Commons.getCachedUrls(), equalTo(0L));
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package eu.elixir.ega.ebi.reencryptionmvc.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Test class for {@link StageMetrics} and {@link TimedOutputStream}.
+ */
+public class StageMetricsTest {
+
+    /**
+     * Verify percentiles come from the power-of-two buckets.
+     */
+    @Test
+    public void testPercentiles() {
+        StageMetrics stageMetrics = new StageMetrics();
+        StageMetrics.Stage stage = stageMetrics.stage(StageMetrics.ARCHIVE_FETCH);
+        for (int i = 0; i < 90; i++) {
+            stage.record(TimeUnit.MICROSECONDS.toNanos(100), 1000); // bucket below 128 us
+        }
+        for (int i = 0; i < 10; i++) {
+            stage.record(TimeUnit.MILLISECONDS.toNanos(50), 1000); // bucket below 65536 us
+        }
+
+        assertThat(stage.getCount(), equalTo(100L));
+        assertThat(stage.getBytes(), equalTo(100000L));
+        assertThat(stage.getPercentileMicros(50), equalTo(128L));
+        assertThat(stage.getPercentileMicros(90), equalTo(128L));
+        assertThat(stage.getPercentileMicros(95), equalTo(65536L));
+        assertThat(stage.getMaxNanos(), equalTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertThat(stageMetrics.stage(StageMetrics.DECRYPT).getPercentileMicros(99), equalTo(0L));
+    }
+
+    /**
+     * Verify the histograms are published as actuator metrics.
+     */
+    @Test
+    public void testMetrics() {
+        StageMetrics stageMetrics = new StageMetrics();
+        stageMetrics.record(StageMetrics.CLIENT_WRITE, TimeUnit.MILLISECONDS.toNanos(2), 1024 * 1024);
+        stageMetrics.record(StageMetrics.CLIENT_WRITE, TimeUnit.MILLISECONDS.toNanos(2), 1024 * 1024);
+
+        Map<String, Number> metrics = new HashMap<>();
+        for (Metric<?> metric : stageMetrics.metrics()) {
+            metrics.put(metric.getName(), metric.getValue());
+        }
+        assertThat(metrics.get("stage.client-write.count"), equalTo(2L));
+        assertThat(metrics.get("stage.client-write.meanMillis"), equalTo(2.0));
+        assertThat(metrics.get("stage.client-write.mbPerSecond"), equalTo(500.0));
+        assertThat(metrics.get("stage.client-write.p99Millis"), equalTo(2.048));
+        assertThat(metrics.get("stage.client-write.bucket.le2048us"), equalTo(2L));
+        assertThat(metrics.get("stage.header.count"), equalTo(0L));
+    }
+
+    /**
+     * Verify the timed stream records each write with its size.
+     */
+    @Test
+    public void testTimedOutputStream() throws IOException {
+        StageMetrics stageMetrics = new StageMetrics();
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        TimedOutputStream out = new TimedOutputStream(target, stageMetrics.stage(StageMetrics.CLIENT_WRITE));
+
+        out.write(new byte[100], 0, 100);
+        out.write(1);
+
+        assertThat(target.size(), equalTo(101));
+        assertThat(stageMetrics.stage(StageMetrics.CLIENT_WRITE).getCount(), equalTo(2L));
+        assertThat(stageMetrics.stage(StageMetrics.CLIENT_WRITE).getBytes(), equalTo(101L));
+        assertThat(stageMetrics.stage(StageMetrics.CLIENT_WRITE).getTotalNanos(), equalTo(out.getNanos()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownStage() {
+        new StageMetrics().stage("unknown");
+    }
+
+}